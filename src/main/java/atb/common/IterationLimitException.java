@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.common;
+
+/**
+ * Thrown when an iterative computation, such as a fixed-point iteration in a
+ * trust model, does not converge within the allowed number of iterations.
+ * Evaluation runs that throw this exception end as timed out.
+ */
+public class IterationLimitException extends RuntimeException {
+
+    private static final long serialVersionUID = 3162705927138524410L;
+
+    public IterationLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.interfaces;
+
+/**
+ * An optional interface for trust models whose state grows with the number of
+ * agents and services. Batch runners use the estimate to decide how many runs
+ * can be evaluated concurrently without exhausting the heap; models that do not
+ * implement it are measured with a short calibration run.
+ *
+ * @author David
+ */
+public interface FootprintEstimator {
+
+    /**
+     * Estimates the number of bytes that the state of the trust model occupies
+     * when the scenario has the given number of agents and services.
+     *
+     * @param agents   Number of agents
+     * @param services Number of services
+     * @return Estimated size of the state in bytes
+     */
+    long estimateFootprint(int agents, int services);
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.interfaces;
+
+/**
+ * An optional interface for trust models and scenarios that can be reinitialized
+ * in place. Batch runners keep instances of finished runs and reset them for
+ * subsequent runs instead of creating and initializing new ones, so structures
+ * that are already allocated can be reused.
+ *
+ * @author David
+ */
+public interface Resettable {
+
+    /**
+     * Prepares the instance for a new evaluation run. Afterwards, the instance
+     * must behave exactly like a new instance that was given a random generator
+     * with the given seed and initialized with the given parameters.
+     *
+     * @param seed   Seed of the random generator
+     * @param params Parameters, as given to the initialization method
+     */
+    void reset(int seed, Object... params);
+}
@@ -10,6 +10,7 @@
  */
 package atb.scenario;
 
+import atb.common.DefaultRandomGenerator;
 import atb.common.Utils;
 import atb.deceptionmodel.Complementary;
 import atb.deceptionmodel.Truthful;
@@ -42,7 +43,7 @@ import java.util.*;
  *
  * @author David
  */
-public class Transitive extends AbstractScenario implements Scenario {
+public class Transitive extends AbstractScenario implements Scenario, Resettable {
 
     protected static final ParameterCondition<Integer> VAL_SIZE;
     protected static final ParameterCondition<Double> VAL_SD, VAL_DENS;
@@ -100,9 +101,17 @@ public class Transitive extends AbstractScenario implements Scenario {
 
     @Override
     public void initialize(Object... parameters) {
-        agents = new ArrayList<Integer>();
-        partners = new ArrayList<Integer>();
-        capabilities = new LinkedHashMap<Integer, Double>();
+        // structures of a previous run are reused; see reset(int, Object...)
+        if (agents == null) {
+            agents = new ArrayList<Integer>();
+            partners = new ArrayList<Integer>();
+            capabilities = new LinkedHashMap<Integer, Double>();
+        } else {
+            agents.clear();
+            partners.clear();
+            capabilities.clear();
+        }
+        final DeceptionModel[][] previous = dms;
         dms = null;
         time = 0;
 
@@ -129,7 +138,17 @@ public class Transitive extends AbstractScenario implements Scenario {
         partners.addAll(generator.chooseRandom(agents, interDens));
 
         // assign deception models
-        dms = assignDeceptionModels(agents, capabilities, opDens);
+        if (previous != null && previous.length == numAgents) {
+            dms = fillDeceptionModels(previous, capabilities, opDens);
+        } else {
+            dms = assignDeceptionModels(agents, capabilities, opDens);
+        }
+    }
+
+    @Override
+    public void reset(int seed, Object... parameters) {
+        setRandomGenerator(new DefaultRandomGenerator(seed));
+        initialize(parameters);
     }
 
     @Override
@@ -188,9 +207,22 @@ public class Transitive extends AbstractScenario implements Scenario {
      */
     public DeceptionModel[][] assignDeceptionModels(List<Integer> agents,
                                                     Map<Integer, Double> capabilities, double opinionDensity) {
+        return fillDeceptionModels(new DeceptionModel[agents.size()][agents.size()],
+                capabilities, opinionDensity);
+    }
 
-        final DeceptionModel[][] dms = new DeceptionModel[agents.size()][agents
-                .size()];
+    /**
+     * Assigns deception models like
+     * {@link #assignDeceptionModels(List, Map, double)}, but overwrites every
+     * cell of the given square matrix instead of allocating a new one.
+     *
+     * @param dms            A matrix with a row and a column for every agent
+     * @param capabilities   A map of capabilities
+     * @param opinionDensity Percentage of all possible opinions that will be generated
+     * @return The given matrix
+     */
+    protected DeceptionModel[][] fillDeceptionModels(DeceptionModel[][] dms,
+                                                     Map<Integer, Double> capabilities, double opinionDensity) {
         final DeceptionModel truthful = new Truthful();
         final DeceptionModel liar = new Complementary();
         final DeceptionModel silent = null;
@@ -11,6 +11,7 @@
 package atb.trustmodel;
 
 import atb.interfaces.Experience;
+import atb.interfaces.FootprintEstimator;
 import atb.interfaces.Opinion;
 
 import java.util.ArrayList;
@@ -30,7 +31,8 @@ import static atb.trustmodel.TD.*;
  *
  * @author David
  */
-public class AbdulRahmanHailes extends AbstractTrustModel<TD> {
+public class AbdulRahmanHailes extends AbstractTrustModel<TD> implements
+        FootprintEstimator {
 
     /**
      * Direct trust
@@ -398,6 +400,14 @@ public class AbdulRahmanHailes extends AbstractTrustModel<TD> {
         return "Abdul-Rahman, Hailes";
     }
 
+    @Override
+    public long estimateFootprint(int agents, int services) {
+        // recommendations (REC) are kept for every pair of agents and service,
+        // experiences (Q) and their lists (R) for every agent and service
+        final long pairs = (long) agents * agents;
+        return pairs * (4L * services + 16) + (long) agents * services * 300;
+    }
+
     @Override
     public void setAgents(List<Integer> agents) {
 
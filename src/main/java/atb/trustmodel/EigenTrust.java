@@ -10,15 +10,19 @@
  */
 package atb.trustmodel;
 
+import atb.common.IterationLimitException;
 import atb.common.Utils;
 import atb.interfaces.Experience;
+import atb.interfaces.FootprintEstimator;
 import atb.interfaces.Opinion;
 import atb.interfaces.ParameterCondition;
 import atb.interfaces.ParametersPanel;
 
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.IntStream;
 
 /**
  * EigenTrust model
@@ -28,13 +32,30 @@ import java.util.Map;
  * <li>The interactions outcomes are recorded in the <b>cntExp</b> array. Values
  * in this array represent the cumulative number of interactions of agent Alpha
  * with this agent -- s<sub>j</sub>. These numbers are obtained by thresholding
- * the interaction outcome against SATISFACTORY_THRESHOLD parameter.
+ * the interaction outcome against the satisfactory threshold parameter.
  * <li>The pre-trust vector represents Alpha's normalized local experiences. The
  * pre-trust vector is computed by normalizing the values in the cntExp array.
  * If all values are zero, than the same value (1/N, N being the number of
  * agents) is given to all agents.
- * <li>Obtained opinions are stored in the cntOp array. This array is used to
- * compute normalized local trust values that constitute the matrix C.
+ * <li>Obtained opinions are counted in a sparse matrix stored in compressed
+ * columns: column j lists the agents about which agent j has a positive
+ * opinion together with the counts. The normalized local trust values that
+ * constitute the matrix C are never materialized; columns are normalized by
+ * their sums while multiplying, and columns of agents without opinions, which
+ * equal the pre-trust vector, are accounted for with a single scalar. When the
+ * matrix holds many entries, the product is computed in parallel.
+ * <li>The power iteration starts from the pre-trust vector and stops once
+ * the Euclidean distance between consecutive vectors falls below the
+ * tolerance. If the trust vector has not converged after the maximal number
+ * of iterations, an {@link IterationLimitException} is thrown. The tolerance
+ * (default 0.01) and the maximal number of iterations (default
+ * MAX_ITERATIONS) may be given as optional fifth and sixth parameter.
+ * <li>If the optional seventh parameter is true, the iteration starts from the
+ * trust vector of the previous call instead, which usually takes fewer
+ * iterations. Since the iteration stops within the tolerance of the fixed
+ * point rather than at it, warm-started trust values differ from cold-started
+ * ones by up to the tolerance, which may change the ranking of agents and
+ * thus the reported metrics; the warm start is therefore off by default.
  * </ul>
  * <p>
  * <a href='http://doi.acm.org/10.1145/775152.775242'>Sepandar D. Kamvar, Mario
@@ -44,13 +65,20 @@ import java.util.Map;
  *
  * @author David
  */
-public class EigenTrust extends AbstractTrustModel<Double> {
+public class EigenTrust extends AbstractTrustModel<Double> implements
+        FootprintEstimator {
     private static final ParameterCondition<Double> VAL_WEIGHT;
     private static final ParameterCondition<Integer> VAL_SAMPLE_NUM;
-    public static double WEIGHT = 0.5;
-    public static double SATISFACTORY_THRESHOLD = 0.5;
-    public static double OPINION_SAMPLE_SD = 0.1;
-    public static double OPINION_SAMPLE_NUM = 10;
+    private static final ParameterCondition<Double> VAL_TOLERANCE;
+    private static final ParameterCondition<Boolean> VAL_WARM_START;
+    public static final int MAX_ITERATIONS = 1000;
+    public static final double TOLERANCE = 0.01;
+
+    // number of stored opinions above which the product is computed in parallel
+    protected static final int PARALLEL_THRESHOLD = 1 << 16;
+    // number of column blocks multiplied in parallel; it is fixed, so that
+    // results do not depend on the number of processors
+    protected static final int PARALLEL_BLOCKS = 16;
 
     static {
         VAL_WEIGHT = new ParameterCondition<Double>() {
@@ -72,26 +100,79 @@ public class EigenTrust extends AbstractTrustModel<Double> {
                             var));
             }
         };
+
+        VAL_TOLERANCE = new ParameterCondition<Double>() {
+            @Override
+            public void eval(Double var) {
+                if (var <= 0)
+                    throw new IllegalArgumentException(String.format(
+                            "The tolerance must be positive, but was %f", var));
+            }
+        };
+
+        VAL_WARM_START = new ParameterCondition<Boolean>() {
+            @Override
+            public void eval(Boolean var) {
+
+            }
+        };
     }
 
-    // holds positive opinions count
-    public int[][] cntOp;
+    // compressed columns of positive opinions counts: rows[j] holds sorted
+    // indexes of agents about which agent j has an opinion, counts[j] the
+    // corresponding counts and size[j] the number of such agents
+    protected int[][] rows;
+    protected int[][] counts;
+    protected int[] size;
+    // number of stored opinions
+    protected long entries;
+    // column sums of opinion counts
+    protected int[] colSum;
     // count experiences
     public int[] cntExp;
 
+    // pre-trust vector; null when it has to be computed anew
+    protected double[] p;
+    // trust vector of the previous call; with a warm start, the next iteration
+    // starts from it
+    protected double[] t;
+    // trust values of the previous call; null when new data arrived
+    protected Map<Integer, Double> cached;
+    // per-block partial products of the parallel multiplication
+    protected double[][] partial;
+
+    // parameters of this instance
+    protected Configuration config = new Configuration(0.5, 0.5, 10, 0.1,
+            TOLERANCE, MAX_ITERATIONS, false);
+
     @Override
     public void initialize(Object... params) {
         // cumulative number of positive interaction outcomes
         cntExp = new int[1];
 
         // cumulative number of positive opinions
-        // this number gets rewritten each time a new opinion arrives
-        cntOp = new int[1][1];
-
-        WEIGHT = Utils.extractParameter(VAL_WEIGHT, 0, params);
-        SATISFACTORY_THRESHOLD = Utils.extractParameter(VAL_WEIGHT, 1, params);
-        OPINION_SAMPLE_NUM = Utils.extractParameter(VAL_SAMPLE_NUM, 2, params);
-        OPINION_SAMPLE_SD = Utils.extractParameter(VAL_WEIGHT, 3, params);
+        // these numbers get rewritten each time a new opinion arrives
+        rows = new int[1][];
+        counts = new int[1][];
+        size = new int[1];
+        colSum = new int[1];
+        entries = 0;
+        p = null;
+        t = null;
+        cached = null;
+        partial = null;
+
+        config = new Configuration(
+                Utils.extractParameter(VAL_WEIGHT, 0, params),
+                Utils.extractParameter(VAL_WEIGHT, 1, params),
+                Utils.extractParameter(VAL_SAMPLE_NUM, 2, params),
+                Utils.extractParameter(VAL_WEIGHT, 3, params),
+                params.length > 4 ?
+                        Utils.extractParameter(VAL_TOLERANCE, 4, params) : TOLERANCE,
+                params.length > 5 ?
+                        Utils.extractParameter(VAL_SAMPLE_NUM, 5, params) : MAX_ITERATIONS,
+                params.length > 6 ?
+                        Utils.extractParameter(VAL_WARM_START, 6, params) : false);
     }
 
     @Override
@@ -100,7 +181,9 @@ public class EigenTrust extends AbstractTrustModel<Double> {
 
         // process experiences
         for (Experience e : experiences) {
-            cntExp[e.agent] += (e.outcome >= SATISFACTORY_THRESHOLD ? 1 : -1);
+            cntExp[e.agent] += (e.outcome >= config.satisfactoryThreshold ? 1 : -1);
+            p = null;
+            cached = null;
         }
     }
 
@@ -108,22 +191,24 @@ public class EigenTrust extends AbstractTrustModel<Double> {
     public void processOpinions(List<Opinion> opinions) {
         expandArrays(null, opinions);
 
-        // process opinions by creating matrix C
+        // process opinions by updating opinion counts
+        final Configuration config = this.config;
+
         for (Opinion o : opinions) {
             final double itd = o.internalTrustDegree;
 
             int pos = 0, neg = 0;
 
-            for (int i = 0; i < OPINION_SAMPLE_NUM; i++) {
+            for (int i = 0; i < config.opinionSampleNum; i++) {
                 if (generator.nextDoubleFromUnitTND(itd,
-                        OPINION_SAMPLE_SD) > SATISFACTORY_THRESHOLD) {
+                        config.opinionSampleSd) > config.satisfactoryThreshold) {
                     pos += 1;
                 } else {
                     neg += 1;
                 }
             }
 
-            cntOp[o.agent2][o.agent1] = (int) Math.max(pos - neg, 0);
+            setOpinionCount(o.agent2, o.agent1, Math.max(pos - neg, 0));
         }
     }
 
@@ -134,45 +219,175 @@ public class EigenTrust extends AbstractTrustModel<Double> {
 
     @Override
     public Map<Integer, Double> getTrust(int service) {
-        // pre-trust vector
-        double[] p = computePretrustVector(cntExp);
+        if (null != cached)
+            return new LinkedHashMap<Integer, Double>(cached);
 
-        // matrix C
-        double[][] C = computeMatrix(cntOp, p);
+        if (null == p)
+            p = computePretrustVector(cntExp);
 
         // execute algorithm
         final double[] t_new = new double[p.length];
         final double[] t_old = new double[p.length];
 
-        // t_new = p
-        System.arraycopy(p, 0, t_new, 0, p.length);
+        // t_new = t from the previous call with a warm start, or p
+        System.arraycopy(config.warmStart && null != t && t.length == p.length ? t : p,
+                0, t_new, 0, p.length);
+
+        final double weight = config.weight;
+        final int maxIterations = config.maxIterations;
+        int iterations = 0;
 
         do {
+            if (iterations++ == maxIterations)
+                throw new IterationLimitException(String.format(
+                        "EigenTrust did not converge in %d iterations",
+                        maxIterations));
+
             // t_old = t_new
             System.arraycopy(t_new, 0, t_old, 0, t_new.length);
 
             // t_new = C * t_old
-            for (int row = 0; row < t_old.length; row++) {
-                double sum = 0;
-
-                for (int col = 0; col < t_old.length; col++)
-                    sum += C[row][col] * t_old[col];
-
-                t_new[row] = sum;
-            }
+            multiply(t_old, t_new);
 
             // t_new = (1 - weight) * t_new + weight * p
             for (int i = 0; i < t_old.length; i++)
-                t_new[i] = (1 - WEIGHT) * t_new[i] + WEIGHT * p[i];
+                t_new[i] = (1 - weight) * t_new[i] + weight * p[i];
 
         } while (!hasConverged(t_new, t_old));
 
+        t = t_new;
+
         final Map<Integer, Double> trust = new LinkedHashMap<Integer, Double>();
 
-        for (int i = 0; i < t_old.length; i++)
+        for (int i = 0; i < t_new.length; i++)
             trust.put(i, t_new[i]);
 
-        return trust;
+        cached = trust;
+        return new LinkedHashMap<Integer, Double>(trust);
+    }
+
+    /**
+     * Returns the number of positive opinions that agent col has about agent
+     * row.
+     *
+     * @param row Agent the opinions are about
+     * @param col Agent that provided the opinions
+     * @return Number of positive opinions
+     */
+    public int getOpinionCount(int row, int col) {
+        if (col >= size.length || size[col] == 0)
+            return 0;
+
+        final int k = Arrays.binarySearch(rows[col], 0, size[col], row);
+        return k < 0 ? 0 : counts[col][k];
+    }
+
+    /**
+     * Sets the number of positive opinions that agent col has about agent row.
+     * Zero counts of agents that are not yet in the column are not stored.
+     *
+     * @param row   Agent the opinions are about
+     * @param col   Agent that provided the opinions
+     * @param count Number of positive opinions
+     */
+    protected void setOpinionCount(int row, int col, int count) {
+        final int k = size[col] == 0 ? -1
+                : Arrays.binarySearch(rows[col], 0, size[col], row);
+
+        if (k >= 0) {
+            if (counts[col][k] != count) {
+                colSum[col] += count - counts[col][k];
+                counts[col][k] = count;
+                cached = null;
+            }
+        } else if (count != 0) {
+            final int at = -k - 1;
+
+            if (null == rows[col]) {
+                rows[col] = new int[4];
+                counts[col] = new int[4];
+            } else if (size[col] == rows[col].length) {
+                rows[col] = Arrays.copyOf(rows[col], 2 * size[col]);
+                counts[col] = Arrays.copyOf(counts[col], 2 * size[col]);
+            }
+
+            System.arraycopy(rows[col], at, rows[col], at + 1, size[col] - at);
+            System.arraycopy(counts[col], at, counts[col], at + 1, size[col] - at);
+            rows[col][at] = row;
+            counts[col][at] = count;
+            size[col]++;
+            entries++;
+            colSum[col] += count;
+            cached = null;
+        }
+    }
+
+    /**
+     * Computes y = C * x, where column j of C holds the opinion counts of agent
+     * j normalized by their sum or, if agent j has no opinions, the pre-trust
+     * vector.
+     *
+     * @param x The vector to multiply
+     * @param y The vector that receives the product
+     */
+    protected void multiply(final double[] x, final double[] y) {
+        final int n = x.length;
+
+        // columns without opinions equal p; their contribution is p scaled by
+        // the sum of corresponding elements of x
+        double dangling = 0;
+
+        for (int col = 0; col < n; col++)
+            if (colSum[col] == 0)
+                dangling += x[col];
+
+        if (entries < PARALLEL_THRESHOLD) {
+            Arrays.fill(y, 0);
+            accumulate(x, y, 0, n);
+        } else {
+            if (null == partial || partial[0].length != n)
+                partial = new double[PARALLEL_BLOCKS][n];
+
+            // each block of columns is multiplied into its own vector
+            IntStream.range(0, PARALLEL_BLOCKS).parallel().forEach(b -> {
+                Arrays.fill(partial[b], 0);
+                accumulate(x, partial[b], b * n / PARALLEL_BLOCKS,
+                        (b + 1) * n / PARALLEL_BLOCKS);
+            });
+
+            // partial products are summed in the order of blocks
+            IntStream.range(0, PARALLEL_BLOCKS).parallel().forEach(b -> {
+                for (int row = b * n / PARALLEL_BLOCKS; row < (b + 1) * n / PARALLEL_BLOCKS; row++) {
+                    double sum = 0;
+
+                    for (int i = 0; i < PARALLEL_BLOCKS; i++)
+                        sum += partial[i][row];
+
+                    y[row] = sum;
+                }
+            });
+        }
+
+        for (int row = 0; row < n; row++)
+            y[row] += dangling * p[row];
+    }
+
+    /**
+     * Adds the product of columns from (inclusive) to to (exclusive) of the
+     * normalized opinion matrix and the vector x to the vector y.
+     */
+    private void accumulate(double[] x, double[] y, int from, int to) {
+        for (int col = from; col < to; col++) {
+            if (colSum[col] == 0)
+                continue;
+
+            final double scale = x[col] / colSum[col];
+            final int[] r = rows[col];
+            final int[] c = counts[col];
+
+            for (int k = 0; k < size[col]; k++)
+                y[r[k]] += c[k] * scale;
+        }
     }
 
     /**
@@ -204,41 +419,6 @@ public class EigenTrust extends AbstractTrustModel<Double> {
         return p;
     }
 
-    /**
-     * Computes a matrix from an integer matrix of positive opinions
-     *
-     * @param opinionCount Array of positive opinion counts
-     * @param p            Pre-trust vector (needed when no-one has an opinion about a
-     *                     particular agent)
-     * @return A matrix normalized column-wise
-     */
-    public double[][] computeMatrix(final int[][] opinionCount,
-                                    final double[] p) {
-        final double[][] C = new double[opinionCount.length][opinionCount.length];
-
-        // normalize matrix column-wise
-        for (int col = 0; col < C.length; col++) {
-            int colSum = 0;
-
-            for (int row = 0; row < C[col].length; row++)
-                colSum += opinionCount[row][col];
-
-            if (colSum > 0) {
-                // at least someone has an opinion
-                final double normalization = colSum;
-
-                for (int row = 0; row < C[col].length; row++)
-                    C[row][col] = opinionCount[row][col] / normalization;
-            } else {
-                // if a peer trusts/knows no-one
-                for (int row = 0; row < C[col].length; row++)
-                    C[row][col] = p[row];
-            }
-        }
-
-        return C;
-    }
-
     /**
      * Determines whether the Euclidean distance between two vectors is small
      * enough in order for the EigenTrust algorithm to stop.
@@ -253,7 +433,7 @@ public class EigenTrust extends AbstractTrustModel<Double> {
         for (int i = 0; i < t_old.length; i++)
             sum += (t_new[i] - t_old[i]) * (t_new[i] - t_old[i]);
 
-        return Math.sqrt(sum) < 0.01;
+        return Math.sqrt(sum) < config.tolerance;
     }
 
     @Override
@@ -261,6 +441,34 @@ public class EigenTrust extends AbstractTrustModel<Double> {
 
     }
 
+    @Override
+    public long estimateFootprint(int agents, int services) {
+        // only positive opinion counts are stored; assuming that every agent
+        // eventually gives opinions about all others and that trust degrees
+        // are spread evenly, an opinion is positive when it exceeds the
+        // satisfactory threshold
+        final double positive = 1 - config.satisfactoryThreshold;
+        return estimateFootprint(agents,
+                (long) Math.ceil(positive * agents * (agents - 1L)));
+    }
+
+    /**
+     * Estimates the number of bytes that the state occupies when it holds the
+     * given number of non-zero opinion counts.
+     *
+     * @param agents   Number of agents
+     * @param opinions Number of non-zero opinion counts
+     * @return Estimated size of the state in bytes
+     */
+    public static long estimateFootprint(int agents, long opinions) {
+        // a stored count takes an index and a count of 4 bytes each, in
+        // columns that grow by doubling and are thus on average 3/4 full;
+        // per-agent arrays and vectors take 64 bytes per agent, partial
+        // products of the parallel multiplication 8 bytes per block
+        return 32L * opinions / 3 + 64L * agents
+                + 8L * PARALLEL_BLOCKS * agents;
+    }
+
     @Override
     public ParametersPanel getParametersPanel() {
         return new EigenTrustGUI();
@@ -274,7 +482,7 @@ public class EigenTrust extends AbstractTrustModel<Double> {
      */
     protected void expandArrays(List<Experience> experiences,
                                 List<Opinion> opinions) {
-        final int limit = cntOp.length - 1;
+        final int limit = cntExp.length - 1;
         int max = limit;
 
         if (null != experiences)
@@ -288,21 +496,17 @@ public class EigenTrust extends AbstractTrustModel<Double> {
                     max = Math.max(o.agent1, o.agent2);
 
         if (max > limit) {
-            // resize opinions' array
-            int[][] newCntOp = new int[max + 1][max + 1];
-
-            for (int i = 0; i < cntOp.length; i++)
-                for (int j = 0; j < cntOp.length; j++)
-                    newCntOp[i][j] = cntOp[i][j];
-
-            cntOp = newCntOp;
+            // resize opinions' columns
+            rows = Arrays.copyOf(rows, max + 1);
+            counts = Arrays.copyOf(counts, max + 1);
+            size = Arrays.copyOf(size, max + 1);
+            colSum = Arrays.copyOf(colSum, max + 1);
 
             // resize positive experiences array
-            int[] newPosExp = new int[max + 1];
-            for (int i = 0; i < cntExp.length; i++)
-                newPosExp[i] = cntExp[i];
+            cntExp = Arrays.copyOf(cntExp, max + 1);
 
-            cntExp = newPosExp;
+            p = null;
+            cached = null;
         }
     }
 
@@ -313,4 +517,31 @@ public class EigenTrust extends AbstractTrustModel<Double> {
     @Override
     public void setServices(List<Integer> services) {
     }
+
+    /**
+     * Parameters of an EigenTrust instance. They are kept per instance, so
+     * that differently parameterized instances can run concurrently.
+     */
+    protected static final class Configuration {
+        public final double weight;
+        public final double satisfactoryThreshold;
+        public final int opinionSampleNum;
+        public final double opinionSampleSd;
+        public final double tolerance;
+        public final int maxIterations;
+        public final boolean warmStart;
+
+        public Configuration(double weight, double satisfactoryThreshold,
+                             int opinionSampleNum, double opinionSampleSd,
+                             double tolerance, int maxIterations,
+                             boolean warmStart) {
+            this.weight = weight;
+            this.satisfactoryThreshold = satisfactoryThreshold;
+            this.opinionSampleNum = opinionSampleNum;
+            this.opinionSampleSd = opinionSampleSd;
+            this.tolerance = tolerance;
+            this.maxIterations = maxIterations;
+            this.warmStart = warmStart;
+        }
+    }
 }
@@ -16,6 +16,7 @@ import atb.interfaces.ParameterCondition;
 import atb.interfaces.ParametersPanel;
 import atb.interfaces.SelectingInteractionPartners;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -64,7 +65,7 @@ public class EigenTrustSelectingInteractionPartners extends EigenTrust
 
     @Override
     public void initialize(Object... params) {
-        super.initialize(params);
+        super.initialize(Arrays.copyOf(params, params.length - 2));
         selector = new PartnerSelectionTemplates(generator);
         probSelection = Utils.extractParameter(VAL_PROCEDURE, params.length - 2,
                 params);
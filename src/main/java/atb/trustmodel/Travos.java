@@ -10,14 +10,18 @@
  */
 package atb.trustmodel;
 
+import atb.common.DefaultRandomGenerator;
 import atb.common.Utils;
 import atb.interfaces.Experience;
+import atb.interfaces.FootprintEstimator;
 import atb.interfaces.Opinion;
 import atb.interfaces.ParameterCondition;
 import atb.interfaces.ParametersPanel;
+import atb.interfaces.Resettable;
 import cern.jet.random.Beta;
 import cern.jet.random.engine.MersenneTwister;
 
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -50,7 +54,8 @@ import java.util.Map;
  *
  * @author David
  */
-public class Travos extends AbstractTrustModel<Double> {
+public class Travos extends AbstractTrustModel<Double> implements
+        FootprintEstimator, Resettable {
     private static final ParameterCondition<Double> VAL_THRESHOLD;
     private static final ParameterCondition<Integer> VAL_SAMPLE_NUM;
     // parameters
@@ -60,6 +65,7 @@ public class Travos extends AbstractTrustModel<Double> {
     private double confidenceThreshold = 0.95;
     private double error = 0.2;
     private Beta beta = null;
+    private Engine engine = null;
 
     static {
         VAL_SAMPLE_NUM = new ParameterCondition<Integer>() {
@@ -92,9 +98,26 @@ public class Travos extends AbstractTrustModel<Double> {
 
     @Override
     public void initialize(Object... params) {
-        experiences = new LinkedHashMap<Integer, BRSPair>();
-        observations = new LinkedHashMap<Integer, BRSPair[]>();
-        opinions = new BRSPair[0][0];
+        // structures of a previous run are cleared in place to reuse them; agents
+        // without experiences or opinions get no trust, so a larger opinion matrix
+        // does not change the results
+        if (experiences == null) {
+            experiences = new LinkedHashMap<Integer, BRSPair>();
+            observations = new LinkedHashMap<Integer, BRSPair[]>();
+            opinions = new BRSPair[0][0];
+        } else {
+            experiences.clear();
+
+            for (BRSPair[] bins : observations.values()) {
+                for (BRSPair bin : bins) {
+                    bin.R = 0;
+                    bin.S = 0;
+                }
+            }
+
+            for (BRSPair[] row : opinions)
+                Arrays.fill(row, null);
+        }
 
         satisfactoryThreshold = Utils.extractParameter(VAL_THRESHOLD, 0,
                 params);
@@ -103,7 +126,19 @@ public class Travos extends AbstractTrustModel<Double> {
         confidenceThreshold = Utils.extractParameter(VAL_THRESHOLD, 3, params);
         error = Utils.extractParameter(VAL_THRESHOLD, 4, params);
 
-        beta = new Beta(1, 1, new MersenneTwister(generator.getSeed()));
+        if (beta == null) {
+            engine = new Engine(generator.getSeed());
+            beta = new Beta(1, 1, engine);
+        } else {
+            engine.reseed(generator.getSeed());
+            beta.setState(1, 1);
+        }
+    }
+
+    @Override
+    public void reset(int seed, Object... params) {
+        setRandomGenerator(new DefaultRandomGenerator(seed));
+        initialize(params);
     }
 
     @Override
@@ -418,6 +453,12 @@ public class Travos extends AbstractTrustModel<Double> {
         opinions = newOp;
     }
 
+    @Override
+    public long estimateFootprint(int agents, int services) {
+        // matrix of opinion pairs and five observation pairs per agent
+        return 36L * agents * agents + 200L * agents;
+    }
+
     @Override
     public void setAgents(List<Integer> agents) {
     }
@@ -435,4 +476,17 @@ public class Travos extends AbstractTrustModel<Double> {
     public void setCurrentTime(int time) {
 
     }
+
+    /**
+     * A Mersenne twister that can be reseeded, so that it is reused across runs.
+     */
+    private static final class Engine extends MersenneTwister {
+        Engine(int seed) {
+            super(seed);
+        }
+
+        void reseed(int seed) {
+            setSeed(seed);
+        }
+    }
 }
\ No newline at end of file
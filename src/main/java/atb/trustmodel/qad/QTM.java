@@ -23,7 +23,7 @@ import java.util.Map;
  *
  * @author David
  */
-public class QTM implements TrustModel<Omega> {
+public class QTM implements TrustModel<Omega>, FootprintEstimator {
 
     protected static final double LOWER_CRED = 0.001;
     protected static final double TF = 0.1; // 0.01
@@ -373,6 +373,12 @@ public class QTM implements TrustModel<Omega> {
         }
     }
 
+    @Override
+    public long estimateFootprint(int agents, int services) {
+        // matrix of opinions and the histories of local experiences
+        return 48L * agents * agents + 32L * HISTORY_LENGTH * agents;
+    }
+
     @Override
     public void setAgents(List<Integer> agents) {
     }
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.app.cli
+
+import atb.infrastructure.*
+import com.google.gson.Gson
+import java.io.File
+import java.net.InetAddress
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.system.exitProcess
+
+/** Seconds that interrupted runs are given to end and write their results when the process terminates */
+private const val SHUTDOWN_TIMEOUT = 30L
+
+/**
+ * Runs a batch of evaluations without a graphical user interface. The batch is described
+ * in a JSON or YAML file (see [BatchSpec]).
+ *
+ * Usage: `CliKt <specification file>`
+ *
+ * The process exits with status 0 if all runs complete and with status 1 otherwise.
+ * Stored binary results are queried with `CliKt query ...` (see [query]).
+ */
+fun main(args: Array<String>) {
+    if (args.firstOrNull() == "query") {
+        if (!query(args.drop(1))) {
+            System.err.println("Usage: CliKt query <final|area|tick=N|curve> [--model M] [--scenario S] " +
+                    "[--metric M] [--service N] [--incomplete] <file or directory>...")
+            exitProcess(2)
+        }
+        exitProcess(0)
+    }
+
+    if (args.size != 1) {
+        System.err.println("Usage: CliKt <specification file>")
+        exitProcess(2)
+    }
+
+    val spec = BatchSpec.read(File(args[0]))
+    val succeeded = runBatch(spec)
+    exitProcess(if (succeeded) 0 else 1)
+}
+
+/**
+ * Executes the batch described by [spec], writes the results as requested and
+ * returns true if all runs have completed.
+ */
+fun runBatch(spec: BatchSpec): Boolean {
+    if (spec.isSweep) {
+        return runSweep(spec)
+    }
+
+    val executor = Executors.newFixedThreadPool(spec.parallelism)
+    val checkpoint = spec.checkpoint?.let { BatchCheckpoint(File(it)) }
+    val cache = spec.cache?.let { RunCache(File(it.directory), it.maxBytes) }
+    val output = spec.output
+    File(output.directory).mkdirs()
+
+    // metrics are always available over JMX and, if requested, over HTTP
+    val metrics = BatchMetrics(spec.scenario.substringAfterLast('.') + "-" + spec.trustModel.substringAfterLast('.')).register()
+    spec.monitorPort?.let { System.err.println("Serving metrics at http://localhost:${metrics.serve(it)}/metrics") }
+
+    val latch = CountDownLatch(1)
+    var states: List<EvaluationState> = emptyList()
+
+    val memory = spec.memoryBudget?.let { MemoryBudget(it) }
+    val costs = spec.schedule?.takeIf { it.longestFirst }?.let { CostModel(it.history?.let(::File)) }
+
+    // binary results are streamed to the file while runs execute; sinks are kept by seed until the
+    // terminal states of their runs are recorded
+    val binary = if (output.format == "binary") {
+        ResultsWriter(File(output.directory, output.file ?: "batch-${System.currentTimeMillis()}.atbc"),
+                Gson().toJson(spec))
+    } else null
+    val storing = ConcurrentHashMap<Int, ResultSink>()
+
+    // trust models and scenarios are reused across runs on the same thread
+    val pool = InstancePool()
+
+    val aggregate = BatchAggregate()
+    // spilled readings are deleted once the results are written
+    val spilled = Collections.synchronizedList(ArrayList<FileSink>())
+
+    // runs name the reduction of their readings in every output
+    val reduction = spec.reduction?.toString()
+    fun described(data: EvaluationData) =
+            if (reduction == null) data else data.copy(descriptor = data.descriptor.copy(reduction = reduction))
+
+    // JSON results are streamed to the file as runs complete; the file is created with the first run
+    var json: JsonResultsWriter? = null
+
+    fun writeJson(data: EvaluationData) = synchronized(output) {
+        val writer = json ?: JsonResultsWriter(File(output.directory, output.file ?: autoName(
+                data.descriptor.scenario, data.descriptor.trustModel,
+                if (output.compress) "json.gz" else "json")), gzip = output.compress)
+        json = writer
+        writer.write(data)
+    }
+
+    val progress = { state: EvaluationState ->
+        if (output.format == "json" && state is Completed) {
+            writeJson(described(state.data))
+        }
+        seedOf(state)?.let { storing.remove(it) }?.let { binary?.finish(it, RunState.of(state)) }
+        report(state)
+    }
+
+    // readings are reduced just before they are stored, so precision is judged on all readings
+    fun sinks(run: RunSpec): ResultSink {
+        val stored = when {
+            output.format == "aggregate" -> AggregatingSink(aggregate)
+            binary != null -> binary.sink(run.describe(RunSpec::class.java.classLoader).copy(reduction = reduction))
+                    .also { storing[run.seed] = it }
+            output.spill -> FileSink().also { spilled.add(it) }
+            else -> ColumnarSink()
+        }
+        return spec.reduction?.let { ReducingSink(it, stored) } ?: stored
+    }
+
+    fun setup(run: RunSpec, sink: () -> ResultSink): EvaluationTask {
+        val task = deferEvaluation({ memory?.estimate(run) ?: 0 }, seed = run.seed) {
+            val target = sink()
+            val evaluate = { evaluated: RunSpec, recorded: ResultSink ->
+                checkpoint?.setup(evaluated, recorded, pool = pool) ?: pool.setup(evaluated, recorded)
+            }
+            cache?.setup(run, target, evaluate = evaluate) ?: evaluate(run, target)
+        }
+        return costs?.track(run, task) ?: task
+    }
+
+    // the achieved precision is stored with JSON and binary results and next to CSV tables
+    fun storePrecision(fileName: String, precision: List<Precision>) {
+        if (precision.isNotEmpty()) {
+            writePrecision(File(output.directory, fileName.removeSuffix(".gz").removeSuffix(".csv") + ".precision.csv"),
+                    precision)
+        }
+    }
+
+    fun write(results: List<EvaluationState>, precision: List<Precision>) {
+        val completed = BatchEvaluationData(results.filterIsInstance<Completed>().map { described(it.data) })
+
+        when (output.format) {
+            "aggregate" -> {
+                val fileName = output.file ?: "aggregate-${System.currentTimeMillis()}.csv"
+                aggregate.toCSV(output.directory, fileName, reduction)
+                storePrecision(fileName, precision)
+            }
+            "csv" -> if (completed.data.isNotEmpty()) {
+                val fileName = output.file ?: completed.autoName(if (output.compress) "csv.gz" else "csv")
+                completed.toCSV(output.directory, fileName, output.compress, parallel = true)
+                storePrecision(fileName, precision)
+            }
+            "json" -> json?.close(precision)
+            "binary" -> binary?.close(precision)
+            else -> System.err.println("Unknown output format '${output.format}'.")
+        }
+        synchronized(spilled) { spilled.forEach { it.delete() } }
+        costs?.save()
+
+        states = results
+        latch.countDown()
+    }
+
+    var reached = true
+    val precision = spec.precision
+
+    // runs of distributed batches are evaluated by workers, some of which may be started here
+    val distributed = spec.distributed
+    val coordinator = distributed?.let {
+        Coordinator(it.port, it.maxAttempts, it.workerTimeout,
+                it.bind?.let(InetAddress::getByName) ?: InetAddress.getLoopbackAddress())
+    }
+    val workers = if (distributed != null && coordinator != null) {
+        System.err.println("Accepting workers on port ${coordinator.port}")
+        coordinator.launchLocalWorkers(distributed.localWorkers)
+    } else emptyList()
+
+    val interrupter = when {
+        coordinator != null -> coordinator.run(spec.runs, { write(it, emptyList()) }, progress, ::sinks)
+        precision == null -> runBatch(spec.runs.map { run -> setup(run) { sinks(run) } }, { write(it, emptyList()) },
+                progress, executor, spec.budget, metrics, memory, costs != null)
+        else -> SequentialSeeds(spec.runs.first(), precision.target, precision.statistic, precision.relative,
+                precision.level, precision.minSeeds, spec.seeds.size, spec.seeds.first(), ::sinks, { run, sink -> setup(run) { sink } })
+                .run({ result ->
+                    result.precision.forEach {
+                        System.err.println("${it.metric} (service ${it.service}): ${it.mean} ± ${it.halfWidth} " +
+                                "after ${it.seeds} seeds")
+                    }
+                    reached = result.reached
+                    write(result.states, result.precision)
+                }, progress, executor, spec.budget, metrics, memory, costs != null)
+    }
+
+    // interrupt runs when the process is asked to terminate and give them time to write their
+    // results; checkpoints, if any, are kept
+    val hook = Thread {
+        interrupter()
+        latch.await(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)
+    }
+    Runtime.getRuntime().addShutdownHook(hook)
+
+    latch.await()
+    Runtime.getRuntime().removeShutdownHook(hook)
+    executor.shutdown()
+    metrics.close()
+
+    // workers exit once the coordinator is closed
+    coordinator?.close()
+    workers.forEach { it.waitFor(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS) }
+
+    if (checkpoint != null && states.all { it is Completed }) {
+        checkpoint.clear()
+    }
+
+    return reached && states.all { it is Completed }
+}
+
+/**
+ * Executes the sweep described by [spec] (see [BatchSpec.sweep]), writes the table of aggregated
+ * readings to the output directory and returns true if all runs have completed.
+ */
+private fun runSweep(spec: BatchSpec): Boolean {
+    val executor = Executors.newFixedThreadPool(spec.parallelism)
+    val output = spec.output
+    File(output.directory).mkdirs()
+
+    val sweep = spec.sweep(CostModel(spec.schedule?.history?.let(::File)))
+    val latch = CountDownLatch(1)
+    var states: List<EvaluationState> = emptyList()
+    val finished = { results: List<EvaluationState> ->
+        states = results
+        latch.countDown()
+    }
+
+    val interrupter = if (output.file == null) {
+        sweep.run(output.directory, finished = finished, progress = ::report, executor = executor)
+    } else {
+        sweep.run(output.directory, output.file, finished, ::report, executor)
+    }
+
+    val hook = Thread {
+        interrupter()
+        latch.await(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)
+    }
+    Runtime.getRuntime().addShutdownHook(hook)
+
+    latch.await()
+    Runtime.getRuntime().removeShutdownHook(hook)
+    executor.shutdown()
+
+    return states.all { it is Completed }
+}
+
+/** Reports the end of a run */
+private fun report(state: EvaluationState) = when (state) {
+    is Completed -> System.err.println("Completed run ${state.data.seed}")
+    is Interrupted -> System.err.println("Interrupted run ${state.data.seed} at ${state.tick}")
+    is Faulted -> System.err.println("An exception (${state.thrown}) occurred at ${state.tick}")
+    is TimedOut -> System.err.println("Run timed out at ${state.tick}: ${state.reason}")
+    else -> System.err.println("Something else went wrong ...")
+}
+
+/** Returns the seed of the run that ended in given [state], if it is known */
+private fun seedOf(state: EvaluationState): Int? = when (state) {
+    is Completed -> state.data.seed
+    is Interrupted -> state.data.seed
+    is Faulted -> state.seed
+    is TimedOut -> state.seed
+    else -> null
+}
+
+/**
+ * Answers a query over binary results files (see [ResultsQuery]) and prints the answer. The
+ * first argument selects the statistic: `final` values, `area` under curves or values at `tick=N`
+ * are summarized across selected series, while `curve` prints curves aggregated per tick as CSV.
+ * Options narrow the selection; runs that have not completed are skipped unless `--incomplete` is
+ * given. Remaining arguments are files or directories with `.atbc` files.
+ *
+ * @return False if the arguments are invalid
+ */
+fun query(args: List<String>): Boolean {
+    if (args.isEmpty()) {
+        return false
+    }
+
+    var selection = Selection()
+    val paths = ArrayList<File>()
+    var i = 1
+    while (i < args.size) {
+        when (args[i]) {
+            "--model" -> selection = selection.copy(trustModel = args.getOrNull(++i) ?: return false)
+            "--scenario" -> selection = selection.copy(scenario = args.getOrNull(++i) ?: return false)
+            "--metric" -> selection = selection.copy(metric = args.getOrNull(++i) ?: return false)
+            "--service" -> selection = selection.copy(service = args.getOrNull(++i)?.toIntOrNull() ?: return false)
+            "--incomplete" -> selection = selection.copy(incomplete = true)
+            else -> paths.add(File(args[i]))
+        }
+        i++
+    }
+
+    if (paths.isEmpty()) {
+        return false
+    }
+
+    val query = ResultsQuery.of(paths)
+    val statistic = args[0]
+    val summary = when {
+        statistic == "final" -> query.summarize(Statistic.FINAL, selection)
+        statistic == "area" -> query.summarize(Statistic.AREA, selection)
+        statistic.startsWith("tick=") -> query.summarizeAt(statistic.removePrefix("tick=").toIntOrNull()
+                ?: return false, selection)
+        statistic == "curve" -> {
+            println("tick,Metric,service,n,mean,sd,ciLow,ciHigh")
+            query.curve(selection).forEach {
+                println("${it.tick},\"${it.metric}\",${it.service},${it.count},${it.mean},${it.sd},${it.ciLow},${it.ciHigh}")
+            }
+            return true
+        }
+        else -> return false
+    }
+
+    println((listOf("n", "mean", "sd", "ciLow", "ciHigh") + summary.quantiles.keys.map { "q$it" }).joinToString("\t"))
+    println((listOf(summary.count, summary.mean, summary.sd, summary.ciLow, summary.ciHigh) +
+            summary.quantiles.values).joinToString("\t"))
+    return true
+}
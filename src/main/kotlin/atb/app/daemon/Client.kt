@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.app.daemon
+
+import atb.infrastructure.BatchSpec
+import atb.infrastructure.submitBatch
+import java.io.File
+import java.io.OutputStreamWriter
+
+/**
+ * Submits a batch specification (JSON or YAML) to a running daemon and prints the results it
+ * streams back. The process exits with status 0 if all runs complete and with status 1 otherwise.
+ *
+ * Usage: `ClientKt <port> <specification file>`
+ */
+fun main(args: Array<String>) {
+    if (args.size != 2) {
+        System.err.println("Usage: ClientKt <port> <specification file>")
+        System.exit(2)
+    }
+
+    val succeeded = submitBatch(args[0].toInt(), BatchSpec.toJson(File(args[1])), OutputStreamWriter(System.out))
+    System.exit(if (succeeded) 0 else 1)
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.app.daemon
+
+import atb.infrastructure.EvaluationDaemon
+
+/**
+ * Starts a resident evaluation daemon that accepts batch specifications from local clients.
+ *
+ * Usage: `DaemonKt <port> [<threads>]`
+ */
+fun main(args: Array<String>) {
+    if (args.isEmpty() || args.size > 2) {
+        System.err.println("Usage: DaemonKt <port> [<threads>]")
+        System.exit(1)
+    }
+
+    val threads = if (args.size == 2) args[1].toInt() else Runtime.getRuntime().availableProcessors()
+    val daemon = EvaluationDaemon(args[0].toInt(), threads).start()
+    Runtime.getRuntime().addShutdownHook(Thread { daemon.close() })
+    Thread.currentThread().join()
+}
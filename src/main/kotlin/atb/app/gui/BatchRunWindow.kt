@@ -12,6 +12,7 @@ import javafx.geometry.Orientation
 import javafx.scene.layout.Priority
 import javafx.util.converter.NumberStringConverter
 import tornadofx.*
+import java.io.File
 
 class BatchRunView : View() {
     private val controller: BatchRunController by inject()
@@ -39,6 +40,9 @@ class BatchRunView : View() {
                     }
                 }
             }
+            field("Checkpoint runs") {
+                checkbox(property = controller.checkpointing)
+            }
             enableWhen { controller.isRunning.not() }
         }
         fieldset("Manage run") {
@@ -79,6 +83,8 @@ class BatchRunController : Controller() {
     val logger = SimpleStringProperty("")
     val progress = SimpleDoubleProperty(0.0)
     val outputDirectory = SimpleStringProperty(System.getProperty("user.dir"))
+    /** When set, runs are checkpointed to the output directory and resumed if the batch is restarted */
+    val checkpointing = SimpleBooleanProperty(false)
 
     val isRunning = SimpleBooleanProperty(false)
 
@@ -94,52 +100,65 @@ class BatchRunController : Controller() {
         }
 
         val duration = gui.setupParameters[5] as Int
-        val tasks = (start.value..stop.value).map { seed ->
-            // To avoid threading issues, we have to copy instances of TMs and scenarios
-            // in every run; the ones we get from ParametersGUI are not thread safe.
-            val model = (gui.setupParameters[1] as TrustModel<*>).javaClass.newInstance()
-            val scenario = (gui.setupParameters[0] as Scenario).javaClass.newInstance()
+        val checkpoint = if (checkpointing.value) BatchCheckpoint(File(outputDirectory.value, "checkpoints")) else null
+        val specs = (start.value..stop.value).map { seed ->
+            // Runs are described by specifications; every run creates its own instances of
+            // TMs and scenarios, since the ones we get from ParametersGUI are not thread safe.
+            val model = gui.setupParameters[1] as TrustModel<*>
+            val scenario = gui.setupParameters[0] as Scenario
 
             val metrics = HashMap<Metric, Array<Any>>()
             gui.setupParameters[2]?.let { metrics[it as Accuracy] = gui.accuracyParameters }
             gui.setupParameters[3]?.let { metrics[it as Utility] = gui.utilityParameters }
             gui.setupParameters[4]?.let { metrics[it as OpinionCost] = gui.opinionCostParameters }
 
-            val protocol = createProtocol(model, gui.trustModelParameters,
-                    scenario, gui.scenarioParameters, metrics, seed)
-            setupEvaluation(protocol, duration, metrics.keys)
+            RunSpec.of(model, gui.trustModelParameters, scenario, gui.scenarioParameters, metrics, seed, duration)
+        }
+
+        if (checkpoint != null) {
+            val resumed = specs.size - checkpoint.unfinished(specs).size
+            if (resumed > 0) {
+                logger.value += "Restoring $resumed completed runs from ${checkpoint.directory}.\n"
+            }
         }
 
         val progressRate = 1.0 / (stop.value - start.value)
         progress.value = 0.0
 
-        interrupter = runBatch(tasks, { results ->
+        val finished = { results: List<EvaluationState> ->
             Platform.runLater {
                 progress.value = 100.0
                 isRunning.value = false
                 when {
                     results.any { it is Interrupted } -> logger.value += "Evaluation was interrupted.\n"
                     results.any { it is Faulted } -> logger.value += "Some runs failed.\n"
+                    results.any { it is TimedOut } -> logger.value += "Some runs timed out.\n"
                     results.all { it is Completed } -> {
                         logger.value += "Evaluation completed.\n"
                         BatchEvaluationData(results.map { (it as Completed).data })
                                 .toJSON(outputDirectory.value)
                         logger.value += "Results saved to ${outputDirectory.value}.\n"
+                        checkpoint?.clear()
                     }
                     else -> throw IllegalStateException("All states have to be complete")
                 }
             }
-        }, {
+        }
+        val runFinished = { state: EvaluationState ->
             Platform.runLater {
-                when (it) {
-                    is Completed -> logger.value += "Completed run ${it.data.seed}\n"
-                    is Interrupted -> logger.value += "Interrupted run ${it.data.seed} at ${it.tick}\n"
-                    is Faulted -> logger.value += "An exception (${it.thrown}) occurred at ${it.tick}\n"
+                when (state) {
+                    is Completed -> logger.value += "Completed run ${state.data.seed}\n"
+                    is Interrupted -> logger.value += "Interrupted run ${state.data.seed} at ${state.tick}\n"
+                    is Faulted -> logger.value += "An exception (${state.thrown}) occurred at ${state.tick}\n"
+                    is TimedOut -> logger.value += "Run timed out at ${state.tick}: ${state.reason}\n"
                     else -> logger.value += "Something else went wrong ...\n"
                 }
                 progress.value += progressRate
             }
-        })
+        }
+
+        interrupter = checkpoint?.run(specs, finished, runFinished)
+                ?: runBatch(specs.map { spec -> deferEvaluation(seed = spec.seed) { spec.setup() } }, finished, runFinished)
         isRunning.value = true
     }
 }
\ No newline at end of file
@@ -74,6 +74,7 @@ class ATBMainView : View() {
         override fun toString(value: EvaluationState): String = when (value) {
             is Interrupted -> "Interrupted at ${value.tick}"
             is Faulted -> "Error occurred at ${value.tick}: ${value.thrown.message}"
+            is TimedOut -> "Timed out at ${value.tick}: ${value.reason}"
             else -> value.javaClass.simpleName
         }
     }
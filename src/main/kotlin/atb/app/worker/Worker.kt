@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.app.worker
+
+import atb.infrastructure.runWorker
+
+/**
+ * Starts a worker that evaluates runs assigned by a coordinator.
+ *
+ * Usage: `WorkerKt <coordinator host> <coordinator port>`
+ */
+fun main(args: Array<String>) {
+    if (args.size != 2) {
+        System.err.println("Usage: WorkerKt <coordinator host> <coordinator port>")
+        System.exit(1)
+    }
+
+    runWorker(args[0], args[1].toInt())
+}
@@ -0,0 +1,170 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import com.opencsv.CSVWriter
+import java.io.File
+import java.io.FileWriter
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+
+/** A per-run summary of a metric's curve on which the precision of a batch is judged */
+enum class Statistic {
+    /** Value at the last tick */
+    FINAL,
+    /** Sum of values over all ticks */
+    AREA
+}
+
+/** Achieved precision of the mean of a [Statistic] of [metric] for a [service] across [seeds] runs */
+data class Precision(val metric: String, val service: Int, val seeds: Int, val mean: Double, val halfWidth: Double)
+
+/**
+ * Outcome of a [SequentialSeeds] batch: final [states] of all runs, the [precision] achieved for
+ * every metric and service, and whether the target precision was [reached] before the seed cap.
+ */
+data class SequentialResult(val states: List<EvaluationState>, val precision: List<Precision>, val reached: Boolean)
+
+/**
+ * Runs seeds of [spec] in waves until the confidence interval of the mean of the [statistic] of every
+ * metric and service is narrow enough, or until [maxSeeds] seeds have been run. The interval at
+ * [level] must have a half-width of at most [target]; when [relative] is set, the half-width is
+ * compared to the magnitude of the mean instead.
+ *
+ * The first wave runs [minSeeds] seeds; every next wave runs as many seeds as the current
+ * variance suggests are still needed, but at most as many as the executor runs at once.
+ * Seeds are numbered from [firstSeed]. Tasks are created by [setup] from the specification of a
+ * seed and a sink; readings are stored in sinks created by [sinks] for the specification of a seed.
+ * Statistics are computed from readings before they reach these sinks, so sinks may reduce readings
+ * (see [ReducingSink]) without affecting the precision.
+ */
+class SequentialSeeds(val spec: RunSpec, val target: Double, val statistic: Statistic = Statistic.FINAL,
+                      val relative: Boolean = false, val level: Double = 0.95, val minSeeds: Int = 4,
+                      val maxSeeds: Int = 100, val firstSeed: Int = 1,
+                      val sinks: (RunSpec) -> ResultSink = { ColumnarSink() },
+                      val setup: (RunSpec, ResultSink) -> EvaluationTask = { run, sink -> deferEvaluation(seed = run.seed) { run.setup(sink) } }) {
+
+    /**
+     * Runs the waves on [executor]; [progress] is invoked after every run and [finished] once the
+     * batch stops. Every run is subject to the [budget], and waves are run as batches that report
+     * to [metrics] and admit runs by [memory] and, with [longestFirst], by decreasing cost (see [runBatch]).
+     *
+     * @return A handle that interrupts the current wave and prevents further waves
+     */
+    fun run(finished: (SequentialResult) -> Unit, progress: (EvaluationState) -> Unit = {},
+            executor: Executor = ForkJoinPool.commonPool(), budget: Budget = Budget.UNLIMITED,
+            metrics: BatchMetrics? = null, memory: MemoryBudget? = null, longestFirst: Boolean = false): () -> Unit {
+        val wave = Math.max(slots(executor), 1)
+        val summaries = LinkedHashMap<Pair<String, Int>, Welford>()
+        val states = ArrayList<EvaluationState>()
+        var interrupter: () -> Unit = {}
+        var isInterrupted = false
+
+        fun launch(count: Int) {
+            val seeds = (firstSeed + states.size) until (firstSeed + states.size + count)
+            val runs = seeds.map { spec.copy(seed = it) }
+            val summarizing = runs.map { SummarySink(sinks(it)) }
+            val tasks = runs.zip(summarizing).map { (run, sink) -> setup(run, sink) }
+
+            val handle = runBatch(tasks, { results ->
+                val next = synchronized(this) {
+                    states.addAll(results)
+                    results.indices.filter { results[it] is Completed }.forEach { index ->
+                        summarizing[index].summaries(statistic).forEach { key, value ->
+                            summaries.getOrPut(key) { Welford() }.add(value)
+                        }
+                    }
+
+                    if (isInterrupted) 0 else remaining(summaries, states.size)
+                }
+
+                if (next > 0) {
+                    launch(Math.min(next, wave))
+                } else {
+                    finished(SequentialResult(states, precision(summaries), reached(summaries)))
+                }
+            }, progress, executor, budget, metrics, memory, longestFirst)
+
+            synchronized(this) { interrupter = handle }
+        }
+
+        launch(Math.min(Math.max(minSeeds, 2), maxSeeds))
+
+        return {
+            synchronized(this) {
+                isInterrupted = true
+                interrupter
+            }()
+        }
+    }
+
+    private fun precision(summaries: Map<Pair<String, Int>, Welford>): List<Precision> =
+            summaries.map { (key, welford) ->
+                Precision(key.first, key.second, welford.count, welford.mean, welford.halfWidth(level))
+            }
+
+    private fun tolerance(welford: Welford) = if (relative) target * Math.abs(welford.mean) else target
+
+    private fun reached(summaries: Map<Pair<String, Int>, Welford>) = summaries.isNotEmpty() &&
+            summaries.values.all { it.halfWidth(level) <= tolerance(it) }
+
+    /** Returns the number of seeds still needed to reach the target, limited by the seed cap */
+    private fun remaining(summaries: Map<Pair<String, Int>, Welford>, used: Int): Int {
+        if (used >= maxSeeds || reached(summaries)) {
+            return 0
+        }
+
+        // the half-width shrinks with the square root of the number of seeds
+        val needed = summaries.values.map {
+            val halfWidth = it.halfWidth(level)
+            val tolerance = tolerance(it)
+            if (it.count < 2 || tolerance <= 0 || halfWidth.isInfinite()) used + 1
+            else Math.ceil(it.count * (halfWidth / tolerance) * (halfWidth / tolerance)).toInt()
+        }.max() ?: used + 1
+
+        return Math.min(Math.max(needed - used, 1), maxSeeds - used)
+    }
+}
+
+/**
+ * Writes the achieved [precision] of a batch to a CSV [file] with the following header:
+ * ```
+ * "Metric", "service", "seeds", "mean", "halfWidth"
+ * ```
+ */
+fun writePrecision(file: File, precision: List<Precision>) {
+    val writer = CSVWriter(FileWriter(file))
+    writer.writeNext(arrayOf("Metric", "service", "seeds", "mean", "halfWidth"))
+    precision.forEach {
+        writer.writeNext(arrayOf(it.metric, it.service.toString(), it.seeds.toString(), it.mean.toString(),
+                it.halfWidth.toString()))
+    }
+    writer.close()
+}
+
+/** Passes readings to a [delegate] while keeping the last value and the sum of values of every curve */
+private class SummarySink(private val delegate: ResultSink) : ResultSink {
+    private val last = HashMap<Pair<String, Int>, Double>()
+    private val area = HashMap<Pair<String, Int>, Double>()
+    private val names = HashMap<Metric, String>()
+
+    override val size: Int
+        get() = delegate.size
+
+    override fun write(reading: Reading) {
+        val key = Pair(names.getOrPut(reading.metric) { reading.metric.toString() }, reading.service)
+        last[key] = reading.value
+        area[key] = (area[key] ?: 0.0) + reading.value
+        delegate.write(reading)
+    }
+
+    fun summaries(statistic: Statistic): Map<Pair<String, Int>, Double> = when (statistic) {
+        Statistic.FINAL -> last
+        Statistic.AREA -> area
+    }
+
+    override fun iterator(): Iterator<Reading> = delegate.iterator()
+
+    override fun cursor(): ReadingCursor = delegate.cursor()
+
+    override fun close() = delegate.close()
+}
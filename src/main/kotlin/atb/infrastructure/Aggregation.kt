@@ -0,0 +1,206 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import com.opencsv.CSVWriter
+import org.apache.commons.math3.distribution.TDistribution
+import java.io.File
+import java.io.FileWriter
+import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+
+/** Computes the mean and the variance of a stream of values in a single pass (Welford's algorithm) */
+class Welford {
+    var count: Int = 0
+        private set
+    var mean: Double = 0.0
+        private set
+    private var m2: Double = 0.0
+
+    /** Sample variance; zero when fewer than two values were added */
+    val variance: Double
+        get() = if (count > 1) m2 / (count - 1) else 0.0
+
+    val sd: Double
+        get() = Math.sqrt(variance)
+
+    fun add(value: Double) {
+        count++
+        val delta = value - mean
+        mean += delta / count
+        m2 += delta * (value - mean)
+    }
+
+    /** Returns the half-width of the confidence interval of the mean at given [level] (Student's t) */
+    fun halfWidth(level: Double = 0.95): Double {
+        if (count < 2) {
+            return Double.POSITIVE_INFINITY
+        }
+
+        val t = TDistribution(null, (count - 1).toDouble()).inverseCumulativeProbability(0.5 + level / 2)
+        return t * sd / Math.sqrt(count.toDouble())
+    }
+}
+
+/**
+ * Estimates the [p]-quantile of a stream of values in constant memory using the P² algorithm
+ * (R. Jain and I. Chlamtac, 1985).
+ */
+class P2Quantile(val p: Double) {
+    private val heights = DoubleArray(5)
+    private val positions = IntArray(5) { it + 1 }
+    private val desired = doubleArrayOf(1.0, 1 + 2 * p, 1 + 4 * p, 3 + 2 * p, 5.0)
+    private val increments = doubleArrayOf(0.0, p / 2, p, (1 + p) / 2, 1.0)
+    private var count = 0
+
+    /** Current estimate of the quantile */
+    val value: Double
+        get() = when {
+            count == 0 -> Double.NaN
+            count < 5 -> heights.copyOf(count).sorted()[Math.round(p * (count - 1)).toInt()]
+            else -> heights[2]
+        }
+
+    fun add(x: Double) {
+        if (count < 5) {
+            heights[count++] = x
+            if (count == 5) {
+                heights.sort()
+            }
+            return
+        }
+
+        count++
+
+        val cell = when {
+            x < heights[0] -> {
+                heights[0] = x
+                0
+            }
+            x >= heights[4] -> {
+                heights[4] = x
+                3
+            }
+            else -> (0..3).first { x < heights[it + 1] }
+        }
+
+        for (i in cell + 1..4) positions[i]++
+        for (i in 0..4) desired[i] += increments[i]
+
+        for (i in 1..3) {
+            val d = desired[i] - positions[i]
+            if (d >= 1 && positions[i + 1] - positions[i] > 1 || d <= -1 && positions[i - 1] - positions[i] < -1) {
+                val s = if (d > 0) 1 else -1
+                val candidate = parabolic(i, s)
+                heights[i] = if (heights[i - 1] < candidate && candidate < heights[i + 1]) candidate else linear(i, s)
+                positions[i] += s
+            }
+        }
+    }
+
+    private fun parabolic(i: Int, s: Int): Double {
+        val n0 = positions[i - 1].toDouble()
+        val n1 = positions[i].toDouble()
+        val n2 = positions[i + 1].toDouble()
+        return heights[i] + s / (n2 - n0) * ((n1 - n0 + s) * (heights[i + 1] - heights[i]) / (n2 - n1) +
+                (n2 - n1 - s) * (heights[i] - heights[i - 1]) / (n1 - n0))
+    }
+
+    private fun linear(i: Int, s: Int): Double =
+            heights[i] + s * (heights[i + s] - heights[i]) / (positions[i + s] - positions[i])
+}
+
+/** An aggregated value of a metric for a service at a tick across all seeds of a batch */
+data class AggregatePoint(val tick: Int, val metric: String, val service: Int, val count: Int,
+                          val mean: Double, val sd: Double, val ciLow: Double, val ciHigh: Double,
+                          val quantiles: Map<Double, Double>)
+
+/**
+ * Folds readings of many evaluation runs into per-(metric, service, tick) accumulators as
+ * ticks complete, so that per-seed readings need not be retained. Metrics are identified
+ * by their names, since every run uses its own metric instances.
+ *
+ * Each accumulator tracks the mean and the variance; when [quantiles] are given, it also
+ * estimates the requested quantiles. Confidence intervals are computed at given [level].
+ * The aggregate can be written to concurrently by many runs.
+ */
+class BatchAggregate(val quantiles: DoubleArray = doubleArrayOf(), val level: Double = 0.95) {
+    private val series = ConcurrentHashMap<Pair<String, Int>, ArrayList<Accumulator>>()
+
+    /** Adds a single [reading] */
+    fun add(reading: Reading) = add(reading.tick, reading.metric, reading.service, reading.value)
+
+    fun add(tick: Int, metric: Metric, service: Int, value: Double) = add(tick, metric.toString(), service, value)
+
+    /** Adds a value of a metric given by its [metric] name */
+    fun add(tick: Int, metric: String, service: Int, value: Double) {
+        val accumulators = series.computeIfAbsent(Pair(metric, service)) { ArrayList() }
+
+        synchronized(accumulators) {
+            while (accumulators.size < tick) {
+                accumulators.add(Accumulator(quantiles))
+            }
+            accumulators[tick - 1].add(value)
+        }
+    }
+
+    /** Returns aggregated curves ordered by metric, service and tick */
+    fun points(): List<AggregatePoint> = series.entries
+            .sortedWith(compareBy({ it.key.first }, { it.key.second }))
+            .flatMap { (key, accumulators) ->
+                synchronized(accumulators) {
+                    accumulators.mapIndexedNotNull { index, acc ->
+                        if (acc.welford.count == 0) null else {
+                            val halfWidth = acc.welford.halfWidth(level)
+                            AggregatePoint(index + 1, key.first, key.second, acc.welford.count,
+                                    acc.welford.mean, acc.welford.sd,
+                                    acc.welford.mean - halfWidth, acc.welford.mean + halfWidth,
+                                    acc.sketches.associate { it.p to it.value })
+                        }
+                    }
+                }
+            }
+
+    /**
+     * Writes the aggregated curves to a CSV file. The file contains the following header
+     * (followed by a column for every requested quantile):
+     * ```
+     * "tick", "Metric", "service", "n", "mean", "sd", "ciLow", "ciHigh"
+     * ```
+     * If the aggregated readings were reduced, a last `"reduction"` column names the [reduction].
+     */
+    fun toCSV(path: String = System.getProperty("user.dir"), fileName: String, reduction: String? = null) {
+        val writer = CSVWriter(FileWriter(File(Paths.get(path, fileName).toUri())))
+        writer.writeNext(arrayOf("tick", "Metric", "service", "n", "mean", "sd", "ciLow", "ciHigh") +
+                quantiles.map { "q$it" } + listOfNotNull(reduction?.let { "reduction" }))
+        points().forEach { point ->
+            writer.writeNext(arrayOf(point.tick.toString(), point.metric, point.service.toString(),
+                    point.count.toString(), point.mean.toString(), point.sd.toString(),
+                    point.ciLow.toString(), point.ciHigh.toString()) +
+                    quantiles.map { point.quantiles[it].toString() } + listOfNotNull(reduction))
+        }
+        writer.close()
+    }
+
+    private class Accumulator(quantiles: DoubleArray) {
+        val welford = Welford()
+        val sketches = quantiles.map { P2Quantile(it) }
+
+        fun add(value: Double) {
+            welford.add(value)
+            sketches.forEach { it.add(value) }
+        }
+    }
+}
+
+/** Folds readings into a [BatchAggregate] instead of storing them */
+class AggregatingSink(val aggregate: BatchAggregate) : ResultSink {
+    override var size: Int = 0
+        private set
+
+    override fun write(reading: Reading) {
+        aggregate.add(reading)
+        size++
+    }
+
+    override fun iterator(): Iterator<Reading> = emptyList<Reading>().iterator()
+}
@@ -0,0 +1,292 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import atb.interfaces.Scenario
+import atb.interfaces.TrustModel
+import com.google.gson.Gson
+import com.google.gson.JsonElement
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import org.yaml.snakeyaml.Yaml
+import java.io.File
+
+/** Describes where and how the results of a batch are written */
+data class OutputSpec(val format: String = "json", val directory: String = System.getProperty("user.dir"),
+                      val file: String? = null, val spill: Boolean = false, val compress: Boolean = false)
+
+/** Names the [directory] of a [RunCache] that may grow up to [maxBytes] */
+data class CacheSpec(val directory: String, val maxBytes: Long = 1L shl 30)
+
+/**
+ * With [longestFirst], runs are started in the order of decreasing estimated running times (see
+ * [CostModel]); observed tick rates are kept in the [history] file, if given, for later batches
+ */
+data class ScheduleSpec(val longestFirst: Boolean = false, val history: String? = null)
+
+/**
+ * Requests seeds to be run in waves until the confidence interval of every metric's [statistic]
+ * (`final` or `area`) has a half-width of at most [target] (see [SequentialSeeds])
+ */
+data class PrecisionSpec(val target: Double, val statistic: Statistic = Statistic.FINAL,
+                         val relative: Boolean = false, val level: Double = 0.95, val minSeeds: Int = 4)
+
+/**
+ * Requests runs to be evaluated by workers that connect to a [Coordinator] on [port] of the [bind]
+ * address (the loopback interface if not given); [localWorkers] workers are started on this machine
+ */
+data class DistributedSpec(val port: Int = 0, val bind: String? = null, val localWorkers: Int = 0,
+                           val maxAttempts: Int = 3, val workerTimeout: Long = 60_000)
+
+/**
+ * Specification of a batch of evaluation runs, typically read from a JSON or a YAML file:
+ * ```json
+ * {
+ *   "scenario": {"class": "atb.scenario.Transitive", "parameters": [100, 0.05, 0.1, 1.0, 1.0]},
+ *   "trustModel": {"class": "atb.trustmodel.AbdulRahmanHailes", "parameters": []},
+ *   "metrics": [{"class": "atb.metric.KendallsTauA", "parameters": []}],
+ *   "seeds": {"start": 1, "stop": 30},
+ *   "duration": 500,
+ *   "parallelism": 4,
+ *   "checkpoint": "checkpoints",
+ *   "cache": {"directory": "cache", "maxBytes": 1073741824},
+ *   "schedule": {"longestFirst": true, "history": "costs.tsv"},
+ *   "budget": {"wallClock": 600000, "tick": 5000},
+ *   "monitor": {"port": 9100},
+ *   "memory": {"maxBytes": 8000000000},
+ *   "precision": {"target": 0.01, "statistic": "final", "relative": false, "level": 0.95, "minSeeds": 4},
+ *   "reduction": {"policy": "every", "k": 10},
+ *   "distributed": {"port": 7700, "bind": "0.0.0.0", "localWorkers": 2, "maxAttempts": 3, "workerTimeout": 60000},
+ *   "output": {"format": "json", "directory": "results", "file": "batch.json", "spill": false, "compress": false}
+ * }
+ * ```
+ * Whole numbers among parameters are given to plugins as integers and the remaining numbers as
+ * doubles. Objects are given as maps whose keys that name plugin classes are replaced with their
+ * instances; for instance, the deception models of `atb.scenario.Random` are given as
+ * `{"atb.deceptionmodel.Truthful": 0.7, "atb.deceptionmodel.Complementary": 0.3}`. Seeds may also be listed, for instance `"seeds": [1, 5, 7]`. The output format is
+ * either `json`, `csv`, `binary` (see [ResultsWriter]) or `aggregate` (curves aggregated across
+ * seeds); with `spill`, readings are buffered on disk during runs. JSON results are written as
+ * runs complete; with `compress`, JSON and CSV files are compressed with gzip. When `checkpoint`
+ * names a directory, runs are checkpointed there and resumed when the batch is restarted. With
+ * `cache`, results of completed runs are kept in given directory and reused by later batches
+ * that contain the same runs (see [RunCache]). With `schedule`, runs may be started longest first,
+ * which shortens batches whose runs differ in cost (see [ScheduleSpec]).
+ *
+ * The `budget` limits, in milliseconds, how long a run and a single tick may take (see [Budget]).
+ * With `monitor`, batch metrics are served as plain text on given local port (see [BatchMetrics]).
+ * With `memory`, runs are admitted only while their estimated footprints fit the given heap budget
+ * (see [MemoryBudget]). With `precision`, seeds are run in waves until the target precision is
+ * reached, starting with the first seed and using at most as many seeds as are specified; the achieved
+ * precision is stored in JSON and binary results and written to a `.precision.csv` file next to CSV
+ * and aggregate results.
+ * With `reduction`, readings are reduced as they are written (see [Reduction]): the policy is
+ * either `every` (keeps every `k`-th tick), `envelope` (mean, minimum and maximum in windows of
+ * `width` ticks) or `deviation` (drops readings within `epsilon` of a linear interpolation).
+ *
+ * With `distributed`, runs are evaluated by worker processes instead of local threads (see
+ * [Coordinator]): `localWorkers` workers are started on this machine, and others may be started on
+ * hosts that reach the `bind` address. A run whose worker disconnects is handed to another worker,
+ * up to `maxAttempts` times. Workers evaluate one run at a time, so `parallelism`, `budget`,
+ * `memory` and `schedule` do not apply; distributed batches cannot be combined with `precision`,
+ * `checkpoint`, `cache` or a sweep.
+ *
+ * Parameters of the trust model and the scenario may be swept: in place of `parameters`, the plugin
+ * lists the values of every position in `sweep`, for instance
+ * `"sweep": [[100, 200], 0.05, 0.1, 1.0, [0.5, 1.0]]`, and every combination is run with every seed
+ * (see [Sweep]). Runs are started longest first, and observed tick rates are kept in the `history`
+ * of `schedule`, if given. Readings are aggregated across seeds into a table that is written as CSV
+ * to the `output` directory and `file`; sweeps cannot be combined with `precision`, `checkpoint` or `cache`.
+ *
+ * Only `scenario`, `trustModel`, `metrics`, `seeds` and `duration` are mandatory.
+ */
+data class BatchSpec(val trustModel: String, val trustModelParams: List<Any>,
+                     val scenario: String, val scenarioParams: List<Any>,
+                     val metrics: Map<String, List<Any>>, val seeds: List<Int>, val duration: Int,
+                     val parallelism: Int = Runtime.getRuntime().availableProcessors(),
+                     val checkpoint: String? = null, val output: OutputSpec = OutputSpec(),
+                     val budget: Budget = Budget.UNLIMITED, val monitorPort: Int? = null,
+                     val memoryBudget: Long? = null, val precision: PrecisionSpec? = null,
+                     val reduction: Reduction? = null, val cache: CacheSpec? = null,
+                     val schedule: ScheduleSpec? = null, val trustModelSpace: ParameterSpace? = null,
+                     val scenarioSpace: ParameterSpace? = null, val distributed: DistributedSpec? = null) {
+
+    /** True if parameters of the trust model or of the scenario are swept */
+    val isSweep: Boolean
+        get() = trustModelSpace != null || scenarioSpace != null
+
+    /** Specifications of individual runs, one for every seed and every combination of swept parameters */
+    val runs: List<RunSpec>
+        get() = (trustModelSpace ?: ParameterSpace.of(*trustModelParams.toTypedArray())).expand().flatMap { modelParams ->
+            (scenarioSpace ?: ParameterSpace.of(*scenarioParams.toTypedArray())).expand().flatMap { params ->
+                seeds.map { RunSpec(trustModel, modelParams, scenario, params, metrics, it, duration) }
+            }
+        }
+
+    /** Returns the sweep of this specification; its runs are started longest first by the [costModel] */
+    fun sweep(costModel: CostModel = CostModel(), classLoader: ClassLoader = RunSpec::class.java.classLoader): Sweep =
+            Sweep(classLoader.loadClass(trustModel).asSubclass(TrustModel::class.java),
+                    trustModelSpace ?: ParameterSpace.of(*trustModelParams.toTypedArray()),
+                    classLoader.loadClass(scenario).asSubclass(Scenario::class.java),
+                    scenarioSpace ?: ParameterSpace.of(*scenarioParams.toTypedArray()),
+                    metrics.entries.associate { (name, params) ->
+                        classLoader.loadClass(name).asSubclass(Metric::class.java) to ParameterSpace.of(*params.toTypedArray())
+                    }, seeds, duration, costModel = costModel)
+
+    companion object {
+        /** Reads a specification from a JSON file or, if the extension is `yml` or `yaml`, from a YAML file */
+        fun read(file: File): BatchSpec = when (file.extension.toLowerCase()) {
+            "yml", "yaml" -> fromYaml(file.readText())
+            else -> fromJson(file.readText())
+        }
+
+        fun fromJson(text: String): BatchSpec = parse(JsonParser().parse(text).asJsonObject)
+
+        /** Returns the specification in [file] as compact JSON; YAML files are converted */
+        fun toJson(file: File): String = when (file.extension.toLowerCase()) {
+            "yml", "yaml" -> Gson().toJson(Yaml().load<Any>(file.readText()))
+            else -> JsonParser().parse(file.readText()).toString()
+        }
+
+        fun fromYaml(text: String): BatchSpec = parse(Gson().toJsonTree(Yaml().load<Any>(text)).asJsonObject)
+
+        private fun parse(json: JsonObject): BatchSpec {
+            fun required(name: String): JsonElement =
+                    json.get(name) ?: throw IllegalArgumentException("Specification is missing '$name'.")
+
+            val trustModel = required("trustModel").asJsonObject
+            val scenario = required("scenario").asJsonObject
+            val metrics = required("metrics").asJsonArray.map { it.asJsonObject }
+            val seeds = required("seeds").let {
+                if (it.isJsonArray) it.asJsonArray.map { seed -> seed.asInt }
+                else (it.asJsonObject["start"].asInt..it.asJsonObject["stop"].asInt).toList()
+            }
+
+            if (seeds.distinct().size != seeds.size) {
+                throw IllegalArgumentException("Seeds $seeds are not distinct.")
+            }
+
+            val output = json.get("output")?.asJsonObject?.let {
+                val defaults = OutputSpec()
+                OutputSpec(it.get("format")?.asString ?: defaults.format,
+                        it.get("directory")?.asString ?: defaults.directory,
+                        it.get("file")?.asString,
+                        it.get("spill")?.asBoolean ?: defaults.spill,
+                        it.get("compress")?.asBoolean ?: defaults.compress)
+            } ?: OutputSpec()
+
+            val precision = json.get("precision")?.asJsonObject?.let {
+                val defaults = PrecisionSpec(0.0)
+                PrecisionSpec(it.get("target")?.asDouble
+                        ?: throw IllegalArgumentException("Precision is missing 'target'."),
+                        it.get("statistic")?.asString?.let { name -> Statistic.valueOf(name.toUpperCase()) }
+                                ?: defaults.statistic,
+                        it.get("relative")?.asBoolean ?: defaults.relative,
+                        it.get("level")?.asDouble ?: defaults.level,
+                        it.get("minSeeds")?.asInt ?: defaults.minSeeds)
+            }
+
+            val reduction = json.get("reduction")?.asJsonObject?.let {
+                fun property(name: String): JsonElement = it.get(name)
+                        ?: throw IllegalArgumentException("Reduction is missing '$name'.")
+
+                when (val policy = property("policy").asString) {
+                    "every" -> Reduction.EveryKth(property("k").asInt)
+                    "envelope" -> Reduction.Envelope(property("width").asInt)
+                    "deviation" -> Reduction.Deviation(property("epsilon").asDouble)
+                    else -> throw IllegalArgumentException("Unknown reduction policy '$policy'.")
+                }
+            }
+
+            val cache = json.get("cache")?.asJsonObject?.let {
+                CacheSpec(it.get("directory")?.asString ?: throw IllegalArgumentException("Cache is missing 'directory'."),
+                        it.get("maxBytes")?.asLong ?: CacheSpec("").maxBytes)
+            }
+
+            val schedule = json.get("schedule")?.asJsonObject?.let {
+                ScheduleSpec(it.get("longestFirst")?.asBoolean ?: false, it.get("history")?.asString)
+            }
+
+            val budget = json.get("budget")?.asJsonObject?.let {
+                Budget(it.get("wallClock")?.asLong ?: 0, it.get("tick")?.asLong ?: 0)
+            } ?: Budget.UNLIMITED
+
+            val trustModelSpace = space(trustModel)
+            val scenarioSpace = space(scenario)
+            if ((trustModelSpace != null || scenarioSpace != null) && listOf("precision", "checkpoint", "cache").any { json.has(it) }) {
+                throw IllegalArgumentException("A sweep cannot be combined with 'precision', 'checkpoint' or 'cache'.")
+            }
+
+            val distributed = json.get("distributed")?.asJsonObject?.let {
+                val defaults = DistributedSpec()
+                DistributedSpec(it.get("port")?.asInt ?: defaults.port, it.get("bind")?.asString,
+                        it.get("localWorkers")?.asInt ?: defaults.localWorkers,
+                        it.get("maxAttempts")?.asInt ?: defaults.maxAttempts,
+                        it.get("workerTimeout")?.asLong ?: defaults.workerTimeout)
+            }
+            if (distributed != null && (trustModelSpace != null || scenarioSpace != null ||
+                            listOf("precision", "checkpoint", "cache").any { json.has(it) })) {
+                throw IllegalArgumentException("A distributed batch cannot be combined with 'precision', 'checkpoint', " +
+                        "'cache' or a sweep.")
+            }
+
+            return BatchSpec(className(trustModel), parameters(trustModel),
+                    className(scenario), parameters(scenario),
+                    metrics.associate { className(it) to parameters(it) },
+                    seeds, required("duration").asInt,
+                    json.get("parallelism")?.asInt ?: Runtime.getRuntime().availableProcessors(),
+                    json.get("checkpoint")?.asString, output, budget,
+                    json.get("monitor")?.asJsonObject?.get("port")?.asInt,
+                    json.get("memory")?.asJsonObject?.get("maxBytes")?.asLong, precision, reduction, cache,
+                    schedule, trustModelSpace, scenarioSpace, distributed)
+        }
+
+        private fun className(plugin: JsonObject): String = plugin.get("class")?.asString
+                ?: throw IllegalArgumentException("Plugin $plugin is missing 'class'.")
+
+        private fun parameters(plugin: JsonObject): List<Any> =
+                plugin.get("parameters")?.asJsonArray?.map { parameter(it) } ?: emptyList()
+
+        /** Axes of swept parameters; a position given by a single value is not swept */
+        private fun space(plugin: JsonObject): ParameterSpace? {
+            val axes = plugin.get("sweep")?.asJsonArray ?: return null
+            if (plugin.has("parameters")) {
+                throw IllegalArgumentException("Plugin $plugin has both 'parameters' and 'sweep'.")
+            }
+
+            return ParameterSpace(*axes.map { axis ->
+                if (axis.isJsonArray) axis.asJsonArray.map { parameter(it) } else listOf(parameter(axis))
+            }.toTypedArray())
+        }
+
+        private fun parameter(element: JsonElement): Any {
+            if (element.isJsonObject) {
+                return element.asJsonObject.entrySet().associateTo(HashMap<Any, Any>()) { (key, value) ->
+                    key(key) to parameter(value)
+                }
+            }
+
+            if (!element.isJsonPrimitive) {
+                throw IllegalArgumentException("Parameter $element is not a number, a boolean, a string or an object.")
+            }
+
+            val primitive = element.asJsonPrimitive
+            return when {
+                primitive.isBoolean -> primitive.asBoolean
+                primitive.isNumber -> primitive.asString.let<String, Any> {
+                    if (it.contains('.') || it.contains('e', ignoreCase = true)) it.toDouble() else it.toInt()
+                }
+                else -> primitive.asString
+            }
+        }
+
+        /** Keys that name plugin classes, such as deception models, are replaced with their instances */
+        private fun key(name: String): Any {
+            val clazz = try {
+                Class.forName(name)
+            } catch (e: ClassNotFoundException) {
+                return name
+            }
+
+            return if (isPlugin(clazz)) clazz.newInstance() else name
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.Supplier
+
+/**
+ * Makes batch runs durable by checkpointing them to [directory]. Every run is identified by the
+ * hash of its [RunSpec]:
+ *
+ * - a completed run is stored in a `.done` file;
+ * - a running run appends its readings to a `.log` file, and every [interval] ticks (and when
+ * the run is interrupted) it syncs the log and records the last complete tick in a `.tick` file.
+ * Runs that fault or time out keep their last periodic checkpoint, since their last tick may
+ * be incomplete.
+ *
+ * When a batch is restarted with the same checkpoint directory, completed runs are restored from
+ * disk without being evaluated. A partially completed run restores readings up to its last
+ * checkpoint and continues from there. Since trust models and scenarios cannot be serialized, the
+ * run reaches the checkpoint by replaying earlier ticks deterministically from its seed without
+ * recording their readings again.
+ *
+ * Runs share their files when their specifications are equal, so equal runs cannot run at once.
+ */
+class BatchCheckpoint(val directory: File, val interval: Int = 100) {
+    /** Hashes of runs that are currently set up or running */
+    private val active = ConcurrentHashMap.newKeySet<String>()
+
+    init {
+        directory.mkdirs()
+    }
+
+    /** Returns true if the run of given [spec] has completed */
+    fun isCompleted(spec: RunSpec, classLoader: ClassLoader = RunSpec::class.java.classLoader): Boolean =
+            file(spec, classLoader, "done").exists()
+
+    /** Returns specifications whose runs have not completed */
+    fun unfinished(specs: List<RunSpec>): List<RunSpec> = specs.filterNot { isCompleted(it) }
+
+    /**
+     * Returns the evaluation task for given [spec] that restores or resumes the run if possible;
+     * evaluated runs take their trust models and scenarios from the [pool], if given.
+     *
+     * @throws IllegalArgumentException If a run with an equal specification is already running
+     */
+    fun setup(spec: RunSpec, sink: ResultSink = ColumnarSink(),
+              classLoader: ClassLoader = RunSpec::class.java.classLoader,
+              pool: InstancePool? = null): EvaluationTask {
+        val hash = spec.hash(classLoader)
+        val done = File(directory, "$hash.done")
+
+        if (done.exists()) {
+            return spec.restored(sink, classLoader) { metrics, restored -> readRun(done, metrics, restored) }
+        }
+
+        if (!active.add(hash)) {
+            throw IllegalArgumentException("Run $spec is already running in this batch.")
+        }
+
+        val task = try {
+            evaluate(spec, hash, sink, classLoader, pool)
+        } catch (e: Throwable) {
+            active.remove(hash)
+            throw e
+        }
+
+        return task.withSupplier(Supplier {
+            try {
+                task.supplier.get()
+            } finally {
+                active.remove(hash)
+            }
+        })
+    }
+
+    private fun evaluate(spec: RunSpec, hash: String, sink: ResultSink, classLoader: ClassLoader,
+                         pool: InstancePool?): EvaluationTask {
+        val done = File(directory, "$hash.done")
+        val log = File(directory, "$hash.log")
+        val progress = File(directory, "$hash.tick")
+
+        val metrics = spec.createMetrics(classLoader)
+        val order = metrics.keys.sortedBy { it.toString() }
+        val checkpointed = if (log.exists() && progress.exists()) restore(log, progress, order, sink) else 0
+
+        val checkpointing = CheckpointSink(sink, log, progress, checkpointed, interval, order)
+        val protocol = pool?.createProtocol(spec, metrics, classLoader) ?: spec.createProtocol(metrics, classLoader)
+        val evaluation = setupEvaluation(protocol, spec.duration, metrics.keys, checkpointing, spec.describe(protocol))
+        val task = pool?.releasing(protocol, evaluation) ?: evaluation
+
+        return task.withSupplier(Supplier {
+            val state = task.supplier.get()
+            when (state) {
+                is Completed -> {
+                    // the log holds every reading of the run, regardless of what the sink retains;
+                    // its rows are encoded as those of a stored run, so they are copied as they are
+                    val temporary = File.createTempFile("atb-", ".tmp", directory)
+                    writeRun(temporary, order, log)
+                    Files.move(temporary.toPath(), done.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE)
+                    log.delete()
+                    progress.delete()
+                }
+                // readings are written only after a tick completes, so the last tick is complete
+                is Interrupted -> checkpointing.record()
+                else -> Unit
+            }
+            state
+        })
+    }
+
+    /**
+     * Runs the batch of given [specs]; completed runs are restored and the remaining ones are resumed.
+     * Trust models and scenarios are reused across runs where possible (see [InstancePool]).
+     *
+     * @return A handle to interrupt the entire run
+     * @throws IllegalArgumentException If [specs] contain equal specifications
+     * @see runBatch
+     */
+    fun run(specs: List<RunSpec>, finished: (List<EvaluationState>) -> Unit,
+            progress: (EvaluationState) -> Unit = {}): () -> Unit {
+        val hashes = specs.map { it.hash() }
+        if (hashes.distinct().size != hashes.size) {
+            throw IllegalArgumentException("Batch contains equal run specifications.")
+        }
+
+        val pool = InstancePool()
+        return runBatch(specs.map { spec -> deferEvaluation(seed = spec.seed) { setup(spec, pool = pool) } }, finished, progress)
+    }
+
+    /** Removes all checkpoints */
+    fun clear() {
+        directory.listFiles { _, name -> name.endsWith(".done") || name.endsWith(".log") || name.endsWith(".tick") }
+                ?.forEach { it.delete() }
+    }
+
+    private fun file(spec: RunSpec, classLoader: ClassLoader, type: String) =
+            File(directory, "${spec.hash(classLoader)}.$type")
+
+    /** Reads logged readings up to the checkpointed tick into [sink], drops the rest and returns the tick */
+    private fun restore(log: File, progress: File, order: List<Metric>, sink: ResultSink): Int {
+        val checkpointed = progress.readText().trim().toInt()
+        val rows = readLog(log, order, sink, checkpointed)
+        RandomAccessFile(log, "rw").use { it.setLength(rows * ROW_BYTES) }
+        return checkpointed
+    }
+
+    /** Reads logged readings of ticks up to [lastTick] into [sink] and returns the number of rows read */
+    private fun readLog(log: File, order: List<Metric>, sink: ResultSink, lastTick: Int): Long {
+        var rows = 0L
+
+        DataInputStream(BufferedInputStream(FileInputStream(log))).use { input ->
+            val total = log.length() / ROW_BYTES
+            while (rows < total) {
+                val tick = input.readInt()
+                if (tick > lastTick) {
+                    break
+                }
+
+                sink.write(Reading(tick, order[input.readShort().toInt()], input.readInt(), input.readDouble()))
+                rows++
+            }
+        }
+
+        return rows
+    }
+
+    /**
+     * Writes readings to the [delegate] and appends them to the [log]. Readings of ticks up to
+     * [replayed] are already restored and are thus ignored.
+     */
+    private class CheckpointSink(private val delegate: ResultSink, log: File, private val progress: File,
+                                 private val replayed: Int, private val interval: Int,
+                                 private val order: List<Metric>) : ResultSink {
+        private val stream = FileOutputStream(log, true)
+        private val output = DataOutputStream(BufferedOutputStream(stream))
+        private var lastTick = replayed
+
+        override val size: Int
+            get() = delegate.size
+
+        override fun write(reading: Reading) {
+            if (reading.tick <= replayed) {
+                return
+            }
+
+            if (reading.tick != lastTick && lastTick > replayed && lastTick % interval == 0) {
+                output.flush()
+                stream.fd.sync()
+                record()
+            }
+
+            lastTick = reading.tick
+            delegate.write(reading)
+            output.writeInt(reading.tick)
+            output.writeShort(order.indexOf(reading.metric))
+            output.writeInt(reading.service)
+            output.writeDouble(reading.value)
+        }
+
+        override fun iterator(): Iterator<Reading> = delegate.iterator()
+
+        override fun cursor(): ReadingCursor = delegate.cursor()
+
+        override fun close() {
+            output.flush()
+            stream.fd.sync()
+            output.close()
+            delegate.close()
+        }
+
+        /** Records the last tick as complete; the log must already be synced */
+        fun record() {
+            val temporary = File(progress.path + ".tmp")
+            temporary.writeText(lastTick.toString())
+            Files.move(temporary.toPath(), progress.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE)
+        }
+    }
+}
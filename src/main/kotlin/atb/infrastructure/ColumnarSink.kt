@@ -0,0 +1,90 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+
+/**
+ * Keeps readings in memory in primitive columns: ticks, dictionary-encoded metrics,
+ * services and values. Columns grow in chunks of [chunkSize] rows, so no
+ * [Reading] instances are retained and no large arrays are ever copied.
+ *
+ * A row takes 17 bytes, which is several times less than a [Reading] instance
+ * referenced from a list.
+ */
+class ColumnarSink(private val chunkSize: Int = 4096) : ResultSink {
+    private val dictionary = ArrayList<Metric>()
+    private val chunks = ArrayList<Chunk>()
+
+    override var size: Int = 0
+        private set
+
+    /** Metrics that appear in the stored readings */
+    val metrics: List<Metric>
+        get() = dictionary
+
+    override fun write(reading: Reading) {
+        val row = size % chunkSize
+
+        if (row == 0) {
+            chunks.add(Chunk(chunkSize))
+        }
+
+        with(chunks.last()) {
+            ticks[row] = reading.tick
+            metrics[row] = encode(reading.metric)
+            services[row] = reading.service
+            values[row] = reading.value
+        }
+
+        size++
+    }
+
+    override fun iterator(): Iterator<Reading> = CursorIterator(cursor())
+
+    override fun cursor(): ReadingCursor = object : ReadingCursor {
+        private var position = -1
+        private lateinit var chunk: Chunk
+        private var row = 0
+
+        override val tick: Int
+            get() = chunk.ticks[row]
+        override val metric: Metric
+            get() = dictionary[chunk.metrics[row].toInt()]
+        override val service: Int
+            get() = chunk.services[row]
+        override val value: Double
+            get() = chunk.values[row]
+
+        override fun next(): Boolean {
+            if (position + 1 >= size) {
+                return false
+            }
+
+            position++
+            chunk = chunks[position / chunkSize]
+            row = position % chunkSize
+            return true
+        }
+    }
+
+    private fun encode(metric: Metric): Byte {
+        var index = dictionary.indexOf(metric)
+
+        if (index < 0) {
+            if (dictionary.size > Byte.MAX_VALUE) {
+                throw IllegalStateException("Cannot store more than ${Byte.MAX_VALUE + 1} metrics.")
+            }
+
+            dictionary.add(metric)
+            index = dictionary.size - 1
+        }
+
+        return index.toByte()
+    }
+
+    private class Chunk(size: Int) {
+        val ticks = IntArray(size)
+        val metrics = ByteArray(size)
+        val services = IntArray(size)
+        val values = DoubleArray(size)
+    }
+}
@@ -0,0 +1,103 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import java.io.*
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.*
+
+/**
+ * Writes evaluation data in the CSV layout of [BatchEvaluationData.toCSV]. Labels (the seed, metric
+ * names, the trust model and the scenario) are quoted once per run, and rows are assembled in a
+ * reused buffer, so numbers are formatted without intermediate strings. If [reduced] is set, rows
+ * also name the reduction of their run.
+ */
+internal class CsvRowWriter(private val output: Writer, private val reduced: Boolean) : Closeable {
+    private val row = StringBuilder(256)
+
+    fun writeHeader() = output.write("\"run\",\"tick\",\"Metric\",\"Name\",\"TrustModel\",\"Scenario\"" +
+            (if (reduced) ",\"Reduction\"" else "") + "\n")
+
+    fun write(data: EvaluationData) {
+        val run = quote(data.seed.toString())
+        val suffix = "," + quote(data.descriptor.trustModel) + "," + quote(data.descriptor.scenario) +
+                (if (reduced) "," + quote(data.descriptor.reduction ?: "") else "") + "\n"
+        val names = IdentityHashMap<Metric, String>()
+
+        data.readings.cursor().use { cursor ->
+            while (cursor.next()) {
+                row.setLength(0)
+                row.append(run).append(",\"").append(cursor.tick).append("\",\"").append(cursor.value).append("\",")
+                        .append(names.getOrPut(cursor.metric) { quote(cursor.metric.toString()) })
+                        .append(suffix)
+                output.append(row)
+            }
+        }
+    }
+
+    override fun close() = output.close()
+
+    private fun quote(label: String) = "\"" + label.replace("\"", "\"\"") + "\""
+}
+
+private fun csvWriter(file: File, gzip: Boolean, reduced: Boolean) =
+        CsvRowWriter(BufferedWriter(OutputStreamWriter(openOutput(file, gzip), Charsets.UTF_8), 1 shl 16), reduced)
+
+private fun anyReduced(data: List<EvaluationData>) = data.any { it.descriptor.reduction != null }
+
+/**
+ * Writes [data] to a single CSV [file]. When [parallel] is set, runs are formatted concurrently into
+ * temporary parts that are then concatenated in order; compressed parts are separate gzip members,
+ * which together form a valid gzip file.
+ */
+internal fun writeCsv(file: File, data: List<EvaluationData>, gzip: Boolean, parallel: Boolean) {
+    val reduced = anyReduced(data)
+    if (!parallel) {
+        csvWriter(file, gzip, reduced).use { writer ->
+            writer.writeHeader()
+            data.forEach { writer.write(it) }
+        }
+        return
+    }
+
+    val directory = file.absoluteFile.parentFile
+    val header = File.createTempFile("atb-", ".part", directory)
+    val parts = data.map { File.createTempFile("atb-", ".part", directory) }
+
+    try {
+        csvWriter(header, gzip, reduced).use { it.writeHeader() }
+        data.indices.toList().parallelStream().forEach { i ->
+            csvWriter(parts[i], gzip, reduced).use { it.write(data[i]) }
+        }
+
+        FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING).use { target ->
+            (listOf(header) + parts).forEach { part ->
+                FileChannel.open(part.toPath()).use { source ->
+                    var position = 0L
+                    while (position < source.size()) {
+                        position += source.transferTo(position, source.size() - position, target)
+                    }
+                }
+            }
+        }
+    } finally {
+        header.delete()
+        parts.forEach { it.delete() }
+    }
+}
+
+/**
+ * Writes every run in [data] concurrently to its own CSV file in [directory]; files are named
+ * `<prefix>-<seed>.csv` (with `.gz` appended when compressed) and are returned in the order of runs.
+ */
+internal fun writeCsvFiles(directory: File, prefix: String, data: List<EvaluationData>, gzip: Boolean): List<File> {
+    val files = data.map { File(directory, "$prefix-${it.seed}.csv" + if (gzip) ".gz" else "") }
+    data.indices.toList().parallelStream().forEach { i ->
+        csvWriter(files[i], gzip, anyReduced(listOf(data[i]))).use { writer ->
+            writer.writeHeader()
+            writer.write(data[i])
+        }
+    }
+    return files
+}
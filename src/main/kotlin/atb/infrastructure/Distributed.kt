@@ -0,0 +1,650 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import java.io.*
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketException
+import java.net.SocketTimeoutException
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import java.util.logging.Logger
+import kotlin.concurrent.withLock
+import kotlin.concurrent.thread
+
+/** Messages exchanged between the coordinator and workers; see [writeMessage] for the encoding */
+internal sealed class Message
+
+/** Coordinator asks a worker to evaluate a run */
+internal data class Assign(val spec: RunSpec) : Message()
+
+/** Coordinator asks a worker to interrupt the current run */
+internal object Interrupt : Message()
+
+/** Coordinator tells a worker that there is no more work */
+internal object Shutdown : Message()
+
+/** A worker streams readings of the current run; metrics are indexes into [metrics] */
+internal class Rows(val metrics: List<String>, val ticks: IntArray, val metricIndexes: ByteArray,
+                    val services: IntArray, val values: DoubleArray, val size: Int) : Message()
+
+/** A worker reports the end of the current run */
+internal data class Done(val state: String, val tick: Int, val error: String?) : Message()
+
+/**
+ * Writes the [message] to the [output]. Messages are encoded with a tag byte followed by their
+ * fields; run specifications are sent by value (see [writeParameter]), so neither side deserializes
+ * arbitrary objects.
+ */
+internal fun writeMessage(output: DataOutputStream, message: Message) {
+    when (message) {
+        is Assign -> {
+            output.writeByte(ASSIGN)
+            writeSpec(output, message.spec)
+        }
+        is Interrupt -> output.writeByte(INTERRUPT)
+        is Shutdown -> output.writeByte(SHUTDOWN)
+        is Rows -> {
+            output.writeByte(ROWS)
+            output.writeShort(message.metrics.size)
+            message.metrics.forEach { writeString(output, it) }
+            output.writeInt(message.size)
+            for (i in 0 until message.size) {
+                output.writeInt(message.ticks[i])
+                output.writeByte(message.metricIndexes[i].toInt())
+                output.writeInt(message.services[i])
+                output.writeDouble(message.values[i])
+            }
+        }
+        is Done -> {
+            output.writeByte(DONE)
+            writeString(output, message.state)
+            output.writeInt(message.tick)
+            output.writeBoolean(message.error != null)
+            message.error?.let { writeString(output, it) }
+        }
+    }
+}
+
+/** Reads a message written by [writeMessage] */
+internal fun readMessage(input: DataInputStream): Message = when (val tag = input.readByte().toInt()) {
+    ASSIGN -> Assign(readSpec(input))
+    INTERRUPT -> Interrupt
+    SHUTDOWN -> Shutdown
+    ROWS -> {
+        val metrics = (1..input.readShort()).map { readString(input) }
+        val size = input.readInt()
+        if (size < 0 || size > MAX_ROWS) {
+            throw IOException("Invalid number of rows $size")
+        }
+
+        val ticks = IntArray(size)
+        val metricIndexes = ByteArray(size)
+        val services = IntArray(size)
+        val values = DoubleArray(size)
+        for (i in 0 until size) {
+            ticks[i] = input.readInt()
+            metricIndexes[i] = input.readByte()
+            services[i] = input.readInt()
+            values[i] = input.readDouble()
+        }
+        Rows(metrics, ticks, metricIndexes, services, values, size)
+    }
+    DONE -> Done(readString(input), input.readInt(), if (input.readBoolean()) readString(input) else null)
+    else -> throw IOException("Unknown message tag $tag")
+}
+
+private fun writeSpec(output: DataOutputStream, spec: RunSpec) {
+    writeString(output, spec.trustModel)
+    writeParameter(output, spec.trustModelParams)
+    writeString(output, spec.scenario)
+    writeParameter(output, spec.scenarioParams)
+    output.writeShort(spec.metrics.size)
+    spec.metrics.forEach { (name, params) ->
+        writeString(output, name)
+        writeParameter(output, params)
+    }
+    output.writeInt(spec.seed)
+    output.writeInt(spec.duration)
+}
+
+private fun readSpec(input: DataInputStream): RunSpec {
+    val trustModel = readString(input)
+    val trustModelParams = readList(input)
+    val scenario = readString(input)
+    val scenarioParams = readList(input)
+    val metrics = LinkedHashMap<String, List<Any>>()
+    repeat(input.readShort().toInt()) { metrics[readString(input)] = readList(input) }
+    return RunSpec(trustModel, trustModelParams, scenario, scenarioParams, metrics, input.readInt(), input.readInt())
+}
+
+/**
+ * Writes a parameter by value: numbers, booleans and strings with their types, lists and maps
+ * element-wise, and plugin objects (such as deception models) by their class names, since their
+ * state is assigned by the plugin that receives them. The receiver creates plugin objects with
+ * their no-argument constructors.
+ *
+ * @throws IllegalArgumentException If the parameter cannot be described by value
+ */
+private fun writeParameter(output: DataOutputStream, value: Any?) {
+    when (value) {
+        is Int -> {
+            output.writeByte(INT)
+            output.writeInt(value)
+        }
+        is Long -> {
+            output.writeByte(LONG)
+            output.writeLong(value)
+        }
+        is Double -> {
+            output.writeByte(DOUBLE)
+            output.writeDouble(value)
+        }
+        is Boolean -> {
+            output.writeByte(BOOLEAN)
+            output.writeBoolean(value)
+        }
+        is String -> {
+            output.writeByte(STRING)
+            writeString(output, value)
+        }
+        is List<*> -> {
+            output.writeByte(LIST)
+            output.writeInt(value.size)
+            value.forEach { writeParameter(output, it) }
+        }
+        is Map<*, *> -> {
+            output.writeByte(MAP)
+            output.writeInt(value.size)
+            value.forEach { (key, element) ->
+                writeParameter(output, key)
+                writeParameter(output, element)
+            }
+        }
+        else -> if (value != null && isPlugin(value.javaClass)) {
+            output.writeByte(PLUGIN)
+            writeString(output, value.javaClass.name)
+        } else {
+            throw IllegalArgumentException("Parameter $value cannot be sent to workers.")
+        }
+    }
+}
+
+private fun readParameter(input: DataInputStream): Any = when (val tag = input.readByte().toInt()) {
+    INT -> input.readInt()
+    LONG -> input.readLong()
+    DOUBLE -> input.readDouble()
+    BOOLEAN -> input.readBoolean()
+    STRING -> readString(input)
+    LIST -> readList(input, tag)
+    MAP -> {
+        val size = readSize(input)
+        val map = HashMap<Any, Any>(size)
+        repeat(size) { map[readParameter(input)] = readParameter(input) }
+        map
+    }
+    PLUGIN -> {
+        val name = readString(input)
+        val clazz = try {
+            Class.forName(name)
+        } catch (e: ClassNotFoundException) {
+            throw IOException(e)
+        }
+
+        if (!isPlugin(clazz)) {
+            throw IOException("Class $name is not a plugin")
+        }
+        clazz.newInstance()
+    }
+    else -> throw IOException("Unknown parameter tag $tag")
+}
+
+private fun readList(input: DataInputStream, tag: Int = input.readByte().toInt()): List<Any> {
+    if (tag != LIST) {
+        throw IOException("Expected a list, got tag $tag")
+    }
+
+    return (1..readSize(input)).map { readParameter(input) }
+}
+
+private fun readSize(input: DataInputStream): Int = input.readInt().also {
+    if (it < 0 || it > MAX_ROWS) {
+        throw IOException("Invalid size $it")
+    }
+}
+
+private fun writeString(output: DataOutputStream, value: String) {
+    val bytes = value.toByteArray(Charsets.UTF_8)
+    output.writeInt(bytes.size)
+    output.write(bytes)
+}
+
+private fun readString(input: DataInputStream): String {
+    val length = input.readInt()
+    if (length < 0 || length > MAX_STRING) {
+        throw IOException("Invalid string length $length")
+    }
+
+    val bytes = ByteArray(length)
+    input.readFully(bytes)
+    return String(bytes, Charsets.UTF_8)
+}
+
+private const val ASSIGN = 1
+private const val INTERRUPT = 2
+private const val SHUTDOWN = 3
+private const val ROWS = 4
+private const val DONE = 5
+
+private const val INT = 1
+private const val LONG = 2
+private const val DOUBLE = 3
+private const val BOOLEAN = 4
+private const val STRING = 5
+private const val LIST = 6
+private const val MAP = 7
+private const val PLUGIN = 8
+
+private const val MAX_ROWS = 1 shl 24
+private const val MAX_STRING = 1 shl 20
+
+/** An exception that occurred while a run was evaluated by a remote worker */
+class RemoteEvaluationException(message: String?) : RuntimeException(message)
+
+/**
+ * Distributes evaluation runs among worker processes. Workers connect to the coordinator's
+ * [port] (use 0 to pick a free one), receive [RunSpec]s, and stream back readings while the runs
+ * execute. If a worker disconnects, its run is put back in the queue and handed to another worker,
+ * up to [maxAttempts] times. If no worker is connected for [workerTimeout] milliseconds while a
+ * batch is evaluated, its queued runs fault. A coordinator evaluates one batch at a time; between
+ * batches, workers stay connected and wait for the next one until the coordinator is closed.
+ *
+ * The coordinator listens on the loopback interface unless another [bindAddress] is given. Workers
+ * can be started on any host that can reach it with
+ * `java -cp <classpath> atb.app.worker.WorkerKt <host> <port>`; [launchLocalWorkers] starts them on
+ * this machine.
+ */
+class Coordinator(port: Int = 0, val maxAttempts: Int = 3, val workerTimeout: Long = 60_000,
+                  bindAddress: InetAddress = InetAddress.getLoopbackAddress()) : Closeable {
+    private val server = ServerSocket(port, 50, bindAddress).apply { soTimeout = 100 }
+    private val connections = ArrayList<Connection>()
+
+    /** Guards [batch] and [isClosed]; [changed] is signalled when either changes or a batch ends */
+    private val lock = ReentrantLock()
+    private val changed = lock.newCondition()
+
+    /** Batch that is being evaluated; workers wait while it is null or done */
+    private var batch: Batch? = null
+    private var isClosed = false
+
+    /** Port on which the coordinator accepts workers */
+    val port: Int
+        get() = server.localPort
+
+    init {
+        thread(name = "atb-coordinator", isDaemon = true) { accept() }
+    }
+
+    /**
+     * Evaluates [specs] on connected workers and fires the [finished] callback once all runs end;
+     * [progress] is invoked after every run. Received readings are stored in sinks created by [sinks]
+     * once the first readings of a run arrive. If a batch is still being evaluated, this waits until
+     * it ends.
+     *
+     * @return A handle to interrupt the entire batch
+     */
+    fun run(specs: List<RunSpec>, finished: (List<EvaluationState>) -> Unit,
+            progress: (EvaluationState) -> Unit = {},
+            sinks: (RunSpec) -> ResultSink = { ColumnarSink() }): () -> Unit {
+        val batch = Batch(specs, finished, progress, sinks)
+
+        lock.withLock {
+            while (!isClosed && this.batch?.isDone == false) {
+                changed.await()
+            }
+            check(!isClosed) { "Coordinator is closed" }
+
+            this.batch = batch
+            changed.signalAll()
+        }
+
+        if (specs.isEmpty()) {
+            finished(emptyList())
+        }
+
+        return {
+            batch.isInterrupted.set(true)
+            synchronized(connections) { connections.filter { it.batch === batch } }.forEach { it.interrupt() }
+        }
+    }
+
+    /** Starts [count] worker JVMs on this machine that use the classpath of the current JVM */
+    fun launchLocalWorkers(count: Int): List<Process> = (1..count).map {
+        val java = File(File(System.getProperty("java.home"), "bin"), "java").path
+        ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "atb.app.worker.WorkerKt", host(), port.toString())
+                .inheritIO()
+                .start()
+    }
+
+    /** Stops accepting workers and tells connected workers to exit once their current runs end */
+    override fun close() {
+        lock.withLock {
+            isClosed = true
+            changed.signalAll()
+        }
+        server.close()
+    }
+
+    /** Accepts workers until the coordinator is closed */
+    private fun accept() {
+        var idleSince = System.currentTimeMillis()
+        try {
+            while (true) {
+                val socket = try {
+                    server.accept()
+                } catch (e: SocketTimeoutException) {
+                    val batch = lock.withLock { batch?.takeUnless { it.isDone } }
+                    if (batch == null || synchronized(connections) { connections.isNotEmpty() }) {
+                        idleSince = System.currentTimeMillis()
+                    } else if (System.currentTimeMillis() - idleSince > workerTimeout) {
+                        batch.abandon()
+                    }
+                    continue
+                }
+
+                serve(socket)
+            }
+        } catch (e: SocketException) {
+            // coordinator was closed
+        }
+    }
+
+    private fun serve(socket: Socket) {
+        val connection = try {
+            Connection(socket)
+        } catch (e: IOException) {
+            socket.close()
+            return
+        }
+
+        synchronized(connections) { connections.add(connection) }
+        thread(name = "atb-coordinator-${socket.remoteSocketAddress}", isDaemon = true) {
+            connection.serve()
+        }
+    }
+
+    /** Waits until a batch is being evaluated and returns it, or returns null once the coordinator is closed */
+    private fun nextBatch(): Batch? = lock.withLock {
+        while (!isClosed && batch?.isDone != false) {
+            changed.await()
+        }
+        if (isClosed) null else batch
+    }
+
+    private fun host(): String =
+            if (server.inetAddress.isAnyLocalAddress) "localhost" else server.inetAddress.hostAddress
+
+    private class Job(val index: Int, val spec: RunSpec, var attempts: Int = 0)
+
+    private inner class Batch(val specs: List<RunSpec>, val finished: (List<EvaluationState>) -> Unit,
+                              val progress: (EvaluationState) -> Unit, val sinks: (RunSpec) -> ResultSink) {
+        val queue = LinkedBlockingDeque<Job>(specs.mapIndexed { index, spec -> Job(index, spec) })
+        val results = arrayOfNulls<EvaluationState>(specs.size)
+        val remaining = AtomicInteger(specs.size)
+        val isInterrupted = AtomicBoolean(false)
+
+        val isDone: Boolean
+            get() = remaining.get() == 0
+
+        fun complete(job: Job, state: EvaluationState) {
+            results[job.index] = state
+            progress(state)
+
+            if (remaining.decrementAndGet() == 0) {
+                lock.withLock { changed.signalAll() }
+                finished(results.map { it!! })
+            }
+        }
+
+        fun retry(job: Job, cause: Exception) {
+            job.attempts++
+            if (job.attempts < maxAttempts) {
+                logger.warning("Worker failed while evaluating ${job.spec}; re-queuing it: $cause")
+                queue.addFirst(job)
+            } else {
+                complete(job, Faulted(0, cause, job.spec.seed))
+            }
+        }
+
+        /** Faults queued runs; called when no worker has been connected for too long */
+        fun abandon() {
+            val cause = RemoteEvaluationException("No worker connected for $workerTimeout ms")
+            logger.warning("${cause.message}; abandoning ${queue.size} runs")
+            generateSequence { queue.poll() }.forEach { complete(it, Faulted(0, cause, it.spec.seed)) }
+        }
+    }
+
+    /** Serves a single worker across batches */
+    private inner class Connection(val socket: Socket) {
+        private val output = DataOutputStream(BufferedOutputStream(socket.getOutputStream()))
+        private val input = DataInputStream(BufferedInputStream(socket.getInputStream()))
+
+        /** Batch whose run the worker is evaluating, if any */
+        @Volatile
+        var batch: Batch? = null
+            private set
+
+        fun serve() {
+            try {
+                while (true) {
+                    val current = nextBatch() ?: break
+                    val job = current.queue.poll(100, TimeUnit.MILLISECONDS) ?: continue
+                    batch = current
+
+                    val state = try {
+                        evaluate(current, job)
+                    } catch (e: IllegalArgumentException) {
+                        // the run cannot be sent to workers
+                        Faulted(0, e, job.spec.seed)
+                    } catch (e: IOException) {
+                        current.retry(job, e)
+                        return
+                    }
+
+                    batch = null
+                    current.complete(job, state)
+                }
+
+                send(Shutdown)
+            } catch (e: IOException) {
+                // worker is gone
+            } finally {
+                socket.close()
+                synchronized(connections) { connections.remove(this) }
+            }
+        }
+
+        fun interrupt() {
+            try {
+                send(Interrupt)
+            } catch (e: IOException) {
+                // worker is gone
+            }
+        }
+
+        private fun evaluate(batch: Batch, job: Job): EvaluationState {
+            val classLoader = RunSpec::class.java.classLoader
+            val metrics = job.spec.createMetrics(classLoader)
+            val byName = metrics.keys.associateBy { it.toString() }
+
+            // the sink is created once readings arrive, so runs whose worker fails early leave none behind
+            var sink: ResultSink? = null
+
+            try {
+                send(Assign(job.spec))
+                if (batch.isInterrupted.get()) {
+                    send(Interrupt)
+                }
+
+                while (true) {
+                    when (val message = readMessage(input)) {
+                        is Rows -> {
+                            val target = sink ?: batch.sinks(job.spec).also { sink = it }
+                            val dictionary = message.metrics.map { byName.getValue(it) }
+                            for (i in 0 until message.size) {
+                                target.write(Reading(message.ticks[i], dictionary[message.metricIndexes[i].toInt()],
+                                        message.services[i], message.values[i]))
+                            }
+                        }
+                        is Done -> {
+                            val target = sink ?: batch.sinks(job.spec)
+                            target.close()
+                            return result(job.spec, metrics, target, message)
+                        }
+                        else -> throw IOException("Unexpected message $message")
+                    }
+                }
+            } catch (e: IOException) {
+                // the run is evaluated again, so readings received so far are dropped
+                sink?.let { if (it is FileSink) it.delete() else it.close() }
+                throw e
+            }
+        }
+
+        private fun result(spec: RunSpec, metrics: Map<Metric, Array<Any>>, sink: ResultSink,
+                           done: Done): EvaluationState {
+            if (done.state == Faulted::class.java.simpleName) {
+                return Faulted(done.tick, RemoteEvaluationException(done.error), spec.seed)
+            }
+
+            if (done.state == TimedOut::class.java.simpleName) {
+                return TimedOut(done.tick, done.error ?: "", spec.seed)
+            }
+
+            val data = EvaluationData(spec.describe(RunSpec::class.java.classLoader), metrics.keys, sink)
+
+            return if (done.state == Completed::class.java.simpleName) Completed(data) else Interrupted(done.tick, data)
+        }
+
+        private fun send(message: Message) {
+            // encode first, so that a message that cannot be encoded leaves the stream intact
+            val bytes = ByteArrayOutputStream()
+            writeMessage(DataOutputStream(bytes), message)
+
+            synchronized(output) {
+                bytes.writeTo(output)
+                output.flush()
+            }
+        }
+    }
+
+    companion object {
+        private val logger = Logger.getLogger(Coordinator::class.java.name)
+    }
+}
+
+/**
+ * Connects to the coordinator at [host]:[port] and evaluates the runs it assigns until the
+ * coordinator shuts the worker down or the connection closes.
+ */
+fun runWorker(host: String, port: Int) = runWorker(Socket(host, port))
+
+/** Evaluates the runs that the coordinator connected through [socket] assigns; see [runWorker] */
+internal fun runWorker(socket: Socket) {
+    socket.use {
+        val output = DataOutputStream(BufferedOutputStream(socket.getOutputStream()))
+        val input = DataInputStream(BufferedInputStream(socket.getInputStream()))
+
+        var current: EvaluationTask? = null
+
+        while (true) {
+            val message = try {
+                readMessage(input)
+            } catch (e: EOFException) {
+                return
+            }
+
+            when (message) {
+                is Assign -> {
+                    val task = deferEvaluation(seed = message.spec.seed) { message.spec.setup(StreamingSink(output)) }
+                    current = task
+                    thread(name = "atb-worker-${message.spec.seed}") {
+                        val state = task.supplier.get()
+                        val done = when (state) {
+                            is Completed -> Done(Completed::class.java.simpleName, 0, null)
+                            is Interrupted -> Done(Interrupted::class.java.simpleName, state.tick, null)
+                            is Faulted -> Done(Faulted::class.java.simpleName, state.tick, state.thrown.toString())
+                            is TimedOut -> Done(TimedOut::class.java.simpleName, state.tick, state.reason)
+                            else -> Done(Faulted::class.java.simpleName, 0, "Unexpected state $state")
+                        }
+                        try {
+                            synchronized(output) {
+                                writeMessage(output, done)
+                                output.flush()
+                            }
+                        } catch (e: IOException) {
+                            // coordinator is gone
+                        }
+                    }
+                }
+                is Interrupt -> current?.interrupter?.invoke()
+                is Shutdown -> return
+            }
+        }
+    }
+}
+
+/** Streams readings to the coordinator in batches of [batchSize] rows */
+private class StreamingSink(private val output: DataOutputStream, private val batchSize: Int = 4096) : ResultSink {
+    private val metrics = ArrayList<String>()
+    private val ticks = IntArray(batchSize)
+    private val metricIndexes = ByteArray(batchSize)
+    private val services = IntArray(batchSize)
+    private val values = DoubleArray(batchSize)
+    private var buffered = 0
+
+    override var size: Int = 0
+        private set
+
+    override fun write(reading: Reading) {
+        val name = reading.metric.toString()
+        var index = metrics.indexOf(name)
+        if (index < 0) {
+            metrics.add(name)
+            index = metrics.size - 1
+        }
+
+        ticks[buffered] = reading.tick
+        metricIndexes[buffered] = index.toByte()
+        services[buffered] = reading.service
+        values[buffered] = reading.value
+        buffered++
+        size++
+
+        if (buffered == batchSize) {
+            flush()
+        }
+    }
+
+    /** Readings are not kept by the worker */
+    override fun iterator(): Iterator<Reading> = emptyList<Reading>().iterator()
+
+    override fun close() = flush()
+
+    private fun flush() {
+        if (buffered == 0) {
+            return
+        }
+
+        synchronized(output) {
+            writeMessage(output, Rows(metrics, ticks, metricIndexes, services, values, buffered))
+            output.flush()
+        }
+        buffered = 0
+    }
+}
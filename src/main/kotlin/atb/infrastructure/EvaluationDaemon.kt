@@ -0,0 +1,231 @@
+package atb.infrastructure
+
+import atb.common.ClassLoaderUtils
+import atb.interfaces.Metric
+import atb.interfaces.Scenario
+import atb.interfaces.TrustModel
+import java.io.*
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketException
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.logging.Logger
+import kotlin.concurrent.thread
+
+/**
+ * A resident evaluation service that keeps plugins loaded and compiled code warm between batches.
+ * Clients connect to the loopback [port], send a [BatchSpec] as JSON on a single line and receive
+ * results as tab-separated lines while runs complete:
+ * ```
+ * state    <seed>  <Completed|Interrupted|Faulted|TimedOut>  <tick>  <detail>
+ * reading  <seed>  <tick>  <metric>  <service>  <value>
+ * point    <tick>  <metric>  <service>  <n>  <mean>  <sd>  <ciLow>  <ciHigh>
+ * precision  <metric>  <service>  <seeds>  <mean>  <halfWidth>
+ * end      <completed runs>  <all runs>  [<precision reached>]
+ * error    <message>
+ * ```
+ * Readings follow the state line of every completed run; with the `aggregate` output format,
+ * aggregated points are sent instead, once all runs end. A `reduction`, a `cache` and a `schedule`
+ * are used as in the command-line runner. With `precision`, seeds are run in waves (see
+ * [SequentialSeeds]); the achieved precision is sent before the end line, which then also tells
+ * whether the target was reached. The `checkpoint`, as well as the `output` directory and file, are
+ * ignored. If the client disconnects, its batch is interrupted.
+ *
+ * All batches share one executor with [parallelism] threads.
+ */
+class EvaluationDaemon(port: Int = 0, val parallelism: Int = Runtime.getRuntime().availableProcessors()) : Closeable {
+    private val server = ServerSocket(port, 0, InetAddress.getLoopbackAddress())
+    private val executor: ExecutorService = Executors.newFixedThreadPool(parallelism)
+    private val jobs = AtomicInteger()
+
+    /** Port on which the daemon accepts clients */
+    val port: Int
+        get() = server.localPort
+
+    /** Loads all plugins found by the service loader and starts accepting clients */
+    fun start(): EvaluationDaemon {
+        val classLoader = EvaluationDaemon::class.java.classLoader
+        val plugins = listOf(TrustModel::class.java, Scenario::class.java, Metric::class.java)
+                .map { ClassLoaderUtils.lookUp(it, classLoader).size }
+                .sum()
+        logger.info("Loaded $plugins plugins; accepting clients on port $port")
+
+        thread(name = "atb-daemon", isDaemon = true) {
+            try {
+                while (true) {
+                    val socket = server.accept()
+                    val job = jobs.incrementAndGet()
+                    thread(name = "atb-daemon-$job", isDaemon = true) { serve(socket, job) }
+                }
+            } catch (e: SocketException) {
+                // daemon was closed
+            }
+        }
+
+        return this
+    }
+
+    override fun close() {
+        server.close()
+        executor.shutdownNow()
+    }
+
+    private fun serve(socket: Socket, job: Int) {
+        socket.use { evaluate(it, job) }
+    }
+
+    private fun evaluate(socket: Socket, job: Int) {
+        val input = BufferedReader(InputStreamReader(socket.getInputStream(), Charsets.UTF_8))
+        val output = PrintWriter(BufferedWriter(OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8)))
+
+        val spec = try {
+            BatchSpec.fromJson(input.readLine() ?: return)
+        } catch (e: Exception) {
+            output.println("error\t${e.message}")
+            output.flush()
+            return
+        }
+
+        val metrics = BatchMetrics("daemon-$job")
+        val memory = spec.memoryBudget?.let { MemoryBudget(it) }
+        val costs = try {
+            spec.schedule?.takeIf { it.longestFirst }?.let { CostModel(it.history?.let(::File)) }
+        } catch (e: Exception) {
+            output.println("error\t${e.message}")
+            output.flush()
+            return
+        }
+        val latch = CountDownLatch(1)
+        var interrupter: () -> Unit = {}
+
+        fun send(lines: () -> Unit) = synchronized(output) {
+            lines()
+            output.flush()
+            if (output.checkError()) {
+                // client is gone
+                interrupter()
+            }
+        }
+
+        val progress = { state: EvaluationState ->
+            send {
+                when (state) {
+                    is Completed -> {
+                        output.println("state\t${state.data.seed}\tCompleted\t${spec.duration}\t")
+                        if (spec.output.format != "aggregate") {
+                            state.data.readings.cursor().use { cursor ->
+                                while (cursor.next()) {
+                                    output.println("reading\t${state.data.seed}\t${cursor.tick}\t${cursor.metric}\t" +
+                                            "${cursor.service}\t${cursor.value}")
+                                }
+                            }
+                        }
+                    }
+                    is Interrupted -> output.println("state\t${state.data.seed}\tInterrupted\t${state.tick}\t")
+                    is Faulted -> output.println("state\t${state.seed ?: ""}\tFaulted\t${state.tick}\t${state.thrown}")
+                    is TimedOut -> output.println("state\t${state.seed ?: ""}\tTimedOut\t${state.tick}\t${state.reason}")
+                    else -> output.println("state\t\t${state.javaClass.simpleName}\t0\t")
+                }
+            }
+        }
+
+        // spilled readings are deleted once the batch ends
+        val spilled = Collections.synchronizedList(ArrayList<FileSink>())
+        val aggregate = BatchAggregate()
+
+        val finished = { states: List<EvaluationState>, precision: List<Precision>, reached: Boolean ->
+            synchronized(spilled) { spilled.forEach { it.delete() } }
+            costs?.save()
+            send {
+                if (spec.output.format == "aggregate") {
+                    aggregate.points().forEach {
+                        output.println("point\t${it.tick}\t${it.metric}\t${it.service}\t${it.count}\t" +
+                                "${it.mean}\t${it.sd}\t${it.ciLow}\t${it.ciHigh}")
+                    }
+                }
+                precision.forEach {
+                    output.println("precision\t${it.metric}\t${it.service}\t${it.seeds}\t${it.mean}\t${it.halfWidth}")
+                }
+                output.println("end\t${states.count { it is Completed }}\t${states.size}" +
+                        if (spec.precision != null) "\t$reached" else "")
+            }
+            latch.countDown()
+        }
+
+        // readings are reduced just before they are stored, so precision is judged on all readings
+        fun sinks(run: RunSpec): ResultSink {
+            val stored = when {
+                spec.output.format == "aggregate" -> AggregatingSink(aggregate)
+                spec.output.spill -> FileSink().also { spilled.add(it) }
+                else -> ColumnarSink()
+            }
+            return spec.reduction?.let { ReducingSink(it, stored) } ?: stored
+        }
+
+        fun setup(run: RunSpec, sink: ResultSink, cache: RunCache?): EvaluationTask {
+            val task = deferEvaluation({ memory?.estimate(run) ?: 0 }, seed = run.seed) {
+                cache?.setup(run, sink) ?: run.setup(sink)
+            }
+            return costs?.track(run, task) ?: task
+        }
+
+        try {
+            metrics.register()
+            val cache = spec.cache?.let { RunCache(File(it.directory), it.maxBytes) }
+            val precision = spec.precision
+
+            interrupter = if (precision == null) {
+                runBatch(spec.runs.map { setup(it, sinks(it), cache) }, { finished(it, emptyList(), true) }, progress,
+                        executor, spec.budget, metrics, memory, costs != null)
+            } else {
+                SequentialSeeds(spec.runs.first(), precision.target, precision.statistic, precision.relative,
+                        precision.level, precision.minSeeds, spec.seeds.size, spec.seeds.first(), ::sinks,
+                        { run, sink -> setup(run, sink, cache) })
+                        .run({ finished(it.states, it.precision, it.reached) }, progress, executor, spec.budget, metrics,
+                                memory, costs != null)
+            }
+        } catch (e: Exception) {
+            send { output.println("error\t${e.message}") }
+            metrics.close()
+            return
+        }
+
+        latch.await()
+        metrics.close()
+    }
+
+    companion object {
+        private val logger = Logger.getLogger(EvaluationDaemon::class.java.name)
+    }
+}
+
+/**
+ * Submits the batch specification [json] to the daemon listening on the loopback [port] and copies
+ * the lines it sends to [output].
+ *
+ * @return True if all runs of the batch have completed and the target precision, if any, was reached
+ */
+fun submitBatch(port: Int, json: String, output: Writer): Boolean =
+        Socket(InetAddress.getLoopbackAddress(), port).use { socket ->
+            val writer = PrintWriter(OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8))
+            writer.println(json.lines().joinToString(" "))
+            writer.flush()
+
+            var succeeded = false
+            BufferedReader(InputStreamReader(socket.getInputStream(), Charsets.UTF_8)).forEachLine { line ->
+                output.write(line)
+                output.write("\n")
+
+                if (line.startsWith("end\t")) {
+                    val fields = line.split('\t')
+                    succeeded = fields[1] == fields[2] && fields.getOrNull(3) != "false"
+                }
+            }
+            output.flush()
+            succeeded
+        }
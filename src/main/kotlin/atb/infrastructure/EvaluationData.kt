@@ -2,17 +2,8 @@ package atb.infrastructure
 
 import atb.core.EvaluationProtocol
 import atb.interfaces.Metric
-import atb.interfaces.Scenario
-import atb.interfaces.TrustModel
-import com.github.salomonbrys.kotson.jsonObject
-import com.github.salomonbrys.kotson.registerTypeAdapter
-import com.github.salomonbrys.kotson.toJson
-import com.google.gson.ExclusionStrategy
-import com.google.gson.FieldAttributes
-import com.google.gson.GsonBuilder
-import com.opencsv.CSVWriter
 import java.io.File
-import java.io.FileWriter
+import java.io.Serializable
 import java.nio.file.Paths
 import java.time.LocalDateTime
 import java.time.format.DateTimeFormatter
@@ -20,9 +11,33 @@ import java.time.format.DateTimeFormatter
 /** Contains a single reading in an evaluation run */
 data class Reading(val tick: Int, val metric: Metric, val service: Int, val value: Double)
 
-/** Contains all results of an evaluation run */
-data class EvaluationData(val protocol: EvaluationProtocol, val metrics: Set<Metric>,
-                          val readings: MutableList<Reading>, val seed: Int)
+/**
+ * Describes an evaluation run without keeping its trust model and scenario: their names (as returned
+ * by their `toString`), classes and parameters, the seed and the duration. If readings of the run
+ * were reduced, the [reduction] names the policy and its parameters (see [Reduction]).
+ */
+data class RunDescriptor(val trustModel: String, val scenario: String,
+                         val trustModelClass: String, val trustModelParams: List<Any>,
+                         val scenarioClass: String, val scenarioParams: List<Any>,
+                         val seed: Int, val duration: Int, val reduction: String? = null) : Serializable {
+    companion object {
+        /** Describes a run of [protocol]; parameters are not known to protocols and are thus left empty */
+        fun of(protocol: EvaluationProtocol, duration: Int) = RunDescriptor(
+                protocol.trustModel.toString(), protocol.scenario.toString(),
+                protocol.trustModel.javaClass.name, emptyList(),
+                protocol.scenario.javaClass.name, emptyList(),
+                protocol.scenario.randomGenerator.seed, duration)
+    }
+}
+
+/**
+ * Contains all results of an evaluation run; readings are kept in the given [ResultSink]. The run is
+ * identified by its [descriptor], so the trust model and the scenario can be collected once it ends.
+ */
+data class EvaluationData(val descriptor: RunDescriptor, val metrics: Set<Metric>, val readings: ResultSink) {
+    val seed: Int
+        get() = descriptor.seed
+}
 
 data class BatchEvaluationData(val data: List<EvaluationData>) {
     /**
@@ -33,27 +48,28 @@ data class BatchEvaluationData(val data: List<EvaluationData>) {
      * ```
      * "run", "tick", "Metric", "Name", "TrustModel", "Scenario"
      * ```
+     * If readings of any run were reduced, a `"Reduction"` column names the reduction of every run.
+     * The file is compressed if [gzip] is set. When [parallel] is set, runs are formatted
+     * concurrently and their rows are written in the order of runs.
      */
-    fun toCSV(path: String = System.getProperty("user.dir"), fileName: String = autoName("csv")) {
-        val writer = CSVWriter(FileWriter(File(Paths.get(path, fileName).toUri())))
-        writer.writeNext(arrayOf("run", "tick", "Metric", "Name", "TrustModel", "Scenario"))
-        data.forEach { ed ->
-            ed.readings.forEach {
-                writer.writeNext(arrayOf(
-                        ed.seed.toString(), it.tick.toString(), it.value.toString(),
-                        it.metric.toString(), ed.protocol.trustModel.toString(),
-                        ed.protocol.scenario.toString()))
-            }
-        }
-        writer.flushQuietly()
-        writer.close()
-    }
+    fun toCSV(path: String = System.getProperty("user.dir"), fileName: String = autoName("csv"),
+              gzip: Boolean = false, parallel: Boolean = false) =
+            writeCsv(File(Paths.get(path, fileName).toUri()), data, gzip, parallel)
+
+    /**
+     * Writes every run to its own CSV file in directory [path], in parallel. Files have the same
+     * layout as those written by [toCSV] and are named `<prefix>-<seed>.csv`, or `.csv.gz` with [gzip].
+     *
+     * @return Written files in the order of runs
+     */
+    fun toCSVFiles(path: String = System.getProperty("user.dir"), prefix: String = autoName("csv").removeSuffix(".csv"),
+                   gzip: Boolean = false): List<File> = writeCsvFiles(File(path), prefix, data, gzip)
 
     /**
      * Writes evaluation data as JSON to [fileName] in directory [path]. JSON object has the
      * following structure:
      * ```json
-     * [
+     * {"data": [
      *  {
      *   "protocol": {
      *     "scenario": "Scenario name",
@@ -70,51 +86,35 @@ data class BatchEvaluationData(val data: List<EvaluationData>) {
      *   "seed": 1
      *  },
      * ... remaining evaluation data items ...
-     * ]
+     * ]}
      *
      * ```
+     * Runs are streamed to the file one by one (see [JsonResultsWriter]); the layout is compact
+     * unless [pretty] is set, and the file is compressed if [gzip] is set.
      */
-    fun toJSON(path: String = System.getProperty("user.dir"), fileName: String = autoName("json")) =
-            File(Paths.get(path, fileName).toUri()).printWriter().use {
-                val converter = GsonBuilder().apply {
-                    registerTypeAdapter<Metric> { serialize { it.src.toString().toJson() } }
-                    registerTypeAdapter<EvaluationProtocol> {
-                        serialize {
-                            jsonObject(
-                                    "scenario" to it.src.scenario.toString(),
-                                    "trustModel" to it.src.trustModel.toString()
-                            )
-                        }
-                    }
-                    setPrettyPrinting()
-                    setExclusionStrategies(ExcludeModelsAndScenarios())
-                }.create()
-
-                it.write(converter.toJson(this))
+    fun toJSON(path: String = System.getProperty("user.dir"), fileName: String = autoName("json"),
+               pretty: Boolean = false, gzip: Boolean = false) =
+            JsonResultsWriter(File(Paths.get(path, fileName).toUri()), pretty, gzip).use { writer ->
+                data.forEach { writer.write(it) }
             }
 
-    /**
-     * Because of class overriding, do not JSON encode [TrustModel] and [Scenario] instances
-     */
-    internal inner class ExcludeModelsAndScenarios : ExclusionStrategy {
-        override fun shouldSkipClass(clazz: Class<*>): Boolean =
-                clazz == TrustModel::class.java || clazz == Scenario::class.java
+    /** Writes evaluation data to [fileName] in directory [path] in the binary format of [ResultsWriter] */
+    fun toBinary(path: String = System.getProperty("user.dir"), fileName: String = autoName("atbc")) =
+            ResultsWriter(File(Paths.get(path, fileName).toUri())).use { writer -> data.forEach { writer.write(it) } }
 
-        override fun shouldSkipField(f: FieldAttributes): Boolean = false
-    }
-
-    private fun autoName(type: String): String {
-        val current = LocalDateTime.now()
-        val formatter = DateTimeFormatter.ofPattern("yyyy.MM.dd.HHmmss")
-        val date = current.format(formatter)
+    internal fun autoName(type: String): String =
+            autoName(data.first().descriptor.scenario, data.first().descriptor.trustModel, type)
+}
 
-        fun String.toFileName(): String = split(" ")
-                .joinToString("") { it.capitalize() }
-                .replace(Regex("\\W+"), "")
+/** Names a results file after the [scenario], the [trustModel] and the current time */
+internal fun autoName(scenario: String, trustModel: String, type: String): String {
+    val current = LocalDateTime.now()
+    val formatter = DateTimeFormatter.ofPattern("yyyy.MM.dd.HHmmss")
+    val date = current.format(formatter)
 
-        val model = data.first().protocol.trustModel.toString().toFileName()
-        val scenario = data.first().protocol.scenario.toString().toFileName()
+    fun String.toFileName(): String = split(" ")
+            .joinToString("") { it.capitalize() }
+            .replace(Regex("\\W+"), "")
 
-        return "batch-$scenario-$model-$date.$type"
-    }
-}
\ No newline at end of file
+    return "batch-${scenario.toFileName()}-${trustModel.toFileName()}-$date.$type"
+}
@@ -9,8 +9,14 @@ data class Completed(val data: EvaluationData) : EvaluationState()
 /** Evaluation has been interrupted */
 data class Interrupted(val tick: Int, val data: EvaluationData) : EvaluationState()
 
-/** Evaluation has ended with an exception  */
-data class Faulted(val tick: Int, val thrown: Throwable) : EvaluationState()
+/** Evaluation has ended with an exception; the [seed] identifies the run, if it is known */
+data class Faulted(val tick: Int, val thrown: Throwable, val seed: Int? = null) : EvaluationState()
+
+/**
+ * Evaluation has exceeded its time budget or an iteration limit; the [reason] describes which and
+ * the [seed] identifies the run, if it is known
+ */
+data class TimedOut(val tick: Int, val reason: String, val seed: Int? = null) : EvaluationState()
 
 /** Evaluation has not yet started */
 object Idle : EvaluationState()
@@ -0,0 +1,103 @@
+package atb.infrastructure
+
+import atb.interfaces.FootprintEstimator
+import atb.interfaces.TrustModel
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Bounds the projected heap use of concurrently running evaluation tasks to [maxBytes]. Batches
+ * admit a queued task only while the sum of footprints of running tasks and the task's own
+ * footprint fits the budget; a task that does not fit on its own still runs, but alone.
+ *
+ * Footprints of [RunSpec]s are estimated with [estimate].
+ */
+class MemoryBudget(val maxBytes: Long = Runtime.getRuntime().maxMemory() / 4 * 3,
+                   val calibrationTicks: Int = 10) {
+    private val estimates = ConcurrentHashMap<String, Long>()
+    private var used = 0L
+    private var running = 0
+
+    /**
+     * Estimates the heap a run of given [spec] occupies: the state of its trust model and its readings.
+     * Trust models that implement [FootprintEstimator] provide the estimate for the number of agents
+     * and services of the scenario; others are measured with a short calibration run. Estimates are
+     * shared among runs that differ only in seeds, so runs pass [deferEvaluation] a function that
+     * calls this one and only the first run of every configuration is estimated.
+     * Specifications that cannot be set up are estimated at 0; their runs fault once they start.
+     */
+    fun estimate(spec: RunSpec, classLoader: ClassLoader = RunSpec::class.java.classLoader): Long =
+            estimates.getOrPut(spec.configuration.canonical()) {
+                try {
+                    val model = classLoader.loadClass(spec.trustModel).newInstance() as TrustModel<*>
+                    val (agents, services) = spec.scenarioSize(classLoader)
+                    val readings = spec.duration.toLong() * services * spec.metrics.size * READING_BYTES
+
+                    readings + if (model is FootprintEstimator) {
+                        model.estimateFootprint(agents, services)
+                    } else {
+                        calibrate(spec, classLoader)
+                    }
+                } catch (e: Exception) {
+                    0L
+                }
+            }
+
+    /**
+     * Measures the bytes the current thread allocates while setting up a run and while evaluating
+     * each of [calibrationTicks] ticks. The setup allocations bound the state the run retains, and
+     * the largest tick allocation bounds its working set within a tick. Since per-thread counters
+     * are unaffected by other threads, calibration can run while other runs execute. Trust models
+     * whose state keeps growing with ticks should implement [FootprintEstimator]. Where allocation
+     * counters are not available, the estimate is 0.
+     */
+    private fun calibrate(spec: RunSpec, classLoader: ClassLoader): Long {
+        val ticks = Math.min(calibrationTicks, spec.duration)
+        val before = allocatedBytes()
+
+        val metrics = spec.createMetrics(classLoader)
+        val protocol = spec.copy(duration = ticks).createProtocol(metrics, classLoader)
+        val setup = allocatedBytes() - before
+
+        var largestTick = 0L
+        for (tick in 1..ticks) {
+            val start = allocatedBytes()
+            protocol.step(tick)
+            largestTick = Math.max(largestTick, allocatedBytes() - start)
+        }
+
+        return setup + largestTick
+    }
+
+    /**
+     * Admits a task with given [footprint] if it fits, and returns true if it was admitted. A task is
+     * admitted regardless of its footprint when no task runs under the budget or when it is to run
+     * [alone] in its batch, since a task that exceeds the entire budget could never start otherwise.
+     */
+    internal fun tryAdmit(footprint: Long, alone: Boolean = false): Boolean = synchronized(this) {
+        if (!alone && running > 0 && used + footprint > maxBytes) {
+            return false
+        }
+
+        used += footprint
+        running++
+        return true
+    }
+
+    internal fun release(footprint: Long) = synchronized(this) {
+        used -= footprint
+        running--
+    }
+
+    companion object {
+        /** Bytes a reading occupies in a [ColumnarSink] */
+        private const val READING_BYTES = 17
+
+        private val threads = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+
+        /** Bytes allocated by the current thread, or 0 if allocation counters are not available */
+        private fun allocatedBytes(): Long = threads
+                ?.takeIf { it.isThreadAllocatedMemorySupported && it.isThreadAllocatedMemoryEnabled }
+                ?.getThreadAllocatedBytes(Thread.currentThread().id) ?: 0
+    }
+}
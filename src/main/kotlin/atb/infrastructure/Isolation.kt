@@ -0,0 +1,88 @@
+package atb.infrastructure
+
+import java.io.IOException
+import java.util.function.Supplier
+
+/**
+ * A child-first class loader that defines its own copies of classes in given [packages] (and their
+ * subpackages), and delegates all other classes to the [parent]. Static fields of isolated classes
+ * are therefore separate from those of the parent and of other isolating loaders, while interfaces
+ * of the testbed, libraries and the JDK stay shared, so isolated plugins remain compatible with them.
+ */
+class IsolatingClassLoader(parent: ClassLoader, val packages: Set<String>) : ClassLoader(parent) {
+
+    override fun loadClass(name: String, resolve: Boolean): Class<*> = synchronized(getClassLoadingLock(name)) {
+        if (!isIsolated(name)) {
+            return super.loadClass(name, resolve)
+        }
+
+        val clazz = findLoadedClass(name) ?: define(name) ?: return super.loadClass(name, resolve)
+        if (resolve) {
+            resolveClass(clazz)
+        }
+        clazz
+    }
+
+    private fun isIsolated(name: String) = packages.any { name.startsWith("$it.") }
+
+    private fun define(name: String): Class<*>? {
+        val bytes = try {
+            parent.getResourceAsStream(name.replace('.', '/') + ".class")?.use { it.readBytes() }
+        } catch (e: IOException) {
+            throw ClassNotFoundException(name, e)
+        } ?: return null
+
+        val packageName = name.substringBeforeLast('.')
+        @Suppress("DEPRECATION")
+        if (getPackage(packageName) == null) {
+            definePackage(packageName, null, null, null, null, null, null, null)
+        }
+
+        return defineClass(name, bytes, 0, bytes.size)
+    }
+}
+
+/**
+ * Evaluates runs in isolation from each other: every run loads the packages of its trust model and
+ * scenario with an [IsolatingClassLoader] that no other running run uses. Concurrent runs therefore
+ * never share static state of these plugins, such as parameters kept in static fields. Once a run
+ * ends, its loader is reused by a later run of plugins from the same packages, so at most as many
+ * copies of these classes are loaded, and compiled by the JVM, as runs execute at once. A later
+ * run thus sees static state its predecessor left behind, which plugins that set their static state
+ * when they are initialized do not notice. Trust models and scenarios cannot be pooled across
+ * isolated runs (see [InstancePool]).
+ */
+class RunIsolation(val parent: ClassLoader = RunSpec::class.java.classLoader) {
+    /** Loaders of ended runs by the packages they isolate */
+    private val idle = HashMap<Set<String>, MutableList<IsolatingClassLoader>>()
+
+    /**
+     * Creates the evaluation task for [spec] with plugins loaded by a loader that no other running
+     * run uses; the loader becomes available to other runs once the task ends
+     */
+    fun setup(spec: RunSpec, sink: ResultSink = ColumnarSink()): EvaluationTask {
+        val loader = acquire(setOf(spec.trustModel.substringBeforeLast('.'), spec.scenario.substringBeforeLast('.')))
+        val task = try {
+            spec.setup(sink, loader)
+        } catch (e: Throwable) {
+            release(loader)
+            throw e
+        }
+
+        return task.withSupplier(Supplier {
+            try {
+                task.supplier.get()
+            } finally {
+                release(loader)
+            }
+        })
+    }
+
+    private fun acquire(packages: Set<String>): IsolatingClassLoader = synchronized(idle) {
+        idle[packages]?.let { if (it.isNotEmpty()) it.removeAt(it.size - 1) else null }
+    } ?: IsolatingClassLoader(parent, packages)
+
+    private fun release(loader: IsolatingClassLoader) = synchronized(idle) {
+        idle.getOrPut(loader.packages) { ArrayList() }.add(loader)
+    }
+}
@@ -0,0 +1,88 @@
+package atb.infrastructure
+
+import com.google.gson.stream.JsonWriter
+import java.io.*
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Streams evaluation data as JSON, run by run, so that readings are never converted into
+ * an in-memory JSON tree. The document has the structure described in [BatchEvaluationData.toJSON],
+ * an object whose `data` array holds the runs; runs may be written concurrently as they complete and
+ * the document is finished by [close].
+ * Runs whose readings were reduced (see [RunDescriptor.reduction]) also name the reduction, for instance
+ * `"reduction": "every(k=10)"`. Batches that run seeds until a target precision is reached (see
+ * [SequentialSeeds]) close the document with [close] given the achieved precision, which follows the
+ * runs as `"precision": [{"metric": ..., "service": 0, "seeds": 8, "mean": ..., "halfWidth": ...}]`.
+ */
+class JsonResultsWriter(output: OutputStream, pretty: Boolean = false) : Closeable {
+    private val json = JsonWriter(BufferedWriter(OutputStreamWriter(output, Charsets.UTF_8), 1 shl 16))
+
+    /** Writes to [file], compressing it with gzip if [gzip] is set */
+    constructor(file: File, pretty: Boolean = false, gzip: Boolean = false) : this(openOutput(file, gzip), pretty)
+
+    init {
+        if (pretty) {
+            json.setIndent("  ")
+        }
+        json.beginObject().name("data").beginArray()
+    }
+
+    /** Appends a single run */
+    fun write(data: EvaluationData) = synchronized(this) {
+        json.beginObject()
+        json.name("protocol").beginObject()
+                .name("scenario").value(data.descriptor.scenario)
+                .name("trustModel").value(data.descriptor.trustModel)
+                .endObject()
+
+        json.name("metrics").beginArray()
+        data.metrics.forEach { json.value(it.toString()) }
+        json.endArray()
+
+        json.name("readings").beginArray()
+        data.readings.cursor().use { cursor ->
+            while (cursor.next()) {
+                json.beginObject()
+                        .name("tick").value(cursor.tick.toLong())
+                        .name("metric").value(cursor.metric.toString())
+                        .name("service").value(cursor.service.toLong())
+                        .name("value").value(cursor.value)
+                        .endObject()
+            }
+        }
+        json.endArray()
+
+        json.name("seed").value(data.seed.toLong())
+        data.descriptor.reduction?.let { json.name("reduction").value(it) }
+        json.endObject()
+    }
+
+    override fun close() = close(emptyList())
+
+    /** Finishes the document with the achieved [precision] of the batch, unless it is empty */
+    fun close(precision: List<Precision>) = synchronized(this) {
+        json.endArray()
+        if (precision.isNotEmpty()) {
+            json.name("precision").beginArray()
+            precision.forEach {
+                json.beginObject()
+                        .name("metric").value(it.metric)
+                        .name("service").value(it.service.toLong())
+                        .name("seeds").value(it.seeds.toLong())
+                        .name("mean").value(it.mean)
+                        .name("halfWidth").value(it.halfWidth)
+                        .endObject()
+            }
+            json.endArray()
+        }
+        json.endObject()
+        json.close()
+    }
+}
+
+/** Opens a buffered stream to [file], compressing it with gzip if [gzip] is set */
+internal fun openOutput(file: File, gzip: Boolean): OutputStream {
+    val stream = FileOutputStream(file)
+    return if (gzip) BufferedOutputStream(GZIPOutputStream(stream, 1 shl 16), 1 shl 16)
+    else BufferedOutputStream(stream, 1 shl 16)
+}
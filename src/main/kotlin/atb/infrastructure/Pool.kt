@@ -0,0 +1,89 @@
+package atb.infrastructure
+
+import atb.common.DefaultRandomGenerator
+import atb.core.AlphaTestbed
+import atb.core.EvaluationProtocol
+import atb.interfaces.Metric
+import atb.interfaces.Resettable
+import atb.interfaces.Scenario
+import atb.interfaces.TrustModel
+import java.util.concurrent.atomic.AtomicReference
+import java.util.function.Supplier
+
+/**
+ * Keeps trust models and scenarios of finished runs, one instance of every class on every thread,
+ * and hands them to subsequent runs on the same thread. Reused instances are prepared with
+ * [Resettable.reset] instead of being created and initialized anew. Only classes that declare
+ * [Resettable.reset] themselves are pooled, since a subclass may keep state that an inherited
+ * reset does not know about; other classes are always instantiated.
+ */
+class InstancePool {
+    private val instances = ThreadLocal.withInitial { HashMap<Class<*>, Any>() }
+
+    /**
+     * Creates the protocol of given [spec], reusing pooled instances where possible. Instances should
+     * be returned with [release] once the run ends; [setup] does that automatically.
+     */
+    internal fun createProtocol(spec: RunSpec, metrics: Map<Metric, Array<Any>>,
+                                classLoader: ClassLoader): EvaluationProtocol {
+        val modelClass = classLoader.loadClass(spec.trustModel)
+        val model = acquire(modelClass, spec.seed, spec.trustModelParams) as TrustModel<*>?
+                ?: (modelClass.newInstance() as TrustModel<*>).apply {
+                    setRandomGenerator(DefaultRandomGenerator(spec.seed))
+                    initialize(*spec.trustModelParams.toTypedArray())
+                }
+
+        val scenarioClass = classLoader.loadClass(spec.scenario)
+        val scenario = acquire(scenarioClass, spec.seed, spec.scenarioParams) as Scenario?
+                ?: (scenarioClass.newInstance() as Scenario).apply {
+                    randomGenerator = DefaultRandomGenerator(spec.seed)
+                    initialize(*spec.scenarioParams.toTypedArray())
+                }
+
+        return AlphaTestbed.getProtocol(model, scenario, metrics)
+    }
+
+    /** Returns the trust model and the scenario of [protocol] to the current thread's pool */
+    internal fun release(protocol: EvaluationProtocol) {
+        listOf(protocol.trustModel, protocol.scenario).filter { isPooled(it.javaClass) }.forEach {
+            instances.get()[it.javaClass] = it
+        }
+    }
+
+    /**
+     * Creates the evaluation task for [spec] with pooled instances; they are released once the run
+     * ends. Readings are written to [sink].
+     */
+    fun setup(spec: RunSpec, sink: ResultSink = ColumnarSink(),
+              classLoader: ClassLoader = RunSpec::class.java.classLoader): EvaluationTask {
+        val metrics = spec.createMetrics(classLoader)
+        val protocol = createProtocol(spec, metrics, classLoader)
+        val task = setupEvaluation(protocol, spec.duration, metrics.keys, sink, spec.describe(protocol))
+        return releasing(protocol, task)
+    }
+
+    /** Returns a task that releases instances of [protocol] once [task] ends */
+    internal fun releasing(protocol: EvaluationProtocol, task: EvaluationTask): EvaluationTask {
+        val running = AtomicReference(protocol)
+        return task.withSupplier(Supplier {
+            try {
+                task.supplier.get()
+            } finally {
+                running.getAndSet(null)?.let { release(it) }
+            }
+        })
+    }
+
+    private fun acquire(clazz: Class<*>, seed: Int, params: List<Any>): Any? {
+        if (!isPooled(clazz)) {
+            return null
+        }
+
+        val instance = instances.get().remove(clazz) ?: return null
+        (instance as Resettable).reset(seed, *params.toTypedArray())
+        return instance
+    }
+
+    private fun isPooled(clazz: Class<*>): Boolean = Resettable::class.java.isAssignableFrom(clazz) &&
+            clazz.getMethod("reset", Int::class.javaPrimitiveType, Array<Any>::class.java).declaringClass == clazz
+}
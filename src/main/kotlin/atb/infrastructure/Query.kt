@@ -0,0 +1,113 @@
+package atb.infrastructure
+
+import java.io.File
+import java.util.stream.Collectors
+
+/**
+ * Selects series in stored results; unset fields match anything. Plugin and metric names
+ * match regardless of case, and plugins may be given by their names (as returned by their
+ * `toString`), their classes or their simple class names. Only completed runs are selected,
+ * unless [incomplete] is set.
+ */
+data class Selection(val trustModel: String? = null, val scenario: String? = null,
+                     val metric: String? = null, val service: Int? = null, val incomplete: Boolean = false)
+
+/** Summarizes a per-series value across all selected series; all values are NaN if no series was selected */
+data class Summary(val count: Int, val mean: Double, val sd: Double, val ciLow: Double, val ciHigh: Double,
+                   val quantiles: Map<Double, Double>)
+
+/**
+ * Answers aggregate queries over results stored by [ResultsWriter], such as the mean of a metric
+ * at a given tick across many batches. Files are memory-mapped and scanned in parallel; for every
+ * selected series, only the chunks that hold the requested values are read.
+ *
+ * Confidence intervals are computed at given [level].
+ */
+class ResultsQuery(val files: List<File>, val level: Double = 0.95) {
+
+    /** Returns the [statistic] of every selected series */
+    fun values(statistic: Statistic, selection: Selection = Selection()): List<Double> =
+            scan(selection) { reader, run, metric, service ->
+                when (statistic) {
+                    Statistic.FINAL -> reader.finalValue(run, metric, service)
+                    Statistic.AREA -> reader.series(run, metric, service).values.sum()
+                }
+            }
+
+    /** Returns the value at given [tick] of every selected series that has it */
+    fun valuesAt(tick: Int, selection: Selection = Selection()): List<Double> =
+            scan(selection) { reader, run, metric, service -> reader.valueAt(run, metric, service, tick) }
+
+    /** Summarizes the [statistic] of selected series */
+    fun summarize(statistic: Statistic, selection: Selection = Selection(),
+                  quantiles: DoubleArray = DEFAULT_QUANTILES): Summary =
+            summarize(values(statistic, selection), quantiles)
+
+    /** Summarizes values of selected series at given [tick] */
+    fun summarizeAt(tick: Int, selection: Selection = Selection(), quantiles: DoubleArray = DEFAULT_QUANTILES): Summary =
+            summarize(valuesAt(tick, selection), quantiles)
+
+    /** Aggregates selected series into curves, per metric and service, as [BatchAggregate] does for a batch */
+    fun curve(selection: Selection = Selection(), quantiles: DoubleArray = doubleArrayOf()): List<AggregatePoint> {
+        val aggregate = BatchAggregate(quantiles, level)
+        scan(selection) { reader, run, metric, service ->
+            val series = reader.series(run, metric, service)
+            for (i in 0 until series.size) {
+                aggregate.add(series.ticks[i], metric, service, series.values[i])
+            }
+            null
+        }
+        return aggregate.points()
+    }
+
+    private fun summarize(values: List<Double>, quantiles: DoubleArray): Summary {
+        if (values.isEmpty()) {
+            return Summary(0, Double.NaN, Double.NaN, Double.NaN, Double.NaN, quantiles.associate { it to Double.NaN })
+        }
+
+        val welford = Welford()
+        values.forEach { welford.add(it) }
+        val halfWidth = welford.halfWidth(level)
+        val sorted = values.sorted()
+
+        return Summary(welford.count, welford.mean, welford.sd, welford.mean - halfWidth, welford.mean + halfWidth,
+                quantiles.associate {
+                    it to sorted[Math.round(it * (sorted.size - 1)).toInt()]
+                })
+    }
+
+    /** Applies [read] to every selected series in all files and collects the non-null results */
+    private fun scan(selection: Selection, read: (ResultsReader, Int, String, Int) -> Double?): List<Double> =
+            files.parallelStream().map { file ->
+                ResultsReader(file).use { reader ->
+                    val metrics = reader.metrics.filter { matches(selection.metric, it) }
+                    val runs = reader.runs.filter {
+                        (selection.incomplete || it.state == RunState.COMPLETED) &&
+                                (matches(selection.trustModel, it.trustModel) ||
+                                        matches(selection.trustModel, it.trustModelClass)) &&
+                                (matches(selection.scenario, it.scenario) || matches(selection.scenario, it.scenarioClass))
+                    }
+
+                    runs.flatMap { run ->
+                        metrics.flatMap { metric ->
+                            reader.services(run.index, metric)
+                                    .filter { selection.service == null || it == selection.service }
+                                    .mapNotNull { read(reader, run.index, metric, it) }
+                        }
+                    }
+                }
+            }.collect(Collectors.toList()).flatten()
+
+    private fun matches(filter: String?, name: String) = filter == null || filter.equals(name, true) ||
+            filter.equals(name.substringAfterLast('.'), true)
+
+    companion object {
+        val DEFAULT_QUANTILES = doubleArrayOf(0.05, 0.5, 0.95)
+
+        /** Queries all results files among [paths]; directories are searched for `.atbc` files */
+        fun of(paths: List<File>, level: Double = 0.95) = ResultsQuery(paths.flatMap { path ->
+            if (path.isDirectory) path.walk().filter { it.isFile && it.extension == "atbc" }.sorted().toList()
+            else listOf(path)
+        }, level)
+    }
+}
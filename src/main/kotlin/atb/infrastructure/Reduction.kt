@@ -0,0 +1,180 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import atb.interfaces.ParametersPanel
+
+/**
+ * A policy that reduces readings of a run as they are written (see [ReducingSink]). Every series,
+ * that is, readings of a metric for a service, is reduced separately, and the reading at the last
+ * tick of a series is always kept. The [policy] name and the parameters identify the reduction in
+ * the output.
+ */
+sealed class Reduction(val policy: String) {
+    internal abstract fun reducer(): SeriesReducer
+
+    /** Keeps readings at every [k]-th tick, starting with the first */
+    class EveryKth(val k: Int) : Reduction("every") {
+        init {
+            require(k > 0) { "Reduction must keep every k-th tick for a positive k, not $k." }
+        }
+
+        override fun reducer() = object : SeriesReducer() {
+            override fun add(reading: Reading, emit: (Reading) -> Unit) {
+                if ((reading.tick - 1) % k == 0) {
+                    pending = null
+                    emit(reading)
+                } else {
+                    pending = reading
+                }
+            }
+        }
+
+        override fun toString() = "$policy(k=$k)"
+    }
+
+    /**
+     * Replaces readings in every window of [width] ticks with their mean at the last tick of the
+     * window; the minimum and the maximum are written as readings of an [EnvelopeMetric].
+     */
+    class Envelope(val width: Int) : Reduction("envelope") {
+        init {
+            require(width > 0) { "Envelope windows must be at least a tick wide, not $width." }
+        }
+
+        override fun reducer() = object : SeriesReducer() {
+            private var min = Double.POSITIVE_INFINITY
+            private var max = Double.NEGATIVE_INFINITY
+            private var sum = 0.0
+            private var count = 0
+            private var last: Reading? = null
+            private var bounds: Pair<EnvelopeMetric, EnvelopeMetric>? = null
+
+            override fun add(reading: Reading, emit: (Reading) -> Unit) {
+                min = Math.min(min, reading.value)
+                max = Math.max(max, reading.value)
+                sum += reading.value
+                count++
+                last = reading
+
+                if (reading.tick % width == 0) {
+                    flush(emit)
+                }
+            }
+
+            override fun finish(emit: (Reading) -> Unit) = flush(emit)
+
+            private fun flush(emit: (Reading) -> Unit) {
+                val reading = last ?: return
+                val (lower, upper) = bounds ?: Pair(EnvelopeMetric(reading.metric, "min"),
+                        EnvelopeMetric(reading.metric, "max")).also { bounds = it }
+
+                emit(Reading(reading.tick, reading.metric, reading.service, sum / count))
+                emit(Reading(reading.tick, lower, reading.service, min))
+                emit(Reading(reading.tick, upper, reading.service, max))
+
+                min = Double.POSITIVE_INFINITY
+                max = Double.NEGATIVE_INFINITY
+                sum = 0.0
+                count = 0
+                last = null
+            }
+        }
+
+        override fun toString() = "$policy(width=$width)"
+    }
+
+    /**
+     * Keeps only readings needed to reconstruct the series by linear interpolation within [epsilon];
+     * every dropped reading lies within [epsilon] of the line between the kept readings around it
+     * (the swinging door algorithm).
+     */
+    class Deviation(val epsilon: Double) : Reduction("deviation") {
+        init {
+            require(epsilon >= 0) { "Deviation must be non-negative, not $epsilon." }
+        }
+
+        override fun reducer() = object : SeriesReducer() {
+            private var anchor: Reading? = null
+            private var lower = Double.NEGATIVE_INFINITY
+            private var upper = Double.POSITIVE_INFINITY
+
+            override fun add(reading: Reading, emit: (Reading) -> Unit) {
+                val start = anchor
+                if (start == null) {
+                    emit(reading)
+                    anchor = reading
+                    return
+                }
+
+                val previous = pending
+                if (previous != null && slope(start, reading) !in lower..upper) {
+                    // the line to this reading would miss a dropped one; keep the previous reading
+                    emit(previous)
+                    anchor = previous
+                    lower = Double.NEGATIVE_INFINITY
+                    upper = Double.POSITIVE_INFINITY
+                }
+
+                val from = anchor!!
+                val span = (reading.tick - from.tick).toDouble()
+                lower = Math.max(lower, (reading.value - epsilon - from.value) / span)
+                upper = Math.min(upper, (reading.value + epsilon - from.value) / span)
+                pending = reading
+            }
+
+            private fun slope(from: Reading, to: Reading) = (to.value - from.value) / (to.tick - from.tick)
+        }
+
+        override fun toString() = "$policy(epsilon=$epsilon)"
+    }
+}
+
+/** Reduces a single series; [pending] holds the last reading if it has not been emitted yet */
+internal abstract class SeriesReducer {
+    protected var pending: Reading? = null
+
+    abstract fun add(reading: Reading, emit: (Reading) -> Unit)
+
+    open fun finish(emit: (Reading) -> Unit) {
+        pending?.let(emit)
+        pending = null
+    }
+}
+
+/**
+ * A bound of an envelope of the [base] metric, such as its minimum within a window. Bounds are equal
+ * when their base metrics and bounds are, so sinks that encode metrics in dictionaries keep a single
+ * entry per bound, regardless of the number of reduced series.
+ */
+data class EnvelopeMetric(val base: Metric, val bound: String) : Metric {
+    override fun initialize(vararg params: Any?) {}
+
+    override fun getParametersPanel(): ParametersPanel? = null
+
+    override fun toString() = "$base ($bound)"
+}
+
+/**
+ * Applies the [reduction] to readings before they are written to the [delegate]. Readings of
+ * a run are expected in increasing order of ticks within every series.
+ */
+class ReducingSink(val reduction: Reduction, private val delegate: ResultSink = ColumnarSink()) : ResultSink {
+    private val reducers = LinkedHashMap<Pair<Metric, Int>, SeriesReducer>()
+    private val emit: (Reading) -> Unit = { delegate.write(it) }
+
+    override val size: Int
+        get() = delegate.size
+
+    override fun write(reading: Reading) {
+        reducers.getOrPut(Pair(reading.metric, reading.service)) { reduction.reducer() }.add(reading, emit)
+    }
+
+    override fun iterator(): Iterator<Reading> = delegate.iterator()
+
+    override fun cursor(): ReadingCursor = delegate.cursor()
+
+    override fun close() {
+        reducers.values.forEach { it.finish(emit) }
+        delegate.close()
+    }
+}
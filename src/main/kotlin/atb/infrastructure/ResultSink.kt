@@ -0,0 +1,217 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import java.io.*
+
+/**
+ * Receives readings of an evaluation run as ticks complete. A sink is written to by a single
+ * evaluation thread; it may be iterated once the run has ended.
+ */
+interface ResultSink : Iterable<Reading>, Closeable {
+    /** Number of readings written to this sink */
+    val size: Int
+
+    /** Stores a single reading */
+    fun write(reading: Reading)
+
+    /** Returns a cursor over stored readings; unlike iterating, it need not allocate a [Reading] per row */
+    fun cursor(): ReadingCursor = IteratorCursor(iterator())
+
+    /** Invoked once the evaluation run ends; after that, no more readings are written */
+    override fun close() {}
+}
+
+/**
+ * A forward-only cursor over readings. Properties refer to the current row and
+ * are valid only after [next] has returned true. Cursors that are not read to the
+ * end should be closed, since they may hold open files.
+ */
+interface ReadingCursor : Closeable {
+    val tick: Int
+    val metric: Metric
+    val service: Int
+    val value: Double
+
+    /** Moves to the next row; returns false when there are no more rows */
+    fun next(): Boolean
+
+    override fun close() {}
+}
+
+/** Adapts an iterator of readings to a [ReadingCursor] */
+internal class IteratorCursor(private val iterator: Iterator<Reading>) : ReadingCursor {
+    private lateinit var current: Reading
+
+    override val tick: Int
+        get() = current.tick
+    override val metric: Metric
+        get() = current.metric
+    override val service: Int
+        get() = current.service
+    override val value: Double
+        get() = current.value
+
+    override fun next(): Boolean {
+        if (!iterator.hasNext()) {
+            return false
+        }
+        current = iterator.next()
+        return true
+    }
+}
+
+/** Adapts a [ReadingCursor] to an iterator that creates a [Reading] for every row */
+internal class CursorIterator(private val cursor: ReadingCursor) : Iterator<Reading> {
+    private var hasCurrent: Boolean? = null
+
+    override fun hasNext(): Boolean {
+        if (hasCurrent == null) {
+            hasCurrent = cursor.next()
+        }
+        return hasCurrent!!
+    }
+
+    override fun next(): Reading {
+        if (!hasNext()) {
+            throw NoSuchElementException()
+        }
+        hasCurrent = null
+        return Reading(cursor.tick, cursor.metric, cursor.service, cursor.value)
+    }
+}
+
+/** Keeps all readings in memory as [Reading] instances */
+class InMemorySink : ResultSink {
+    private val readings = ArrayList<Reading>()
+
+    override val size: Int
+        get() = readings.size
+
+    override fun write(reading: Reading) {
+        readings.add(reading)
+    }
+
+    override fun iterator(): Iterator<Reading> = readings.iterator()
+}
+
+/** Discards all readings; useful when results are consumed by other subscribers */
+object NoOpSink : ResultSink {
+    override val size: Int = 0
+
+    override fun write(reading: Reading) {}
+
+    override fun iterator(): Iterator<Reading> = emptyList<Reading>().iterator()
+}
+
+/**
+ * Buffers at most [bufferSize] readings in memory and spills them to [file] once the
+ * buffer fills up. Memory consumption is therefore bounded regardless of the run duration.
+ *
+ * Readings are stored in a compact binary form: metrics are replaced with indexes
+ * into a dictionary that is kept in memory. Iterating over the sink flushes the buffer
+ * and reads the readings back from the file. Once the readings are no longer needed,
+ * [delete] closes open cursors and removes the file.
+ */
+class FileSink(val file: File = createTempFile("atb-", ".readings"),
+               private val bufferSize: Int = 8192) : ResultSink {
+    private val metrics = ArrayList<Metric>()
+    private val buffer = ArrayList<Reading>(bufferSize)
+    private var output: DataOutputStream? = null
+    private val inputs = HashSet<Closeable>()
+
+    override var size: Int = 0
+        private set
+
+    override fun write(reading: Reading) {
+        buffer.add(reading)
+        size++
+
+        if (buffer.size >= bufferSize) {
+            flush()
+        }
+    }
+
+    /** Iterates over readings; since the iterator holds the file open until it is exhausted, prefer [cursor] */
+    override fun iterator(): Iterator<Reading> = CursorIterator(cursor())
+
+    override fun cursor(): ReadingCursor {
+        if (size == 0) {
+            return IteratorCursor(emptyList<Reading>().iterator())
+        }
+
+        flush()
+        output?.flush()
+
+        val input = DataInputStream(BufferedInputStream(FileInputStream(file)))
+        synchronized(inputs) { inputs.add(input) }
+        var remaining = size
+
+        return object : ReadingCursor {
+            override var tick: Int = 0
+            override lateinit var metric: Metric
+            override var service: Int = 0
+            override var value: Double = 0.0
+
+            override fun next(): Boolean {
+                if (remaining == 0) {
+                    close()
+                    return false
+                }
+
+                remaining--
+                tick = input.readInt()
+                metric = metrics[input.readShort().toInt()]
+                service = input.readInt()
+                value = input.readDouble()
+                return true
+            }
+
+            override fun close() {
+                synchronized(inputs) { inputs.remove(input) }
+                input.close()
+            }
+        }
+    }
+
+    override fun close() {
+        flush()
+        output?.close()
+        output = null
+    }
+
+    /** Closes cursors that are still open and removes the underlying file */
+    fun delete() {
+        close()
+        synchronized(inputs) {
+            inputs.forEach { it.close() }
+            inputs.clear()
+        }
+        file.delete()
+    }
+
+    private fun flush() {
+        if (buffer.isEmpty()) {
+            return
+        }
+
+        val out = output ?: DataOutputStream(BufferedOutputStream(
+                FileOutputStream(file, size > buffer.size))).also { output = it }
+
+        for (reading in buffer) {
+            out.writeInt(reading.tick)
+            out.writeShort(metricIndex(reading.metric))
+            out.writeInt(reading.service)
+            out.writeDouble(reading.value)
+        }
+
+        buffer.clear()
+    }
+
+    private fun metricIndex(metric: Metric): Int {
+        val index = metrics.indexOf(metric)
+        return if (index >= 0) index else {
+            metrics.add(metric)
+            metrics.size - 1
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+
+/** Terminal states of runs stored in a results file */
+enum class RunState {
+    /** No terminal state was recorded; the run may not have ended */
+    UNKNOWN,
+    COMPLETED,
+    INTERRUPTED,
+    FAULTED,
+    TIMED_OUT;
+
+    companion object {
+        /** Returns the terminal state that corresponds to given evaluation [state] */
+        fun of(state: EvaluationState) = when (state) {
+            is Completed -> COMPLETED
+            is Interrupted -> INTERRUPTED
+            is Faulted -> FAULTED
+            is TimedOut -> TIMED_OUT
+            else -> UNKNOWN
+        }
+    }
+}
+
+/**
+ * A run stored in a results file: its [index] in the file, [seed], plugin names (as returned by their
+ * `toString`) and classes, the last recorded [tick], its terminal [state], its [duration] in milliseconds
+ * (zero if unknown) and the [reduction] of its readings, if they were reduced
+ */
+data class RunInfo(val index: Int, val seed: Int, val trustModel: String, val scenario: String,
+                   val trustModelClass: String, val scenarioClass: String, val tick: Int,
+                   val state: RunState, val duration: Long, val reduction: String?)
+
+/** Readings of a single metric for a single service in a run, ordered by tick */
+class Series(val ticks: IntArray, val values: DoubleArray) {
+    val size: Int
+        get() = ticks.size
+}
+
+/**
+ * Writes results of many runs into a single binary file. The file starts with a header holding a
+ * free-form description of the batch [configuration] (for instance, the batch specification in JSON),
+ * which is followed by chunks and the index.
+ *
+ * Every chunk holds up to [chunkSize] readings of one metric for one service in one run. Ticks are
+ * delta-encoded as variable-length integers, metrics are replaced by indexes into a dictionary and
+ * values are stored as doubles; every chunk carries a CRC-32 checksum. The index at the end of the
+ * file lists runs, the metric dictionary and the location of every chunk, so readers can seek
+ * directly to any series; see [ResultsReader]. Batches that run seeds until a target precision is
+ * reached (see [SequentialSeeds]) also store the achieved [Precision] in the index.
+ *
+ * Runs write concurrently through sinks created by [sink]; once a run ends, its terminal state is recorded
+ * with [finish]. The file is complete once [close] returns.
+ */
+class ResultsWriter(val file: File, val configuration: String = "", val chunkSize: Int = 4096) : Closeable {
+    private val stream = FileOutputStream(file)
+    private val output = DataOutputStream(BufferedOutputStream(stream, 1 shl 16))
+    private val metrics = LinkedHashMap<String, Int>()
+    private val runs = ArrayList<RunInfo>()
+    private val chunks = ArrayList<ChunkEntry>()
+    private var offset = 0L
+
+    init {
+        val header = configuration.toByteArray(Charsets.UTF_8)
+        output.writeInt(MAGIC)
+        output.writeShort(VERSION)
+        output.writeInt(header.size)
+        output.write(header)
+        offset = 10L + header.size
+    }
+
+    /**
+     * Returns a sink that streams readings of a run to this file; readings are also passed to the
+     * [delegate]. The last tick of the run is recorded in the index once the sink is closed.
+     */
+    fun sink(seed: Int, trustModel: String, scenario: String, delegate: ResultSink = NoOpSink): ResultSink =
+            sink(seed, trustModel, scenario, trustModel, scenario, null, delegate)
+
+    /** Returns a sink that streams readings of the run described by [descriptor]; see [sink] */
+    fun sink(descriptor: RunDescriptor, delegate: ResultSink = NoOpSink): ResultSink =
+            sink(descriptor.seed, descriptor.trustModel, descriptor.scenario, descriptor.trustModelClass,
+                    descriptor.scenarioClass, descriptor.reduction, delegate)
+
+    /**
+     * Records the terminal [state] of the run whose readings are written to [sink] and its duration,
+     * measured from the creation of the sink. Runs whose state is not recorded are stored as
+     * [RunState.UNKNOWN].
+     */
+    fun finish(sink: ResultSink, state: RunState) = synchronized(this) {
+        require(sink is RunSink && sink.writer === this) { "The sink does not belong to $file" }
+        runs[sink.run] = runs[sink.run].copy(state = state,
+                duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sink.created))
+    }
+
+    /** Writes all readings of a completed run */
+    fun write(data: EvaluationData) {
+        val sink = sink(data.descriptor)
+        data.readings.cursor().use { cursor ->
+            while (cursor.next()) {
+                sink.write(Reading(cursor.tick, cursor.metric, cursor.service, cursor.value))
+            }
+        }
+        sink.close()
+        finish(sink, RunState.COMPLETED)
+    }
+
+    /** Writes the index and closes the file */
+    override fun close() = close(emptyList())
+
+    /** Writes the index, which also holds the achieved [precision] of the batch, and closes the file */
+    fun close(precision: List<Precision>) = synchronized(this) {
+        val footer = offset
+        output.writeInt(metrics.size)
+        metrics.keys.forEach { output.writeUTF(it) }
+
+        output.writeInt(runs.size)
+        runs.forEach {
+            output.writeInt(it.seed)
+            output.writeUTF(it.trustModel)
+            output.writeUTF(it.scenario)
+            output.writeUTF(it.trustModelClass)
+            output.writeUTF(it.scenarioClass)
+            output.writeInt(it.tick)
+            output.writeByte(it.state.ordinal)
+            output.writeLong(it.duration)
+            output.writeUTF(it.reduction ?: "")
+        }
+
+        output.writeInt(chunks.size)
+        chunks.forEach {
+            output.writeInt(it.run)
+            output.writeShort(it.metric)
+            output.writeInt(it.service)
+            output.writeLong(it.offset)
+            output.writeInt(it.count)
+            output.writeInt(it.firstTick)
+            output.writeInt(it.lastTick)
+        }
+
+        output.writeInt(precision.size)
+        precision.forEach {
+            output.writeUTF(it.metric)
+            output.writeInt(it.service)
+            output.writeInt(it.seeds)
+            output.writeDouble(it.mean)
+            output.writeDouble(it.halfWidth)
+        }
+
+        output.writeLong(footer)
+        output.writeInt(MAGIC)
+        output.close()
+    }
+
+    private fun sink(seed: Int, trustModel: String, scenario: String, trustModelClass: String,
+                     scenarioClass: String, reduction: String?, delegate: ResultSink): ResultSink = synchronized(this) {
+        runs.add(RunInfo(runs.size, seed, trustModel, scenario, trustModelClass, scenarioClass, 0,
+                RunState.UNKNOWN, 0, reduction))
+        RunSink(runs.size - 1, delegate)
+    }
+
+    private fun metricIndex(name: String): Int = synchronized(this) { metrics.getOrPut(name) { metrics.size } }
+
+    private fun writeChunk(run: Int, metric: Int, service: Int, ticks: IntArray, values: DoubleArray, count: Int) {
+        val bytes = ByteArrayOutputStream(count * 10 + 16)
+        val payload = DataOutputStream(bytes)
+        payload.writeInt(count)
+
+        var previous = 0
+        for (i in 0 until count) {
+            writeVarInt(payload, ticks[i] - previous)
+            previous = ticks[i]
+        }
+        for (i in 0 until count) {
+            payload.writeDouble(values[i])
+        }
+
+        val array = bytes.toByteArray()
+        val crc = CRC32()
+        crc.update(array)
+
+        synchronized(this) {
+            chunks.add(ChunkEntry(run, metric, service, offset, count, ticks[0], ticks[count - 1]))
+            output.writeInt(array.size)
+            output.write(array)
+            output.writeInt(crc.value.toInt())
+            offset += array.size + 8
+        }
+    }
+
+    private fun finish(run: Int, tick: Int) = synchronized(this) {
+        runs[run] = runs[run].copy(tick = tick)
+        output.flush()
+    }
+
+    /** Buffers readings of a run per metric and service and writes full buffers as chunks */
+    private inner class RunSink(val run: Int, private val delegate: ResultSink) : ResultSink {
+        val writer = this@ResultsWriter
+        val created = System.nanoTime()
+        private val buffers = LinkedHashMap<Pair<Metric, Int>, Buffer>()
+        private var lastTick = 0
+
+        override var size: Int = 0
+            private set
+
+        override fun write(reading: Reading) {
+            val buffer = buffers.getOrPut(Pair(reading.metric, reading.service)) {
+                Buffer(metricIndex(reading.metric.toString()), reading.service)
+            }
+
+            buffer.ticks[buffer.count] = reading.tick
+            buffer.values[buffer.count] = reading.value
+            buffer.count++
+            if (buffer.count == chunkSize) {
+                buffer.flush()
+            }
+
+            lastTick = reading.tick
+            size++
+            delegate.write(reading)
+        }
+
+        /** Readings are kept only in the file and in the delegate */
+        override fun iterator(): Iterator<Reading> = delegate.iterator()
+
+        override fun cursor(): ReadingCursor = delegate.cursor()
+
+        override fun close() {
+            buffers.values.forEach { it.flush() }
+            finish(run, lastTick)
+            delegate.close()
+        }
+
+        private inner class Buffer(val metric: Int, val service: Int) {
+            val ticks = IntArray(chunkSize)
+            val values = DoubleArray(chunkSize)
+            var count = 0
+
+            fun flush() {
+                if (count > 0) {
+                    writeChunk(run, metric, service, ticks, values, count)
+                    count = 0
+                }
+            }
+        }
+    }
+
+    companion object {
+        internal const val MAGIC = 0x41544243 // "ATBC"
+        internal const val VERSION = 3
+
+        private fun writeVarInt(output: DataOutput, value: Int) {
+            var remaining = value
+            while (remaining and 0x7F.inv() != 0) {
+                output.writeByte(remaining and 0x7F or 0x80)
+                remaining = remaining ushr 7
+            }
+            output.writeByte(remaining)
+        }
+    }
+}
+
+/** Location of a chunk in a results file */
+internal class ChunkEntry(val run: Int, val metric: Int, val service: Int, val offset: Long, val count: Int,
+                          val firstTick: Int, val lastTick: Int)
+
+/**
+ * Reads files written by [ResultsWriter]. The file is memory-mapped; opening it reads only its header
+ * and index, while series are decoded on demand from the chunks that hold them. Chunks are verified
+ * against their checksums whenever complete series are read. A reader may be used by many threads.
+ */
+class ResultsReader(val file: File) : Closeable {
+    private val channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)
+    private val size = channel.size()
+    private val mapped = if (size <= Int.MAX_VALUE) channel.map(FileChannel.MapMode.READ_ONLY, 0, size) else null
+    private val chunks: Map<Triple<Int, Int, Int>, List<ChunkEntry>>
+
+    /** Description of the batch stored in the header */
+    val configuration: String
+
+    /** Names of metrics in the file */
+    val metrics: List<String>
+
+    /** Runs in the file, ordered by their index */
+    val runs: List<RunInfo>
+
+    /** Achieved precision of the batch; empty unless seeds were run until a target precision */
+    val precision: List<Precision>
+
+    init {
+        val head = region(0, minOf(size, 10L))
+        val version = if (size < 22 || head.int != ResultsWriter.MAGIC) 0 else head.short.toInt()
+        if (version !in 2..ResultsWriter.VERSION) {
+            throw IOException("$file is not a results file")
+        }
+        val header = ByteArray(head.int)
+        region(10, header.size.toLong()).get(header)
+        configuration = String(header, Charsets.UTF_8)
+
+        val tail = region(size - 12, 12)
+        val footer = tail.long
+        if (tail.int != ResultsWriter.MAGIC) {
+            throw IOException("$file is incomplete")
+        }
+
+        val bytes = ByteArray((size - 12 - footer).toInt())
+        region(footer, bytes.size.toLong()).get(bytes)
+        val index = DataInputStream(ByteArrayInputStream(bytes))
+        metrics = (1..index.readInt()).map { index.readUTF() }
+        runs = (0 until index.readInt()).map {
+            RunInfo(it, index.readInt(), index.readUTF(), index.readUTF(), index.readUTF(), index.readUTF(),
+                    index.readInt(), RunState.values()[index.readByte().toInt()], index.readLong(),
+                    index.readUTF().takeIf { it.isNotEmpty() })
+        }
+        chunks = (1..index.readInt()).map {
+            ChunkEntry(index.readInt(), index.readShort().toInt(), index.readInt(), index.readLong(),
+                    index.readInt(), index.readInt(), index.readInt())
+        }.groupBy { Triple(it.run, it.metric, it.service) }.mapValues { (_, list) -> list.sortedBy { it.firstTick } }
+        // files of version 2 do not store the precision
+        precision = if (version < 3) emptyList() else (1..index.readInt()).map {
+            Precision(index.readUTF(), index.readInt(), index.readInt(), index.readDouble(), index.readDouble())
+        }
+    }
+
+    /** Returns the services for which [metric] was recorded in given [run] */
+    fun services(run: Int, metric: String): List<Int> {
+        val metricIndex = metrics.indexOf(metric)
+        return chunks.keys.filter { it.first == run && it.second == metricIndex }.map { it.third }.sorted()
+    }
+
+    /** Reads readings of [metric] for [service] in given [run] */
+    fun series(run: Int, metric: String, service: Int): Series {
+        val selected = entries(run, metric, service)
+        val ticks = IntArray(selected.map { it.count }.sum())
+        val values = DoubleArray(ticks.size)
+        var position = 0
+
+        for (chunk in selected) {
+            decodeChunk(payload(chunk, true), ticks, values, position)
+            position += chunk.count
+        }
+
+        return Series(ticks, values)
+    }
+
+    /** Returns the value of [metric] for [service] at the last recorded tick of [run]; only that value is read */
+    fun finalValue(run: Int, metric: String, service: Int): Double? {
+        val payload = payload(entries(run, metric, service).lastOrNull() ?: return null, false)
+        return payload.getDouble(payload.limit() - 8)
+    }
+
+    /** Returns the value of [metric] for [service] at given [tick] of [run]; only the chunk holding it is read */
+    fun valueAt(run: Int, metric: String, service: Int, tick: Int): Double? {
+        val chunk = entries(run, metric, service).firstOrNull { tick in it.firstTick..it.lastTick } ?: return null
+        val ticks = IntArray(chunk.count)
+        val values = DoubleArray(chunk.count)
+        decodeChunk(payload(chunk, true), ticks, values, 0)
+        val index = ticks.binarySearch(tick)
+        return if (index >= 0) values[index] else null
+    }
+
+    override fun close() = channel.close()
+
+    private fun entries(run: Int, metric: String, service: Int): List<ChunkEntry> =
+            chunks[Triple(run, metrics.indexOf(metric), service)] ?: emptyList()
+
+    /** Returns the payload of a [chunk], verifying its checksum if [verify] is set */
+    private fun payload(chunk: ChunkEntry, verify: Boolean): ByteBuffer {
+        val length = region(chunk.offset, 4).int
+        val payload = region(chunk.offset + 4, length.toLong())
+
+        if (verify) {
+            val crc = CRC32()
+            crc.update(payload.duplicate())
+            if (region(chunk.offset + 4 + length, 4).int != crc.value.toInt()) {
+                throw IOException("Chunk at ${chunk.offset} in $file is corrupt")
+            }
+        }
+
+        return payload
+    }
+
+    private fun region(offset: Long, length: Long): ByteBuffer {
+        if (mapped == null) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length)
+        }
+
+        val buffer = mapped.duplicate()
+        buffer.position(offset.toInt())
+        buffer.limit((offset + length).toInt())
+        return buffer.slice()
+    }
+}
+
+/** Decodes a chunk payload into [ticks] and [values] starting at [position] */
+internal fun decodeChunk(payload: ByteBuffer, ticks: IntArray, values: DoubleArray, position: Int) {
+    val count = payload.int
+    var tick = 0
+    for (i in 0 until count) {
+        tick += readVarInt(payload)
+        ticks[position + i] = tick
+    }
+    for (i in 0 until count) {
+        values[position + i] = payload.double
+    }
+}
+
+private fun readVarInt(input: ByteBuffer): Int {
+    var value = 0
+    var shift = 0
+    while (true) {
+        val byte = input.get().toInt()
+        value = value or (byte and 0x7F shl shift)
+        if (byte and 0x80 == 0) {
+            return value
+        }
+        shift += 7
+    }
+}
@@ -0,0 +1,194 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.function.Supplier
+import java.util.logging.Logger
+
+/**
+ * A persistent cache of evaluation results stored in [directory]. Entries are content-addressed:
+ * the key is a hash of the complete run specification (trust model, scenario, metrics, their
+ * parameters, the seed and the duration), of the testbed version and of the class hierarchies of
+ * the trust model, the scenario and metrics (see [RunSpec.hash]). Changing a plugin, one of its
+ * superclasses or the testbed therefore invalidates the affected entries.
+ *
+ * Batches use the cache when their specification names a `cache` directory (see [BatchSpec]).
+ * When the cache grows beyond [maxBytes], the least recently used entries are removed.
+ */
+class RunCache(val directory: File, val maxBytes: Long = 1L shl 30) {
+
+    init {
+        directory.mkdirs()
+    }
+
+    /**
+     * Returns an evaluation task for given [spec]. If the cache holds the results of the same run, the
+     * task completes immediately with the cached readings written to [sink]; otherwise the run is
+     * set up by [evaluate] and its readings are recorded, so that they are stored once it completes.
+     * When [bypass] is set, the cache is not consulted, but the new results still replace the cached ones.
+     */
+    fun setup(spec: RunSpec, sink: ResultSink = ColumnarSink(), bypass: Boolean = false,
+              classLoader: ClassLoader = RunSpec::class.java.classLoader,
+              evaluate: (RunSpec, ResultSink) -> EvaluationTask = { run, target -> run.setup(target, classLoader) })
+            : EvaluationTask {
+        val key = key(spec, classLoader)
+        val entry = File(directory, "$key.run")
+
+        if (!bypass && entry.exists()) {
+            return spec.restored(sink, classLoader) { metrics, restored ->
+                entry.setLastModified(System.currentTimeMillis())
+                readRun(entry, metrics, restored)
+            }
+        }
+
+        // readings are recorded separately, since the sink need not keep them
+        val recorded = FileSink(File.createTempFile("atb-", ".readings", directory))
+        val task = try {
+            evaluate(spec, RecordingSink(sink, recorded))
+        } catch (e: Exception) {
+            recorded.delete()
+            throw e
+        }
+
+        return task.withSupplier(Supplier {
+            try {
+                val state = task.supplier.get()
+                if (state is Completed) {
+                    try {
+                        store(entry, recorded)
+                    } catch (e: IOException) {
+                        logger.warning("Could not cache results of $spec: $e")
+                    }
+                }
+                state
+            } finally {
+                recorded.delete()
+            }
+        })
+    }
+
+    /** Removes all entries */
+    fun clear() = synchronized(this) {
+        entries().forEach { it.delete() }
+    }
+
+    /** Computes the content address of given [spec] */
+    fun key(spec: RunSpec, classLoader: ClassLoader = RunSpec::class.java.classLoader): String =
+            spec.hash(classLoader)
+
+    private fun store(entry: File, readings: ResultSink) {
+        val temporary = File.createTempFile("atb-", ".tmp", directory)
+        writeRun(temporary, readings)
+
+        synchronized(this) {
+            Files.move(temporary.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE)
+            evict()
+        }
+    }
+
+    private fun evict() {
+        val entries = entries().sortedBy { it.lastModified() }
+        var total = entries.map { it.length() }.sum()
+
+        for (entry in entries) {
+            if (total <= maxBytes) {
+                break
+            }
+
+            total -= entry.length()
+            entry.delete()
+        }
+    }
+
+    private fun entries(): List<File> = directory.listFiles { _, name -> name.endsWith(".run") }?.toList()
+            ?: emptyList()
+
+    /** Writes readings to the [delegate] and to the [recorder] */
+    private class RecordingSink(private val delegate: ResultSink, private val recorder: ResultSink) : ResultSink {
+        override val size: Int
+            get() = delegate.size
+
+        override fun write(reading: Reading) {
+            delegate.write(reading)
+            recorder.write(reading)
+        }
+
+        override fun iterator(): Iterator<Reading> = delegate.iterator()
+
+        override fun cursor(): ReadingCursor = delegate.cursor()
+
+        override fun close() {
+            recorder.close()
+            delegate.close()
+        }
+    }
+
+    companion object {
+        private val logger = Logger.getLogger(RunCache::class.java.name)
+    }
+}
+
+/**
+ * Writes [readings] to [file] in a compact binary form: a dictionary of metric names followed
+ * by the number of readings and the readings themselves.
+ */
+internal fun writeRun(file: File, readings: ResultSink) {
+    DataOutputStream(BufferedOutputStream(FileOutputStream(file))).use { output ->
+        val dictionary = LinkedHashMap<Metric, Int>()
+        readings.cursor().use { metrics ->
+            while (metrics.next()) {
+                dictionary.getOrPut(metrics.metric) { dictionary.size }
+            }
+        }
+
+        output.writeShort(dictionary.size)
+        dictionary.keys.forEach { output.writeUTF(it.toString()) }
+
+        output.writeInt(readings.size)
+        readings.cursor().use { cursor ->
+            while (cursor.next()) {
+                output.writeInt(cursor.tick)
+                output.writeShort(dictionary.getValue(cursor.metric))
+                output.writeInt(cursor.service)
+                output.writeDouble(cursor.value)
+            }
+        }
+    }
+}
+
+/**
+ * Writes a run in the form of [writeRun] whose readings are already encoded in the [rows] file:
+ * every row holds a tick, an index into [dictionary], a service and a value. Rows are copied
+ * without being decoded, so runs of any length are written in constant memory.
+ */
+internal fun writeRun(file: File, dictionary: List<Metric>, rows: File) {
+    DataOutputStream(BufferedOutputStream(FileOutputStream(file))).use { output ->
+        output.writeShort(dictionary.size)
+        dictionary.forEach { output.writeUTF(it.toString()) }
+
+        output.writeInt((rows.length() / ROW_BYTES).toInt())
+        Files.copy(rows.toPath(), output)
+    }
+}
+
+/** Size of an encoded reading: a tick, a metric index, a service and a value */
+internal const val ROW_BYTES = 18
+
+/** Reads readings written by [writeRun] into [sink]; metric names are resolved against [metrics] */
+internal fun readRun(file: File, metrics: Set<Metric>, sink: ResultSink) {
+    DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+        val byName = metrics.associateBy { it.toString() }
+        val dictionary = (1..input.readShort()).map {
+            val name = input.readUTF()
+            byName[name] ?: throw IOException("Stored metric $name is not among $metrics")
+        }
+
+        repeat(input.readInt()) {
+            sink.write(Reading(input.readInt(), dictionary[input.readShort().toInt()],
+                    input.readInt(), input.readDouble()))
+        }
+    }
+}
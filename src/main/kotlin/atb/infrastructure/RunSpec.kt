@@ -0,0 +1,192 @@
+package atb.infrastructure
+
+import atb.common.DefaultRandomGenerator
+import atb.core.AlphaTestbed
+import atb.core.DecisionsModeA
+import atb.core.DecisionsModeB
+import atb.core.EvaluationProtocol
+import atb.core.NoDecisions
+import atb.interfaces.Metric
+import atb.interfaces.Scenario
+import atb.interfaces.TrustModel
+import java.io.Serializable
+import java.lang.reflect.Modifier
+import java.security.MessageDigest
+import java.util.function.Supplier
+
+/**
+ * Describes a single evaluation run by value: the trust model, the scenario and metrics are
+ * referenced by their class names and their parameters are kept in lists. Unlike live
+ * instances, specifications can be compared, hashed and sent to other processes.
+ */
+data class RunSpec(val trustModel: String, val trustModelParams: List<Any>,
+                   val scenario: String, val scenarioParams: List<Any>,
+                   val metrics: Map<String, List<Any>>, val seed: Int, val duration: Int) : Serializable {
+
+    /** Specification without the seed; runs that differ only in seeds share the configuration */
+    val configuration: RunSpec
+        get() = copy(seed = 0)
+
+    /**
+     * Returns a stable hash of this specification, of the testbed version and of versions of the
+     * classes it references. A class version is a digest of the class files of the class and of all
+     * its superclasses, so it does not depend on where the classes are installed.
+     */
+    fun hash(classLoader: ClassLoader = RunSpec::class.java.classLoader): String {
+        val classes = listOf(trustModel, scenario) + metrics.keys.sorted()
+        val canonical = buildString {
+            append(canonical())
+            append(testbedVersion)
+            classes.forEach { append(':').append(versions.get(classLoader.loadClass(it))) }
+        }
+
+        return hex(MessageDigest.getInstance("SHA-256").digest(canonical.toByteArray(Charsets.UTF_8)))
+    }
+
+    /**
+     * Returns an encoding of this specification that is equal for equivalent specifications, also
+     * across JVMs; see [canonical] for how parameters are encoded.
+     */
+    fun canonical(): String = buildString {
+        append(trustModel).append(canonical(trustModelParams))
+        append(scenario).append(canonical(scenarioParams))
+        metrics.toSortedMap().forEach { name, params -> append(name).append(canonical(params)) }
+        append(seed).append(':').append(duration)
+    }
+
+    /** Instantiates the trust model, the scenario and metrics with [classLoader] and creates the protocol */
+    fun createProtocol(classLoader: ClassLoader = RunSpec::class.java.classLoader): EvaluationProtocol =
+            createProtocol(createMetrics(classLoader), classLoader)
+
+    /** Creates the evaluation task for this specification; readings are written to [sink] */
+    fun setup(sink: ResultSink = ColumnarSink(),
+              classLoader: ClassLoader = RunSpec::class.java.classLoader): EvaluationTask {
+        val metrics = createMetrics(classLoader)
+        val protocol = createProtocol(metrics, classLoader)
+        return setupEvaluation(protocol, duration, metrics.keys, sink, describe(protocol))
+    }
+
+    /**
+     * Returns a task that completes immediately with readings restored by [restore] instead of
+     * evaluating the run; [restore] receives the metric instances and the [sink] to fill.
+     */
+    internal fun restored(sink: ResultSink, classLoader: ClassLoader,
+                          restore: (Set<Metric>, ResultSink) -> Unit): EvaluationTask =
+            EvaluationTask(Supplier {
+                try {
+                    val metrics = createMetrics(classLoader)
+                    restore(metrics.keys, sink)
+                    sink.close()
+                    Completed(EvaluationData(describe(classLoader), metrics.keys, sink))
+                } catch (e: Exception) {
+                    Faulted(0, e, seed)
+                }
+            }, {}, seed = seed)
+
+    internal fun createProtocol(metrics: Map<Metric, Array<Any>>, classLoader: ClassLoader): EvaluationProtocol {
+        val model = classLoader.loadClass(trustModel).newInstance() as TrustModel<*>
+        val scenario = classLoader.loadClass(scenario).newInstance() as Scenario
+        return atb.infrastructure.createProtocol(model, trustModelParams.toTypedArray(), scenario,
+                scenarioParams.toTypedArray(), metrics, seed)
+    }
+
+    /** Describes this run; names are those of the trust model and the scenario in [protocol] */
+    internal fun describe(protocol: EvaluationProtocol) = RunDescriptor(protocol.trustModel.toString(),
+            protocol.scenario.toString(), trustModel, trustModelParams, scenario, scenarioParams, seed, duration)
+
+    /** Describes this run without initializing the trust model and the scenario */
+    internal fun describe(classLoader: ClassLoader) = RunDescriptor(
+            classLoader.loadClass(trustModel).newInstance().toString(),
+            classLoader.loadClass(scenario).newInstance().toString(),
+            trustModel, trustModelParams, scenario, scenarioParams, seed, duration)
+
+    /** Initializes the scenario and returns its number of agents and services */
+    internal fun scenarioSize(classLoader: ClassLoader): Pair<Int, Int> {
+        val scenario = classLoader.loadClass(scenario).newInstance() as Scenario
+        scenario.randomGenerator = DefaultRandomGenerator(seed)
+        scenario.initialize(*scenarioParams.toTypedArray())
+        return Pair(scenario.agents.size, scenario.services.size)
+    }
+
+    internal fun createMetrics(classLoader: ClassLoader): Map<Metric, Array<Any>> =
+            metrics.entries.associate { (name, params) ->
+                classLoader.loadClass(name).newInstance() as Metric to params.toTypedArray()
+            }
+
+    companion object {
+        /**
+         * Encodes a parameter so that equivalent parameters have equal encodings regardless of identity
+         * hash codes. Numbers, booleans and strings are tagged with their types, collections are encoded
+         * element-wise and maps by entries sorted by their encoded keys. Plugin objects, such as deception
+         * models, are identified by their class names, since their state is assigned by the plugin that
+         * receives them; other objects are encoded by their class names and the state of their fields.
+         */
+        fun canonical(value: Any?): String = when (value) {
+            null -> "null"
+            is String -> "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+            is Number, is Boolean, is Char -> value.javaClass.simpleName + "(" + value + ")"
+            is Enum<*> -> value.javaClass.name + "." + value.name
+            is Map<*, *> -> value.entries.map { canonical(it.key) + "=" + canonical(it.value) }.sorted()
+                    .joinToString(",", "{", "}")
+            is Iterable<*> -> value.joinToString(",", "[", "]") { canonical(it) }
+            is Array<*> -> value.joinToString(",", "[", "]") { canonical(it) }
+            is IntArray -> value.joinToString(",", "[", "]") { canonical(it) }
+            is DoubleArray -> value.joinToString(",", "[", "]") { canonical(it) }
+            else -> if (isPlugin(value.javaClass)) value.javaClass.name else value.javaClass.name +
+                    fields(value.javaClass).joinToString(",", "{", "}") {
+                        it.isAccessible = true
+                        it.name + "=" + canonical(it.get(value))
+                    }
+        }
+
+        private fun fields(clazz: Class<*>): List<java.lang.reflect.Field> =
+                generateSequence(clazz) { it.superclass }.takeWhile { it != Any::class.java }
+                        .flatMap { it.declaredFields.asSequence() }
+                        .filter { !Modifier.isStatic(it.modifiers) && !Modifier.isTransient(it.modifiers) }
+                        .sortedBy { it.declaringClass.name + "." + it.name }
+                        .toList()
+
+        /** Digests of class hierarchies, computed once per class */
+        private val versions = object : ClassValue<String>() {
+            override fun computeValue(type: Class<*>): String {
+                val digest = MessageDigest.getInstance("SHA-256")
+                var current: Class<*>? = type
+                while (current != null && !current.name.startsWith("java.")) {
+                    digest.update(current.name.toByteArray(Charsets.UTF_8))
+                    current.getResourceAsStream("/" + current.name.replace('.', '/') + ".class")
+                            ?.use { digest.update(it.readBytes()) }
+                    current = current.superclass
+                }
+                return hex(digest.digest())
+            }
+        }
+
+        /**
+         * Version of the testbed: the implementation version of its jar, if known, and digests of the
+         * classes that evaluate runs
+         */
+        private val testbedVersion: String by lazy {
+            val core = listOf(AlphaTestbed::class.java, EvaluationProtocol::class.java, DecisionsModeA::class.java,
+                    DecisionsModeB::class.java, NoDecisions::class.java)
+            (AlphaTestbed::class.java.`package`?.implementationVersion ?: "") +
+                    core.joinToString("") { ":" + versions.get(it) }
+        }
+
+        private fun hex(bytes: ByteArray) = bytes.joinToString("") { String.format("%02x", it) }
+
+        /** Creates a specification from instances of a trust model, a scenario and metrics */
+        fun of(model: TrustModel<*>, modelParams: Array<Any>, scenario: Scenario,
+               scenarioParams: Array<Any>, metrics: Map<Metric, Array<Any>>, seed: Int, duration: Int) =
+                RunSpec(model.javaClass.name, modelParams.toList(), scenario.javaClass.name,
+                        scenarioParams.toList(), metrics.entries.associate { it.key.javaClass.name to it.value.toList() },
+                        seed, duration)
+    }
+}
+
+/** Plugins are classes that are initialized with parameters, such as deception models */
+internal fun isPlugin(clazz: Class<*>): Boolean = try {
+    clazz.getMethod("initialize", Array<Any>::class.java)
+    true
+} catch (e: NoSuchMethodException) {
+    false
+}
@@ -1,14 +1,18 @@
 package atb.infrastructure
 
 import atb.common.DefaultRandomGenerator
+import atb.common.IterationLimitException
 import atb.core.AlphaTestbed
 import atb.core.EvaluationProtocol
 import atb.interfaces.Metric
 import atb.interfaces.Scenario
 import atb.interfaces.TrustModel
-import java.util.*
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 import java.util.function.Supplier
 
 
@@ -28,51 +32,168 @@ fun createProtocol(model: TrustModel<*>, modelParams: Array<Any>, scenario: Scen
 
 /** Represents an evaluation task that can be run on a thread pool; [supplier] is the task that is to be executed,
  * and the [interrupter] is a function that can be used to interrupt the task once it starts. Once the tasks ends,
- * invoking interrupter is a no-op. */
-class EvaluationTask(val supplier: Supplier<EvaluationState>, val interrupter: () -> Unit)
+ * invoking interrupter is a no-op. The [tick] function returns the tick that is currently being evaluated and
+ * the [footprint] is the estimated heap the task occupies while it runs (see [MemoryBudget]); it is computed
+ * by [estimateFootprint] when it is first needed, which is when its batch starts dispatching tasks. The [cost]
+ * function returns the current estimate of the task's running time (see [CostModel]). Once [detach] is
+ * invoked, the task no longer writes to or closes its sink, so an abandoned run cannot affect shared sinks.
+ * The [seed] of the run, if known, is given to [Faulted] and [TimedOut] states that end the task. */
+class EvaluationTask(val supplier: Supplier<EvaluationState>, val interrupter: () -> Unit,
+                     val tick: () -> Int = { 0 }, estimateFootprint: () -> Long = { 0 },
+                     val cost: () -> Double = { 0.0 }, val detach: () -> Unit = {}, val seed: Int? = null) {
+
+    val footprint: Long by lazy(estimateFootprint)
+
+    /** Returns a task that runs [supplier] in place of this task's supplier but keeps its other properties */
+    internal fun withSupplier(supplier: Supplier<EvaluationState>) =
+            EvaluationTask(supplier, interrupter, tick, { footprint }, cost, detach, seed)
+}
 
 /**
  * Sets up an evaluation run and returns an EvaluationTask.
  * Runs the evaluation setup (consisting of the [protocol], [duration] and [metrics]) asynchronously.
+ * Readings are written to the [sink] as ticks complete; the sink is closed once the run ends.
+ * Results identify the run by the [descriptor]; the task releases the protocol once the run ends.
  *
  * @return A callback, which, upon invocation, stops the evaluation run. Invoking the handled on an
  * evaluation run that has already ended, results in a no-op.
  */
-fun setupEvaluation(protocol: EvaluationProtocol, duration: Int, metrics: Set<Metric>): EvaluationTask {
+fun setupEvaluation(protocol: EvaluationProtocol, duration: Int, metrics: Set<Metric>,
+                    sink: ResultSink = ColumnarSink(),
+                    descriptor: RunDescriptor = RunDescriptor.of(protocol, duration)): EvaluationTask {
     // evaluation data
-    val data = EvaluationData(protocol, metrics, ArrayList(), protocol.scenario.randomGenerator.seed)
+    val data = EvaluationData(descriptor, metrics, sink)
+
+    // the protocol, with the trust model and the scenario, is dropped once the run ends
+    val running = AtomicReference(protocol)
+
+    // probe of a monitored run; assigned once the run starts
+    var probe: RunProbe? = null
+
+    // once detached, the sink is neither written to nor closed; the lock lets a tick finish recording first
+    val detached = AtomicBoolean(false)
 
     // subscribe for updates
     protocol.subscribe {
-        for (metric in metrics) {
-            for (service in it.scenario.services) {
-                val value = it.getResult(service, metric)
-                data.readings.add(Reading(it.time, metric, service, value))
+        val start = if (probe != null) System.nanoTime() else 0L
+
+        synchronized(detached) {
+            if (!detached.get()) {
+                for (metric in metrics) {
+                    for (service in it.scenario.services) {
+                        val value = it.getResult(service, metric)
+                        sink.write(Reading(it.time, metric, service, value))
+                    }
+                }
             }
         }
+
+        probe?.add(Phase.RECORD, System.nanoTime() - start)
     }
 
     // create interruption function
     val isInterrupted = AtomicBoolean(false)
     val interrupter = { isInterrupted.set(true) }
+    val current = AtomicInteger(0)
 
     // create supplier (actual task)
     val supplier = Supplier supplier@{
-        for (tick in 1..duration) {
-            try {
-                if (isInterrupted.get()) {
-                    return@supplier Interrupted(tick, data)
-                }
+        probe = RunProbe.current.get()?.also { it.duration = duration }
+        val evaluated = running.get()
+                ?: return@supplier Faulted(0, IllegalStateException("Evaluation task has already run."), descriptor.seed)
+
+        try {
+            for (tick in 1..duration) {
+                try {
+                    if (isInterrupted.get()) {
+                        return@supplier Interrupted(tick, data)
+                    }
 
-                protocol.step(tick)
-            } catch (e: Exception) {
-                return@supplier Faulted(tick, e)
+                    current.set(tick)
+                    val monitored = probe
+                    if (monitored == null) {
+                        evaluated.step(tick)
+                    } else {
+                        val start = System.nanoTime()
+                        evaluated.step(tick)
+                        monitored.add(Phase.STEP, System.nanoTime() - start)
+                        monitored.tick = tick
+                    }
+                } catch (e: IterationLimitException) {
+                    return@supplier TimedOut(tick, e.message ?: e.toString(), descriptor.seed)
+                } catch (e: Exception) {
+                    return@supplier Faulted(tick, e, descriptor.seed)
+                }
+            }
+            return@supplier Completed(data)
+        } finally {
+            running.set(null)
+            synchronized(detached) {
+                if (!detached.get()) {
+                    sink.close()
+                }
             }
         }
-        return@supplier Completed(data)
     }
 
-    return EvaluationTask(supplier, interrupter)
+    val detach = { synchronized(detached) { detached.set(true) } }
+    return EvaluationTask(supplier, interrupter, { current.get() }, detach = detach, seed = descriptor.seed)
+}
+
+/**
+ * Returns an evaluation task that invokes [setup] only once it starts executing. Since trust models and
+ * scenarios are created on the worker thread, tasks that wait in the queue hold no evaluation state.
+ * Exceptions thrown during the setup result in the [Faulted] state at tick 0. The [footprint] estimates the
+ * heap the task will occupy; it is invoked once, before the task is admitted (see [MemoryBudget]).
+ * The [cost] estimates the task's running time and the [seed], if given, identifies the run.
+ */
+fun deferEvaluation(footprint: () -> Long = { 0 }, cost: () -> Double = { 0.0 }, seed: Int? = null,
+                    setup: () -> EvaluationTask): EvaluationTask {
+    val isInterrupted = AtomicBoolean(false)
+    val isDetached = AtomicBoolean(false)
+    val started = AtomicReference<EvaluationTask>()
+    val lastTick = AtomicInteger(0)
+
+    val supplier = Supplier supplier@{
+        val start = System.nanoTime()
+        val task = try {
+            setup()
+        } catch (e: Exception) {
+            return@supplier Faulted(0, e, seed)
+        }
+        RunProbe.current.get()?.add(Phase.SETUP, System.nanoTime() - start)
+
+        started.set(task)
+        if (isInterrupted.get()) {
+            task.interrupter()
+        }
+        if (isDetached.get()) {
+            task.detach()
+        }
+
+        try {
+            return@supplier task.supplier.get()
+        } finally {
+            // forget the task so that the finished run's state can be collected
+            lastTick.set(task.tick())
+            started.set(null)
+        }
+    }
+
+    val interrupter = {
+        isInterrupted.set(true)
+        started.get()?.interrupter?.invoke()
+        Unit
+    }
+
+    val detach = {
+        isDetached.set(true)
+        started.get()?.detach?.invoke()
+        Unit
+    }
+
+    return EvaluationTask(supplier, interrupter, { started.get()?.tick?.invoke() ?: lastTick.get() }, footprint, cost,
+            detach, seed)
 }
 
 /**
@@ -88,16 +209,34 @@ fun run(task: EvaluationTask, callback: (EvaluationState) -> Unit): () -> Unit {
 /**
  * Runs given list of evaluation tasks asynchronously and fires the [finished] callback upon
  * competition. The optional parameter, [progress], is invoked upon completion of every
- * task in the list.
+ * task in the list. Tasks are executed on the [executor]; every task that exceeds the
+ * [budget] ends as [TimedOut]. When [metrics] are given, runs report their progress to them.
+ * When [memory] is given, tasks are started only while their footprints fit the memory budget.
+ * With [longestFirst], tasks are started as threads of the executor become free, the one with
+ * the highest current [EvaluationTask.cost] first, which shortens the batch when costs vary.
  *
  * @return A handle to interrupt the entire run (completed, running and scheduled tasks)
  */
 fun runBatch(tasks: List<EvaluationTask>, finished: (List<EvaluationState>) -> Unit,
-             progress: (EvaluationState) -> Unit = {}): () -> Unit {
+             progress: (EvaluationState) -> Unit = {},
+             executor: Executor = ForkJoinPool.commonPool(),
+             budget: Budget = Budget.UNLIMITED,
+             metrics: BatchMetrics? = null,
+             memory: MemoryBudget? = null,
+             longestFirst: Boolean = false): () -> Unit {
     val interruptAll: () -> Unit = { tasks.forEach { it.interrupter() } }
 
-    val allTasksAsync = tasks.map {
-        CompletableFuture.supplyAsync(it.supplier).thenApply {
+    val monitored = tasks.mapIndexed { index, task -> metrics?.monitor("run-$index", task) ?: task }
+    val start = { task: EvaluationTask -> Watchdog.supply(task, budget, executor) }
+    val started = if (memory != null || longestFirst) {
+        Dispatcher(monitored, if (longestFirst) slots(executor) else Int.MAX_VALUE, memory, longestFirst, start)
+                .dispatch()
+    } else {
+        monitored.map(start)
+    }
+
+    val allTasksAsync = started.map {
+        it.thenApply {
             progress(it)
             it
         }
@@ -110,4 +249,24 @@ fun runBatch(tasks: List<EvaluationTask>, finished: (List<EvaluationState>) -> U
     }
 
     return interruptAll
-}
\ No newline at end of file
+}
+
+/**
+ * Runs a batch in aggregated mode: every evaluation task is set up by a function from
+ * [setups] that receives an [AggregatingSink], so readings of all runs are folded into
+ * the [aggregate] as ticks complete and per-seed readings are never retained.
+ * The [finished] callback receives the aggregate and the final states of all runs.
+ *
+ * @return A handle to interrupt the entire run
+ */
+fun runAggregatedBatch(setups: List<(ResultSink) -> EvaluationTask>, aggregate: BatchAggregate,
+                       finished: (BatchAggregate, List<EvaluationState>) -> Unit,
+                       progress: (EvaluationState) -> Unit = {},
+                       executor: Executor = ForkJoinPool.commonPool(),
+                       budget: Budget = Budget.UNLIMITED,
+                       metrics: BatchMetrics? = null,
+                       memory: MemoryBudget? = null,
+                       longestFirst: Boolean = false): () -> Unit {
+    val tasks = setups.map { it(AggregatingSink(aggregate)) }
+    return runBatch(tasks, { finished(aggregate, it) }, progress, executor, budget, metrics, memory, longestFirst)
+}
@@ -0,0 +1,212 @@
+package atb.infrastructure
+
+import java.io.File
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.function.Supplier
+
+/**
+ * Estimates running times of evaluation runs. The time of a tick is modelled for every trust model
+ * as `c · agents^k · services`; the coefficient `c` and the exponent `k` are fitted (in log space)
+ * to tick rates observed in earlier runs. Until a model has been observed with at least two
+ * different numbers of agents, its exponent is assumed to be [DEFAULT_EXPONENT].
+ *
+ * Tasks wrapped with [track] report their tick rates while they run, so estimates of queued tasks
+ * improve as the batch progresses. When a [file] is given, observations are loaded from it and
+ * [save] stores them for later batches.
+ */
+class CostModel(val file: File? = null, val classLoader: ClassLoader = RunSpec::class.java.classLoader) {
+    private class Sample(val agents: Int, val services: Int, val secondsPerTick: Double)
+
+    private class Observation(val model: String, val agents: Int, val services: Int, val tick: () -> Int) {
+        val started = System.nanoTime()
+
+        fun sample(): Sample? {
+            val ticks = tick()
+            return if (ticks < 1) null
+            else Sample(agents, services, (System.nanoTime() - started) / 1e9 / ticks)
+        }
+    }
+
+    private val history = HashMap<String, MutableList<Sample>>()
+    private val running = HashSet<Observation>()
+    private val sizes = ConcurrentHashMap<RunSpec, Pair<Int, Int>>()
+
+    init {
+        if (file != null && file.exists()) {
+            file.forEachLine { line ->
+                val fields = line.split('\t')
+                if (fields.size == 4) {
+                    record(fields[0], Sample(fields[1].toInt(), fields[2].toInt(), fields[3].toDouble()))
+                }
+            }
+        }
+    }
+
+    /** Returns the estimated running time of a run of [spec] in seconds */
+    fun estimate(spec: RunSpec): Double {
+        val (agents, services) = size(spec)
+        return spec.duration * secondsPerTick(spec.trustModel, agents, services)
+    }
+
+    /** Returns the estimated time of a tick of [model] in seconds */
+    fun secondsPerTick(model: String, agents: Int, services: Int): Double = synchronized(this) {
+        val live = running.filter { it.model == model }.mapNotNull { it.sample() }
+        val samples = history[model].orEmpty() + live
+
+        val (coefficient, exponent) = if (samples.isEmpty()) {
+            // an unknown model is assumed to be as fast as the observed models on average
+            val all = history.values.flatten() + running.mapNotNull { it.sample() }
+            Pair(fit(all, DEFAULT_EXPONENT) ?: DEFAULT_COEFFICIENT, DEFAULT_EXPONENT)
+        } else {
+            fit(samples)
+        }
+
+        return coefficient * Math.pow(agents.toDouble(), exponent) * services
+    }
+
+    /**
+     * Returns [task], which evaluates [spec], with its cost set to the estimate of this model;
+     * while the task runs, its tick rate refines the estimates, and its final rate is recorded.
+     */
+    fun track(spec: RunSpec, task: EvaluationTask): EvaluationTask {
+        val tracked = EvaluationTask(task.supplier, task.interrupter, task.tick, { task.footprint }, { estimate(spec) },
+                task.detach, task.seed)
+
+        return tracked.withSupplier(Supplier {
+            val (agents, services) = size(spec)
+            val observation = Observation(spec.trustModel, agents, services, task.tick)
+            synchronized(this) { running.add(observation) }
+
+            try {
+                task.supplier.get()
+            } finally {
+                synchronized(this) {
+                    running.remove(observation)
+                    observation.sample()?.let { record(spec.trustModel, it) }
+                }
+            }
+        })
+    }
+
+    /** Stores observations to the [file] */
+    fun save() = synchronized(this) {
+        file?.printWriter()?.use { writer ->
+            history.forEach { model, samples ->
+                samples.forEach { writer.println("$model\t${it.agents}\t${it.services}\t${it.secondsPerTick}") }
+            }
+        }
+    }
+
+    private fun size(spec: RunSpec): Pair<Int, Int> =
+            sizes.getOrPut(spec.copy(seed = 0, duration = 0, metrics = emptyMap())) { spec.scenarioSize(classLoader) }
+
+    private fun record(model: String, sample: Sample) {
+        val samples = history.getOrPut(model) { ArrayList() }
+        samples.add(sample)
+        if (samples.size > MAX_SAMPLES) {
+            samples.removeAt(0)
+        }
+    }
+
+    /** Fits the coefficient and the exponent; the exponent is fitted only if agent counts differ */
+    private fun fit(samples: List<Sample>): Pair<Double, Double> {
+        val x = samples.map { Math.log(it.agents.toDouble()) }
+        val y = samples.map { Math.log(it.secondsPerTick / it.services) }
+
+        if (x.distinct().size < 2) {
+            return Pair(fit(samples, DEFAULT_EXPONENT)!!, DEFAULT_EXPONENT)
+        }
+
+        val meanX = x.average()
+        val meanY = y.average()
+        val covariance = x.indices.map { (x[it] - meanX) * (y[it] - meanY) }.sum()
+        val variance = x.map { (it - meanX) * (it - meanX) }.sum()
+        val exponent = Math.min(Math.max(covariance / variance, 0.0), MAX_EXPONENT)
+
+        return Pair(Math.exp(meanY - exponent * meanX), exponent)
+    }
+
+    /** Fits the coefficient for a fixed [exponent] */
+    private fun fit(samples: List<Sample>, exponent: Double): Double? =
+            if (samples.isEmpty()) null
+            else Math.exp(samples.map {
+                Math.log(it.secondsPerTick / it.services) - exponent * Math.log(it.agents.toDouble())
+            }.average())
+
+    companion object {
+        const val DEFAULT_EXPONENT = 2.0
+        private const val MAX_EXPONENT = 4.0
+        private const val DEFAULT_COEFFICIENT = 1e-8
+        private const val MAX_SAMPLES = 200
+    }
+}
+
+/**
+ * Starts tasks as slots and memory become available. At most [slots] tasks run at once and, when
+ * a [memory] budget is given, only while their footprints fit it; a task whose footprint exceeds
+ * the entire budget runs once no other task of the batch runs. Queued tasks are considered in
+ * list order, or by decreasing current cost when [longestFirst] is set.
+ */
+internal class Dispatcher(private val tasks: List<EvaluationTask>, private val slots: Int,
+                          private val memory: MemoryBudget?, private val longestFirst: Boolean,
+                          private val start: (EvaluationTask) -> CompletableFuture<EvaluationState>) {
+    private val pending = LinkedHashSet(tasks.indices.toList())
+    private val results = tasks.map { CompletableFuture<EvaluationState>() }
+    private var running = 0
+
+    /** Starts as many tasks as possible and returns futures of final states in the order of tasks */
+    fun dispatch(): List<CompletableFuture<EvaluationState>> {
+        val admitted = ArrayList<Int>()
+
+        // footprints may be estimated with calibration runs and costs consult the cost model, so
+        // neither is computed under the lock; every cost is computed once per dispatch
+        val queued = synchronized(this) { pending.toList() }
+        if (memory != null) {
+            queued.forEach { tasks[it].footprint }
+        }
+        val costs = if (longestFirst) queued.associateWith { tasks[it].cost() } else emptyMap()
+
+        synchronized(this) {
+            val candidates = if (longestFirst) pending.sortedByDescending { costs.getValue(it) } else pending.toList()
+            for (index in candidates) {
+                if (running >= slots) {
+                    break
+                }
+
+                if (memory == null || memory.tryAdmit(tasks[index].footprint, alone = running == 0)) {
+                    pending.remove(index)
+                    running++
+                    admitted.add(index)
+                }
+            }
+        }
+
+        admitted.forEach { launch(it) }
+        return results
+    }
+
+    private fun launch(index: Int) {
+        val task = tasks[index]
+
+        // a run that exceeds its budget ends before its thread returns (see Watchdog), so the
+        // slot and the memory are released once the state is known rather than by the thread
+        start(task).whenComplete { state, thrown ->
+            synchronized(this) { running-- }
+            memory?.release(task.footprint)
+            dispatch()
+
+            if (thrown == null) results[index].complete(state) else results[index].completeExceptionally(thrown)
+        }
+    }
+}
+
+/** Returns the number of tasks the [executor] runs at once */
+internal fun slots(executor: Executor): Int = when (executor) {
+    is ThreadPoolExecutor -> executor.maximumPoolSize
+    is ForkJoinPool -> executor.parallelism
+    else -> Runtime.getRuntime().availableProcessors()
+}
@@ -0,0 +1,138 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import atb.interfaces.Scenario
+import atb.interfaces.TrustModel
+import com.opencsv.CSVWriter
+import java.io.File
+import java.io.FileWriter
+import java.nio.file.Paths
+import java.time.LocalDateTime
+import java.time.format.DateTimeFormatter
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * Lists values for every position of a parameter array; a sweep covers the Cartesian product
+ * of all positions. For instance, `ParameterSpace(listOf(100, 200), listOf(0.05), listOf(0.1, 0.2))`
+ * expands into four parameter arrays.
+ */
+class ParameterSpace(vararg val axes: List<Any>) {
+    /** Returns all parameter arrays in this space */
+    fun expand(): List<List<Any>> =
+            axes.fold(listOf(emptyList())) { arrays, axis -> arrays.flatMap { prefix -> axis.map { prefix + it } } }
+
+    companion object {
+        /** A space containing only the given parameter array */
+        fun of(vararg values: Any) = ParameterSpace(*values.map { listOf(it) }.toTypedArray())
+
+        /** A space of an empty parameter array */
+        val EMPTY = ParameterSpace()
+    }
+}
+
+/**
+ * Sweeps parameters of a trust model, a scenario and metrics. Every combination of parameter arrays is
+ * evaluated with every seed in [seeds]; runs are scheduled on the batch executor and their readings are
+ * aggregated across seeds into a single table indexed by the parameter tuple.
+ *
+ * Runs are started longest-first by estimates of the [costModel], which depend on the trust model
+ * and the size of the scenario; the model refines them from tick rates of runs as the sweep
+ * progresses, and its observations are saved once the sweep ends. A model that loads earlier
+ * observations from a file thus orders runs of the trust model from the start. When a [cost]
+ * function is given instead, runs are started in the order of its decreasing estimates.
+ *
+ * Trust models and scenarios are reused across runs where possible (see [InstancePool]). Plugins
+ * that keep parameters in static fields need an [isolation], through which runs load them so that
+ * concurrent runs of different parameters do not share these fields.
+ */
+class Sweep(val trustModel: Class<out TrustModel<*>>, val trustModelSpace: ParameterSpace,
+            val scenario: Class<out Scenario>, val scenarioSpace: ParameterSpace,
+            val metrics: Map<Class<out Metric>, ParameterSpace>, val seeds: Iterable<Int>, val duration: Int,
+            val cost: ((RunSpec) -> Double)? = null, val costModel: CostModel = CostModel(),
+            val isolation: RunIsolation? = null) {
+
+    /** Returns deduplicated runs of this sweep ordered by decreasing cost */
+    fun jobs(): List<RunSpec> {
+        val metricArrays = metrics.entries.fold(listOf(emptyMap<String, List<Any>>())) { maps, (clazz, space) ->
+            maps.flatMap { map -> space.expand().map { map + (clazz.name to it) } }
+        }
+
+        return trustModelSpace.expand().flatMap { modelParams ->
+            scenarioSpace.expand().flatMap { scenarioParams ->
+                metricArrays.flatMap { metricParams ->
+                    seeds.map { seed ->
+                        RunSpec(trustModel.name, modelParams, scenario.name, scenarioParams,
+                                metricParams, seed, duration)
+                    }
+                }
+            }
+        }.distinctBy { it.canonical() }.sortedByDescending { cost?.invoke(it) ?: costModel.estimate(it) }
+    }
+
+    /**
+     * Runs the sweep and writes the results table to [fileName] in directory [path] once all runs end.
+     * The table contains a column for every parameter position, followed by the aggregated values:
+     * ```
+     * "trustModel[0]", ..., "scenario[0]", ..., "tick", "Metric", "service", "n", "mean", "sd", "ciLow", "ciHigh"
+     * ```
+     *
+     * @return A handle to interrupt the sweep
+     */
+    fun run(path: String = System.getProperty("user.dir"), fileName: String = autoName(),
+            finished: (List<EvaluationState>) -> Unit = {},
+            progress: (EvaluationState) -> Unit = {},
+            executor: Executor = ForkJoinPool.commonPool()): () -> Unit {
+        val jobs = jobs()
+        val aggregates = LinkedHashMap<RunSpec, BatchAggregate>()
+        val byConfiguration = jobs.groupBy { it.configuration.canonical() }.mapValues { (_, runs) ->
+            BatchAggregate().also { aggregates[runs.first().configuration] = it }
+        }
+
+        val pool = InstancePool()
+        val tasks = jobs.map { job ->
+            val aggregate = byConfiguration.getValue(job.configuration.canonical())
+            val task = deferEvaluation(seed = job.seed) {
+                isolation?.setup(job, AggregatingSink(aggregate)) ?: pool.setup(job, AggregatingSink(aggregate))
+            }
+            if (cost == null) costModel.track(job, task) else task
+        }
+
+        return runBatch(tasks, {
+            writeTable(aggregates, path, fileName)
+            costModel.save()
+            finished(it)
+        }, progress, executor, longestFirst = cost == null)
+    }
+
+    private fun writeTable(aggregates: Map<RunSpec, BatchAggregate>, path: String, fileName: String) {
+        val writer = CSVWriter(FileWriter(File(Paths.get(path, fileName).toUri())))
+        val metricNames = metrics.keys.sortedBy { it.name }
+
+        val header = ArrayList<String>()
+        trustModelSpace.axes.indices.mapTo(header) { "trustModel[$it]" }
+        scenarioSpace.axes.indices.mapTo(header) { "scenario[$it]" }
+        metricNames.forEach { clazz -> metrics.getValue(clazz).axes.indices.mapTo(header) { "${clazz.simpleName}[$it]" } }
+        header.addAll(listOf("tick", "Metric", "service", "n", "mean", "sd", "ciLow", "ciHigh"))
+        writer.writeNext(header.toTypedArray())
+
+        aggregates.forEach { spec, aggregate ->
+            val tuple = spec.trustModelParams + spec.scenarioParams +
+                    metricNames.flatMap { spec.metrics.getValue(it.name) }
+
+            aggregate.points().forEach { point ->
+                writer.writeNext((tuple.map { it.toString() } + listOf(
+                        point.tick.toString(), point.metric, point.service.toString(), point.count.toString(),
+                        point.mean.toString(), point.sd.toString(), point.ciLow.toString(),
+                        point.ciHigh.toString())).toTypedArray())
+            }
+        }
+
+        writer.close()
+    }
+
+    private fun autoName(): String {
+        val date = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy.MM.dd.HHmmss"))
+        return "sweep-${scenario.simpleName}-${trustModel.simpleName}-$date.csv"
+    }
+}
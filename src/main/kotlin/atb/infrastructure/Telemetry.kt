@@ -0,0 +1,229 @@
+package atb.infrastructure
+
+import com.sun.net.httpserver.HttpServer
+import java.io.Closeable
+import java.lang.management.ManagementFactory
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Supplier
+import javax.management.ObjectName
+
+/** Phases of an evaluation run whose duration is measured */
+enum class Phase {
+    /** Creating and initializing the trust model, the scenario and metrics */
+    SETUP,
+    /** Evaluation steps of the protocol, except recording */
+    STEP,
+    /** Writing readings to the sink */
+    RECORD
+}
+
+/** Management interface of [BatchMetrics] */
+interface BatchMetricsMXBean {
+    val totalRuns: Int
+    val queuedRuns: Int
+    val activeRuns: Int
+    val finishedRuns: Int
+    /** Sum of tick rates of active runs */
+    val ticksPerSecond: Double
+    /** Tick rates of active runs */
+    val runTicksPerSecond: Map<String, Double>
+    /** Bytes allocated on the heap by active runs since they started */
+    val runAllocatedBytes: Map<String, Long>
+    /** Shares of time spent in every [Phase] across all runs */
+    val phaseShares: Map<String, Double>
+    /** Estimated time to the end of the batch in seconds; NaN until some progress is made */
+    val secondsToCompletion: Double
+}
+
+/**
+ * Publishes throughput of a running batch: queued and active runs, tick rates and allocations of
+ * active runs, time shares of evaluation phases and the estimated time to completion. Pass the
+ * registry to [runBatch], then expose it over JMX with [register] or as plain text with [serve].
+ *
+ * Runs update the registry only with a few timer reads per tick, so it can be enabled in every batch.
+ */
+class BatchMetrics(val name: String = "batch") : BatchMetricsMXBean, Closeable {
+    private val total = AtomicInteger()
+    private val started = AtomicInteger()
+    private val finished = AtomicInteger()
+    private val active = ConcurrentHashMap<String, RunProbe>()
+    private val phases = Array(Phase.values().size) { AtomicLong() }
+    @Volatile
+    private var begin = 0L
+    private var server: HttpServer? = null
+
+    /** Name of the registry in the platform MBean server; null unless it is registered */
+    var objectName: ObjectName? = null
+        private set
+
+    override val totalRuns: Int
+        get() = total.get()
+
+    override val queuedRuns: Int
+        get() = total.get() - started.get()
+
+    override val activeRuns: Int
+        get() = started.get() - finished.get()
+
+    override val finishedRuns: Int
+        get() = finished.get()
+
+    override val ticksPerSecond: Double
+        get() = runTicksPerSecond.values.sum()
+
+    override val runTicksPerSecond: Map<String, Double>
+        get() = active.mapValues { it.value.ticksPerSecond() }
+
+    override val runAllocatedBytes: Map<String, Long>
+        get() = active.mapValues { it.value.allocatedBytes() }
+
+    override val phaseShares: Map<String, Double>
+        get() {
+            val nanos = snapshot()
+            val sum = nanos.sum().toDouble()
+            return Phase.values().associate { it.name to if (sum > 0) nanos[it.ordinal] / sum else 0.0 }
+        }
+
+    override val secondsToCompletion: Double
+        get() {
+            val runs = total.get()
+            val done = finished.get() + active.values.map { it.progress() }.sum()
+            if (runs == 0 || done <= 0) {
+                return Double.NaN
+            }
+
+            val elapsed = (System.nanoTime() - begin) / 1e9
+            return elapsed * (runs - done) / done
+        }
+
+    /**
+     * Registers the registry with the platform MBean server as `atb:type=Batch,name=<name>,id=<id>`,
+     * where the id is unique within the process, so batches with equal names can be registered at once
+     */
+    fun register(): BatchMetrics {
+        val objectName = ObjectName("atb:type=Batch,name=${ObjectName.quote(name)},id=${registrations.incrementAndGet()}")
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName)
+        this.objectName = objectName
+        return this
+    }
+
+    /** Serves the metrics as plain text at `http://localhost:<port>/metrics`; 0 picks a free port */
+    fun serve(port: Int = 0): Int {
+        val server = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0)
+        server.createContext("/metrics") { exchange ->
+            val body = text().toByteArray()
+            exchange.responseHeaders.add("Content-Type", "text/plain; charset=utf-8")
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        server.start()
+        this.server = server
+        return server.address.port
+    }
+
+    /** Returns the metrics in a plain-text, line-oriented form */
+    fun text(): String {
+        val builder = StringBuilder()
+        builder.append("atb_runs_total ").append(totalRuns).append('\n')
+        builder.append("atb_runs_queued ").append(queuedRuns).append('\n')
+        builder.append("atb_runs_active ").append(activeRuns).append('\n')
+        builder.append("atb_runs_finished ").append(finishedRuns).append('\n')
+        builder.append("atb_ticks_per_second ").append(ticksPerSecond).append('\n')
+        builder.append("atb_seconds_to_completion ").append(secondsToCompletion).append('\n')
+        phaseShares.forEach { (phase, share) ->
+            builder.append("atb_phase_share{phase=\"").append(phase.toLowerCase()).append("\"} ").append(share).append('\n')
+        }
+        runTicksPerSecond.forEach { (run, rate) ->
+            builder.append("atb_run_ticks_per_second{run=\"").append(run).append("\"} ").append(rate).append('\n')
+        }
+        runAllocatedBytes.forEach { (run, bytes) ->
+            builder.append("atb_run_allocated_bytes{run=\"").append(run).append("\"} ").append(bytes).append('\n')
+        }
+        return builder.toString()
+    }
+
+    /** Unregisters the MBean and stops the HTTP endpoint */
+    override fun close() {
+        objectName?.let { ManagementFactory.getPlatformMBeanServer().unregisterMBean(it) }
+        objectName = null
+        server?.stop(0)
+        server = null
+    }
+
+    /** Returns [task] that reports to this registry as run [id]; the run counts as queued until it starts */
+    internal fun monitor(id: String, task: EvaluationTask): EvaluationTask {
+        if (total.getAndIncrement() == 0) {
+            begin = System.nanoTime()
+        }
+
+        val supplier = Supplier {
+            val probe = RunProbe(this)
+            active[id] = probe
+            started.incrementAndGet()
+            RunProbe.current.set(probe)
+
+            try {
+                task.supplier.get()
+            } finally {
+                RunProbe.current.remove()
+                active.remove(id)
+                finished.incrementAndGet()
+            }
+        }
+
+        return task.withSupplier(supplier)
+    }
+
+    internal fun add(phase: Phase, nanos: Long) {
+        phases[phase.ordinal].addAndGet(nanos)
+    }
+
+    /** Nanoseconds spent in phases; recording happens within steps, so it is subtracted from them */
+    private fun snapshot(): LongArray {
+        val nanos = LongArray(phases.size) { phases[it].get() }
+        nanos[Phase.STEP.ordinal] = Math.max(nanos[Phase.STEP.ordinal] - nanos[Phase.RECORD.ordinal], 0)
+        return nanos
+    }
+
+    companion object {
+        private val registrations = AtomicInteger()
+    }
+}
+
+/** Progress of a single run; it is written only by the thread that evaluates the run */
+internal class RunProbe(private val metrics: BatchMetrics) {
+    private val thread = Thread.currentThread().id
+    private val begin = System.nanoTime()
+    private val allocatedAtBegin = allocated(thread)
+
+    @Volatile
+    var tick: Int = 0
+
+    @Volatile
+    var duration: Int = 0
+
+    fun add(phase: Phase, nanos: Long) = metrics.add(phase, nanos)
+
+    fun ticksPerSecond(): Double {
+        val elapsed = (System.nanoTime() - begin) / 1e9
+        return if (elapsed > 0) tick / elapsed else 0.0
+    }
+
+    fun progress(): Double = if (duration > 0) tick.toDouble() / duration else 0.0
+
+    fun allocatedBytes(): Long = allocated(thread) - allocatedAtBegin
+
+    companion object {
+        /** Probe of the run that is evaluated on the current thread, if it is monitored */
+        val current = ThreadLocal<RunProbe>()
+
+        private val threads = ManagementFactory.getThreadMXBean()
+
+        private fun allocated(thread: Long): Long =
+                (threads as? com.sun.management.ThreadMXBean)?.getThreadAllocatedBytes(thread) ?: 0
+    }
+}
@@ -0,0 +1,97 @@
+package atb.infrastructure
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Limits the time an evaluation run may take: [wallClock] bounds the entire run and [tick] bounds
+ * every single tick (the slowest tick rate that is tolerated); both are in milliseconds and
+ * non-positive values disable the limit. Budgets are measured from the moment a run starts executing.
+ */
+data class Budget(val wallClock: Long = 0, val tick: Long = 0) {
+    val isUnlimited: Boolean
+        get() = wallClock <= 0 && tick <= 0
+
+    companion object {
+        val UNLIMITED = Budget()
+    }
+}
+
+/**
+ * Enforces budgets of running evaluation tasks. Once a task exceeds its budget, its future is
+ * completed with [TimedOut], and the task is interrupted and detached from its sink. The tick budget
+ * applies from the first tick on, so the setup is not counted.
+ *
+ * Interruption takes effect between ticks, and the thread is not interrupted, since a tick may be
+ * writing to files shared by the batch. A stuck tick thus keeps its thread busy until it returns;
+ * the run then ends without writing further readings. Since the future is already complete, the
+ * batch no longer waits for the run: [runBatch] releases its slot and its memory admission, so
+ * queued runs start on the remaining threads of the executor.
+ */
+internal object Watchdog {
+    private val scheduler = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "atb-watchdog").apply { isDaemon = true }
+    }
+
+    /** Executes [task] on [executor] under given [budget] and returns the future of its final state */
+    fun supply(task: EvaluationTask, budget: Budget, executor: Executor): CompletableFuture<EvaluationState> {
+        if (budget.isUnlimited) {
+            return CompletableFuture.supplyAsync(task.supplier, executor)
+        }
+
+        val future = CompletableFuture<EvaluationState>()
+
+        executor.execute {
+            val check = scheduler.scheduleAtFixedRate(Check(task, budget, future),
+                    period(budget), period(budget), TimeUnit.MILLISECONDS)
+
+            try {
+                future.complete(task.supplier.get())
+            } catch (e: Throwable) {
+                future.complete(Faulted(task.tick(), e, task.seed))
+            } finally {
+                check.cancel(false)
+            }
+        }
+
+        return future
+    }
+
+    /** Checks are done ten times within the shortest limit, but at most every second */
+    private fun period(budget: Budget): Long = listOf(budget.wallClock, budget.tick)
+            .filter { it > 0 }
+            .min()!!
+            .let { Math.min(Math.max(it / 10, 1), 1000) }
+
+    private class Check(val task: EvaluationTask, val budget: Budget,
+                        val future: CompletableFuture<EvaluationState>) : Runnable {
+        private val started = System.nanoTime()
+        private var lastTick = task.tick()
+        private var lastChange = started
+
+        override fun run() {
+            val now = System.nanoTime()
+            val tick = task.tick()
+
+            if (tick != lastTick || tick == 0) {
+                lastTick = tick
+                lastChange = now
+            }
+
+            val reason = when {
+                budget.wallClock > 0 && now - started > TimeUnit.MILLISECONDS.toNanos(budget.wallClock) ->
+                    "Run exceeded its budget of ${budget.wallClock} ms"
+                budget.tick > 0 && now - lastChange > TimeUnit.MILLISECONDS.toNanos(budget.tick) ->
+                    "Tick $tick exceeded its budget of ${budget.tick} ms"
+                else -> null
+            }
+
+            if (reason != null && future.complete(TimedOut(tick, reason, task.seed))) {
+                task.interrupter()
+                task.detach()
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.infrastructure;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AggregationTest {
+
+    @Test
+    public void welfordMatchesTwoPassStatistics() {
+        final double[] values = new double[]{2, 4, 4, 4, 5, 5, 7, 9};
+        final Welford welford = new Welford();
+
+        for (double value : values)
+            welford.add(value);
+
+        assertEquals(8, welford.getCount());
+        assertEquals(5, welford.getMean(), 1e-12);
+        // sample variance: sum of squared deviations (32) divided by n - 1
+        assertEquals(32 / 7d, welford.getVariance(), 1e-12);
+        assertEquals(Math.sqrt(32 / 7d), welford.getSd(), 1e-12);
+        // t(0.975, 7) = 2.364624
+        assertEquals(2.364624 * Math.sqrt(32 / 7d) / Math.sqrt(8),
+                welford.halfWidth(0.95), 1e-5);
+    }
+
+    @Test
+    public void welfordWithFewValues() {
+        final Welford welford = new Welford();
+        assertEquals(0, welford.getVariance(), 0);
+        assertEquals(Double.POSITIVE_INFINITY, welford.halfWidth(0.95), 0);
+
+        welford.add(3);
+        assertEquals(3, welford.getMean(), 0);
+        assertEquals(0, welford.getVariance(), 0);
+        assertEquals(Double.POSITIVE_INFINITY, welford.halfWidth(0.95), 0);
+    }
+
+    @Test
+    public void quantilesOfFewValuesAreExact() {
+        final P2Quantile median = new P2Quantile(0.5);
+        assertTrue(Double.isNaN(median.getValue()));
+
+        median.add(3);
+        median.add(1);
+        median.add(2);
+        assertEquals(2, median.getValue(), 0);
+    }
+
+    @Test
+    public void quantilesApproximateLargeSamples() {
+        final Random random = new Random(1);
+        final double[] ps = new double[]{0.1, 0.5, 0.9};
+        final double[] values = new double[20000];
+        final P2Quantile[] sketches = new P2Quantile[ps.length];
+
+        for (int i = 0; i < ps.length; i++)
+            sketches[i] = new P2Quantile(ps[i]);
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextGaussian();
+
+            for (P2Quantile sketch : sketches)
+                sketch.add(values[i]);
+        }
+
+        Arrays.sort(values);
+
+        for (int i = 0; i < ps.length; i++)
+            assertEquals(values[(int) (ps[i] * values.length)],
+                    sketches[i].getValue(), 0.05);
+    }
+
+    @Test
+    public void aggregateGroupsByMetricServiceAndTick() {
+        final BatchAggregate aggregate = new BatchAggregate(new double[]{0.5}, 0.95);
+
+        for (int seed = 1; seed <= 3; seed++) {
+            for (int tick = 1; tick <= 2; tick++) {
+                aggregate.add(tick, "b", 0, seed * tick);
+                aggregate.add(tick, "a", 1, seed);
+            }
+        }
+
+        final List<AggregatePoint> points = aggregate.points();
+        assertEquals(4, points.size());
+
+        // ordered by metric, service and tick
+        assertEquals("a", points.get(0).getMetric());
+        assertEquals(1, points.get(0).getTick());
+        assertEquals("b", points.get(3).getMetric());
+        assertEquals(2, points.get(3).getTick());
+
+        final AggregatePoint last = points.get(3);
+        assertEquals(3, last.getCount());
+        assertEquals(4, last.getMean(), 1e-12);
+        assertEquals(2, last.getSd(), 1e-12);
+        assertTrue(last.getCiLow() < 4 && last.getCiHigh() > 4);
+        assertEquals(4, last.getQuantiles().get(0.5), 0);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.infrastructure;
+
+import atb.deceptionmodel.Complementary;
+import atb.deceptionmodel.Truthful;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BatchSpecTest {
+    private static final String JSON = "{"
+            + "\"scenario\": {\"class\": \"atb.scenario.Transitive\", \"parameters\": [100, 0.05, 0.1, 1.0, 1.0]},"
+            + "\"trustModel\": {\"class\": \"atb.trustmodel.AbdulRahmanHailes\"},"
+            + "\"metrics\": [{\"class\": \"atb.metric.KendallsTauA\", \"parameters\": []}],"
+            + "\"seeds\": {\"start\": 1, \"stop\": 3},"
+            + "\"duration\": 50,"
+            + "\"parallelism\": 2,"
+            + "\"budget\": {\"wallClock\": 1000},"
+            + "\"reduction\": {\"policy\": \"every\", \"k\": 10},"
+            + "\"precision\": {\"target\": 0.01, \"statistic\": \"area\"},"
+            + "\"output\": {\"format\": \"csv\", \"directory\": \"results\"}"
+            + "}";
+
+    private static final String YAML = "scenario:\n"
+            + "  class: atb.scenario.Transitive\n"
+            + "  parameters: [100, 0.05, 0.1, 1.0, 1.0]\n"
+            + "trustModel:\n"
+            + "  class: atb.trustmodel.AbdulRahmanHailes\n"
+            + "metrics:\n"
+            + "  - class: atb.metric.KendallsTauA\n"
+            + "    parameters: []\n"
+            + "seeds: {start: 1, stop: 3}\n"
+            + "duration: 50\n"
+            + "parallelism: 2\n"
+            + "budget: {wallClock: 1000}\n"
+            + "reduction: {policy: every, k: 10}\n"
+            + "precision: {target: 0.01, statistic: area}\n"
+            + "output: {format: csv, directory: results}\n";
+
+    @Test
+    public void parsesJson() {
+        final BatchSpec spec = BatchSpec.Companion.fromJson(JSON);
+
+        assertEquals("atb.trustmodel.AbdulRahmanHailes", spec.getTrustModel());
+        assertEquals(Collections.emptyList(), spec.getTrustModelParams());
+        assertEquals("atb.scenario.Transitive", spec.getScenario());
+        assertEquals(Arrays.<Object>asList(100, 0.05, 0.1, 1.0, 1.0), spec.getScenarioParams());
+        assertEquals(Collections.singletonMap("atb.metric.KendallsTauA", Collections.emptyList()), spec.getMetrics());
+        assertEquals(Arrays.asList(1, 2, 3), spec.getSeeds());
+        assertEquals(50, spec.getDuration());
+        assertEquals(2, spec.getParallelism());
+        assertEquals(new Budget(1000, 0), spec.getBudget());
+        assertEquals(10, ((Reduction.EveryKth) spec.getReduction()).getK());
+        assertEquals(new PrecisionSpec(0.01, Statistic.AREA, false, 0.95, 4), spec.getPrecision());
+        assertEquals("csv", spec.getOutput().getFormat());
+        assertEquals("results", spec.getOutput().getDirectory());
+        assertFalse(spec.getOutput().getCompress());
+        assertNull(spec.getCheckpoint());
+        assertNull(spec.getCache());
+        assertNull(spec.getMemoryBudget());
+
+        assertEquals(3, spec.getRuns().size());
+        assertEquals(3, spec.getRuns().get(2).getSeed());
+        assertEquals(50, spec.getRuns().get(2).getDuration());
+    }
+
+    @Test
+    public void parsesYamlAsJson() {
+        final BatchSpec json = BatchSpec.Companion.fromJson(JSON);
+        final BatchSpec yaml = BatchSpec.Companion.fromYaml(YAML);
+
+        assertEquals(json.getRuns(), yaml.getRuns());
+        assertEquals(json.getBudget(), yaml.getBudget());
+        assertEquals(json.getPrecision(), yaml.getPrecision());
+        assertEquals(json.getOutput(), yaml.getOutput());
+        assertEquals(json.getParallelism(), yaml.getParallelism());
+    }
+
+    @Test
+    public void parsesListedSeedsAndPluginKeys() {
+        final BatchSpec spec = BatchSpec.Companion.fromJson("{"
+                + "\"scenario\": {\"class\": \"atb.scenario.Random\", \"parameters\": [10, 10, 0.05, 0.1, 1.0,"
+                + " {\"atb.deceptionmodel.Truthful\": 0.7, \"atb.deceptionmodel.Complementary\": 0.3}, 0.5]},"
+                + "\"trustModel\": {\"class\": \"atb.trustmodel.AbdulRahmanHailes\"},"
+                + "\"metrics\": [{\"class\": \"atb.metric.KendallsTauA\"}],"
+                + "\"seeds\": [5, 1, 7],"
+                + "\"duration\": 10}");
+
+        assertEquals(Arrays.asList(5, 1, 7), spec.getSeeds());
+
+        final Map<?, ?> models = (Map<?, ?>) spec.getScenarioParams().get(5);
+        assertEquals(2, models.size());
+
+        for (Map.Entry<?, ?> entry : models.entrySet()) {
+            if (entry.getKey() instanceof Truthful)
+                assertEquals(0.7, entry.getValue());
+            else if (entry.getKey() instanceof Complementary)
+                assertEquals(0.3, entry.getValue());
+            else
+                fail("Unexpected key " + entry.getKey());
+        }
+    }
+
+    @Test
+    public void parsesDistributedBatch() {
+        final BatchSpec spec = BatchSpec.Companion.fromJson(JSON.replace(
+                "\"precision\": {\"target\": 0.01, \"statistic\": \"area\"},",
+                "\"distributed\": {\"port\": 7700, \"localWorkers\": 2},"));
+
+        assertEquals(new DistributedSpec(7700, null, 2, 3, 60000), spec.getDistributed());
+        assertNull(BatchSpec.Companion.fromJson(JSON).getDistributed());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDistributedBatchWithPrecision() {
+        BatchSpec.Companion.fromJson(JSON.replace("\"duration\": 50,", "\"duration\": 50, \"distributed\": {},"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateSeeds() {
+        BatchSpec.Companion.fromJson(JSON.replace("{\"start\": 1, \"stop\": 3}", "[1, 2, 1]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateYamlSeeds() {
+        BatchSpec.Companion.fromYaml(YAML.replace("{start: 1, stop: 3}", "[3, 3]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingDuration() {
+        BatchSpec.Companion.fromJson(JSON.replace("\"duration\": 50,", ""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownReduction() {
+        BatchSpec.Companion.fromJson(JSON.replace("\"every\"", "\"median\""));
+    }
+}
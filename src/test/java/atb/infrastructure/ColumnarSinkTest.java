@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.infrastructure;
+
+import atb.interfaces.Metric;
+import atb.metric.CumulativeNormalizedUtility;
+import atb.metric.KendallsTauA;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ColumnarSinkTest {
+    private Metric accuracy, utility;
+    private List<Reading> readings;
+
+    @Before
+    public void setUp() {
+        accuracy = new KendallsTauA();
+        utility = new CumulativeNormalizedUtility();
+        readings = new ArrayList<Reading>();
+
+        for (int tick = 1; tick <= 5; tick++) {
+            readings.add(new Reading(tick, accuracy, 0, tick / 10d));
+            readings.add(new Reading(tick, utility, 1, -tick));
+        }
+    }
+
+    @Test
+    public void iteratesReadingsAcrossChunks() {
+        final ColumnarSink sink = new ColumnarSink(3);
+
+        for (Reading reading : readings)
+            sink.write(reading);
+
+        assertEquals(readings.size(), sink.getSize());
+        assertEquals(Arrays.asList(accuracy, utility), sink.getMetrics());
+
+        final List<Reading> iterated = new ArrayList<Reading>();
+        for (Reading reading : sink)
+            iterated.add(reading);
+
+        assertEquals(readings, iterated);
+    }
+
+    @Test
+    public void cursorExposesRowsInOrder() {
+        final ColumnarSink sink = new ColumnarSink(4);
+
+        for (Reading reading : readings)
+            sink.write(reading);
+
+        final ReadingCursor cursor = sink.cursor();
+
+        for (Reading reading : readings) {
+            assertTrue(cursor.next());
+            assertEquals(reading.getTick(), cursor.getTick());
+            assertSame(reading.getMetric(), cursor.getMetric());
+            assertEquals(reading.getService(), cursor.getService());
+            assertEquals(reading.getValue(), cursor.getValue(), 0);
+        }
+
+        assertFalse(cursor.next());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void emptySinkHasNoRows() {
+        final ColumnarSink sink = new ColumnarSink();
+
+        assertEquals(0, sink.getSize());
+        assertFalse(sink.cursor().next());
+        assertFalse(sink.iterator().hasNext());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsTooManyMetrics() {
+        final ColumnarSink sink = new ColumnarSink();
+
+        for (int i = 0; i <= Byte.MAX_VALUE + 1; i++)
+            sink.write(new Reading(1, new KendallsTauA(), 0, 0));
+    }
+
+    @Test
+    public void fileSinkKeepsTheSameReadings() throws IOException {
+        final FileSink sink = new FileSink(File.createTempFile("atb-", ".readings"), 3);
+
+        try {
+            for (Reading reading : readings)
+                sink.write(reading);
+
+            sink.close();
+
+            final List<Reading> iterated = new ArrayList<Reading>();
+            for (Reading reading : sink)
+                iterated.add(reading);
+
+            assertEquals(readings, iterated);
+
+            // a cursor that is not read to the end is closed by delete
+            assertTrue(sink.cursor().next());
+        } finally {
+            sink.delete();
+        }
+
+        assertFalse(sink.getFile().exists());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.infrastructure;
+
+import atb.interfaces.Metric;
+import atb.metric.KendallsTauA;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReductionTest {
+    private final Metric metric = new KendallsTauA();
+
+    @Test
+    public void everyKthKeepsFirstAndLastTicks() {
+        final List<Reading> kept = reduce(new Reduction.EveryKth(3), linear(10));
+
+        assertEquals(4, kept.size());
+        assertEquals(1, kept.get(0).getTick());
+        assertEquals(4, kept.get(1).getTick());
+        assertEquals(7, kept.get(2).getTick());
+        assertEquals(10, kept.get(3).getTick());
+        assertEquals("every(k=3)", new Reduction.EveryKth(3).toString());
+    }
+
+    @Test
+    public void everyKthReducesServicesSeparately() {
+        final List<Reading> readings = new ArrayList<Reading>();
+
+        for (int tick = 1; tick <= 4; tick++) {
+            readings.add(new Reading(tick, metric, 0, tick));
+            readings.add(new Reading(tick, metric, 1, -tick));
+        }
+
+        // ticks 1 and 3 are kept by the policy and tick 4 as the last one
+        assertEquals(6, reduce(new Reduction.EveryKth(2), readings).size());
+    }
+
+    @Test
+    public void envelopeKeepsMeanAndBoundsOfWindows() {
+        final List<Reading> readings = new ArrayList<Reading>();
+        final double[] values = new double[]{1, 5, 3, 7, 2, 2, 2, 2, 4, 0};
+
+        for (int i = 0; i < values.length; i++)
+            readings.add(new Reading(i + 1, metric, 0, values[i]));
+
+        final List<Reading> kept = reduce(new Reduction.Envelope(4), readings);
+
+        // windows 1-4 and 5-8, and the incomplete window 9-10
+        assertEquals(9, kept.size());
+        assertWindow(kept.subList(0, 3), 4, 4, 1, 7);
+        assertWindow(kept.subList(3, 6), 8, 2, 2, 2);
+        assertWindow(kept.subList(6, 9), 10, 2, 0, 4);
+    }
+
+    @Test
+    public void deviationKeepsReadingsWithinEpsilon() {
+        final double epsilon = 0.05;
+        final List<Reading> readings = new ArrayList<Reading>();
+
+        for (int tick = 1; tick <= 500; tick++)
+            readings.add(new Reading(tick, metric, 0, Math.sin(tick / 20d)));
+
+        final List<Reading> kept = reduce(new Reduction.Deviation(epsilon), readings);
+
+        assertTrue(kept.size() < readings.size() / 4);
+        assertEquals(1, kept.get(0).getTick());
+        assertEquals(500, kept.get(kept.size() - 1).getTick());
+
+        // every dropped reading lies within epsilon of the line between kept neighbours
+        int k = 0;
+        for (Reading reading : readings) {
+            while (kept.get(k + 1).getTick() < reading.getTick())
+                k++;
+
+            final Reading from = kept.get(k), to = kept.get(k + 1);
+            final double interpolated = from.getValue() + (to.getValue() - from.getValue())
+                    * (reading.getTick() - from.getTick()) / (to.getTick() - from.getTick());
+
+            assertEquals(reading.getValue(), interpolated, epsilon + 1e-12);
+        }
+    }
+
+    @Test
+    public void deviationReducesLinesToEndpoints() {
+        final List<Reading> kept = reduce(new Reduction.Deviation(1e-9), linear(100));
+
+        assertEquals(2, kept.size());
+        assertEquals(100, kept.get(1).getTick());
+    }
+
+    @Test
+    public void envelopesOfManyServicesShareMetrics() {
+        final ColumnarSink delegate = new ColumnarSink(4096);
+        final ReducingSink sink = new ReducingSink(new Reduction.Envelope(5), delegate);
+
+        // more services than a columnar sink holds metrics
+        for (int tick = 1; tick <= 20; tick++)
+            for (int service = 0; service < 200; service++)
+                sink.write(new Reading(tick, metric, service, service + tick));
+
+        sink.close();
+
+        assertEquals(3, delegate.getMetrics().size());
+        assertEquals(4 * 3 * 200, delegate.getSize());
+        assertEquals(new EnvelopeMetric(metric, "min"), delegate.getMetrics().get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidParameters() {
+        new Reduction.EveryKth(0);
+    }
+
+    private List<Reading> linear(int ticks) {
+        final List<Reading> readings = new ArrayList<Reading>();
+
+        for (int tick = 1; tick <= ticks; tick++)
+            readings.add(new Reading(tick, metric, 0, tick / 10d));
+
+        return readings;
+    }
+
+    private static List<Reading> reduce(Reduction reduction, List<Reading> readings) {
+        final ColumnarSink delegate = new ColumnarSink(4096);
+        final ReducingSink sink = new ReducingSink(reduction, delegate);
+
+        for (Reading reading : readings)
+            sink.write(reading);
+
+        sink.close();
+
+        final List<Reading> kept = new ArrayList<Reading>();
+        for (Reading reading : delegate)
+            kept.add(reading);
+
+        return kept;
+    }
+
+    private void assertWindow(List<Reading> window, int tick, double mean, double min, double max) {
+        for (Reading reading : window)
+            assertEquals(tick, reading.getTick());
+
+        assertSame(metric, window.get(0).getMetric());
+        assertEquals(mean, window.get(0).getValue(), 1e-12);
+        assertEquals(metric + " (min)", window.get(1).getMetric().toString());
+        assertEquals(min, window.get(1).getValue(), 0);
+        assertEquals(metric + " (max)", window.get(2).getMetric().toString());
+        assertEquals(max, window.get(2).getValue(), 0);
+    }
+}
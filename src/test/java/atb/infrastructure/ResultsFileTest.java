@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.infrastructure;
+
+import atb.interfaces.Metric;
+import atb.metric.CumulativeNormalizedUtility;
+import atb.metric.KendallsTauA;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ResultsFileTest {
+    private static final String CONFIGURATION = "{\"duration\": 10}";
+
+    private final Metric accuracy = new KendallsTauA();
+    private final Metric utility = new CumulativeNormalizedUtility();
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("atb-", ".atbc");
+
+        // chunks of 4 readings, so every series spans several chunks
+        final ResultsWriter writer = new ResultsWriter(file, CONFIGURATION, 4);
+
+        for (int seed = 1; seed <= 2; seed++) {
+            final ResultSink sink = writer.sink(seed, "Model", "Scenario", NoOpSink.INSTANCE);
+
+            for (int tick = 1; tick <= 10; tick++) {
+                sink.write(new Reading(tick, accuracy, 0, seed * tick / 100d));
+                sink.write(new Reading(tick, utility, 0, -tick));
+                sink.write(new Reading(tick, utility, 1, tick));
+            }
+
+            sink.close();
+            writer.finish(sink, seed == 1 ? RunState.COMPLETED : RunState.INTERRUPTED);
+        }
+
+        writer.close();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void readsWhatWasWritten() throws IOException {
+        final ResultsReader reader = new ResultsReader(file);
+
+        try {
+            assertEquals(CONFIGURATION, reader.getConfiguration());
+            assertEquals(Arrays.asList(accuracy.toString(), utility.toString()), reader.getMetrics());
+            assertEquals(2, reader.getRuns().size());
+
+            final RunInfo run = reader.getRuns().get(1);
+            assertEquals(2, run.getSeed());
+            assertEquals("Model", run.getTrustModel());
+            assertEquals("Scenario", run.getScenarioClass());
+            assertEquals(10, run.getTick());
+            assertEquals(RunState.COMPLETED, reader.getRuns().get(0).getState());
+            assertEquals(RunState.INTERRUPTED, run.getState());
+            assertTrue(run.getDuration() >= 0);
+
+            assertEquals(Arrays.asList(0, 1), reader.services(0, utility.toString()));
+
+            final Series series = reader.series(1, accuracy.toString(), 0);
+            assertEquals(10, series.getSize());
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i + 1, series.getTicks()[i]);
+                assertEquals(2 * (i + 1) / 100d, series.getValues()[i], 0);
+            }
+
+            assertEquals(-10, reader.finalValue(0, utility.toString(), 0), 0);
+            assertEquals(7, reader.valueAt(0, utility.toString(), 1, 7), 0);
+            assertNull(reader.valueAt(0, utility.toString(), 1, 11));
+            assertNull(reader.finalValue(0, utility.toString(), 2));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void writtenRunsAreCompleted() throws IOException {
+        final ResultsWriter writer = new ResultsWriter(file, CONFIGURATION, 4);
+        final ColumnarSink readings = new ColumnarSink(16);
+        readings.write(new Reading(1, accuracy, 0, 0.5));
+        readings.close();
+
+        // a run that is still being written does not get the state of the written one
+        final ResultSink open = writer.sink(1, "Model", "Scenario", NoOpSink.INSTANCE);
+        writer.write(new EvaluationData(new RunDescriptor("Model", "Scenario", "Model",
+                Collections.emptyList(), "Scenario", Collections.emptyList(), 2, 1, null),
+                Collections.<Metric>singleton(accuracy), readings));
+        open.close();
+        writer.close();
+
+        final ResultsReader reader = new ResultsReader(file);
+
+        try {
+            assertEquals(RunState.UNKNOWN, reader.getRuns().get(0).getState());
+            assertEquals(RunState.COMPLETED, reader.getRuns().get(1).getState());
+            assertEquals(2, reader.getRuns().get(1).getSeed());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void detectsCorruptChunks() throws IOException {
+        // flip a byte among the values of the first chunk
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final long value = 10 + CONFIGURATION.length() + 4 + 4 + 4 + 3;
+        raf.seek(value);
+        final int original = raf.read();
+        raf.seek(value);
+        raf.write(original ^ 0xFF);
+        raf.close();
+
+        final ResultsReader reader = new ResultsReader(file);
+
+        try {
+            reader.series(0, accuracy.toString(), 0);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFiles() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+
+        new ResultsReader(file).close();
+    }
+}
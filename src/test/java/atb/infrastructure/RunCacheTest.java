@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.infrastructure;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RunCacheTest {
+    private static final ClassLoader LOADER = RunSpec.class.getClassLoader();
+
+    private final AtomicInteger evaluations = new AtomicInteger();
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("atb-cache-").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+
+        if (files != null)
+            for (File file : files)
+                file.delete();
+
+        directory.delete();
+    }
+
+    @Test
+    public void missEvaluatesAndHitRestores() {
+        final RunCache cache = new RunCache(directory, 1L << 30);
+        final RunSpec spec = spec(1);
+
+        final EvaluationState miss = evaluate(cache, spec, false);
+        assertTrue(miss instanceof Completed);
+        assertEquals(1, evaluations.get());
+        assertTrue(new File(directory, cache.key(spec, LOADER) + ".run").exists());
+
+        final EvaluationState hit = evaluate(cache, spec, false);
+        assertTrue(hit instanceof Completed);
+        assertEquals(1, evaluations.get());
+        assertEquals(readings(miss), readings(hit));
+        assertEquals(1, ((Completed) hit).getData().getSeed());
+
+        // other seeds are other runs
+        assertTrue(evaluate(cache, spec(2), false) instanceof Completed);
+        assertEquals(2, evaluations.get());
+
+        // bypassing evaluates the run again
+        assertTrue(evaluate(cache, spec, true) instanceof Completed);
+        assertEquals(3, evaluations.get());
+        assertEquals(2, entries().size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() {
+        final RunSpec first = spec(1), second = spec(2), third = spec(3);
+        final long size;
+
+        // all entries have the same size, so measure one first
+        {
+            final RunCache measuring = new RunCache(directory, 1L << 30);
+            evaluate(measuring, first, false);
+            size = entries().get(0).length();
+            measuring.clear();
+        }
+
+        final RunCache cache = new RunCache(directory, 2 * size + size / 2);
+        evaluate(cache, first, false);
+        evaluate(cache, second, false);
+        assertEquals(2, entries().size());
+
+        // make the order of use explicit, since file times may be coarse
+        final long now = System.currentTimeMillis();
+        assertTrue(entry(cache, first).setLastModified(now - 20000));
+        assertTrue(entry(cache, second).setLastModified(now - 10000));
+
+        // using the first entry makes the second one the least recently used
+        evaluations.set(0);
+        evaluate(cache, first, false);
+        assertEquals(0, evaluations.get());
+
+        evaluate(cache, third, false);
+        assertEquals(2, entries().size());
+        assertTrue(entry(cache, first).exists());
+        assertFalse(entry(cache, second).exists());
+        assertTrue(entry(cache, third).exists());
+    }
+
+    @Test
+    public void incompleteRunsAreNotStored() {
+        final RunCache cache = new RunCache(directory, 1L << 30);
+        final EvaluationTask task = cache.setup(spec(1), new ColumnarSink(), false, LOADER, (run, sink) -> {
+            final EvaluationTask evaluation = run.setup(sink, LOADER);
+            evaluation.getInterrupter().invoke();
+            return evaluation;
+        });
+
+        assertTrue(task.getSupplier().get() instanceof Interrupted);
+        assertEquals(0, entries().size());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private static RunSpec spec(int seed) {
+        return new RunSpec("atb.trustmodel.AbdulRahmanHailes", Collections.emptyList(),
+                "atb.scenario.Transitive", Arrays.<Object>asList(20, 0.05, 0.1, 1.0, 1.0),
+                Collections.singletonMap("atb.metric.KendallsTauA", Collections.emptyList()), seed, 10);
+    }
+
+    private EvaluationState evaluate(RunCache cache, RunSpec spec, boolean bypass) {
+        return cache.setup(spec, new ColumnarSink(), bypass, LOADER, (run, sink) -> {
+            evaluations.incrementAndGet();
+            return run.setup(sink, LOADER);
+        }).getSupplier().get();
+    }
+
+    private File entry(RunCache cache, RunSpec spec) {
+        return new File(directory, cache.key(spec, LOADER) + ".run");
+    }
+
+    private List<File> entries() {
+        final List<File> entries = new ArrayList<File>();
+
+        for (File file : directory.listFiles())
+            if (file.getName().endsWith(".run"))
+                entries.add(file);
+
+        return entries;
+    }
+
+    private static List<String> readings(EvaluationState state) {
+        final List<String> readings = new ArrayList<String>();
+
+        for (Reading reading : ((Completed) state).getData().getReadings())
+            readings.add(reading.getTick() + ":" + reading.getService() + ":" + reading.getValue());
+
+        return readings;
+    }
+}
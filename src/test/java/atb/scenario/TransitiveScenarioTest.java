@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.scenario;
+
+import atb.common.DefaultRandomGenerator;
+import atb.interfaces.Experience;
+import atb.interfaces.Opinion;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TransitiveScenarioTest {
+    private static final int TICKS = 5;
+
+    @Test
+    public void resetMatchesNewInstanceWithDifferentAgentCount() {
+        final Transitive reused = create(1, 30, 0.05, 0.1, 1.0, 1.0);
+        run(reused);
+
+        reused.reset(7, 20, 0.05, 0.1, 1.0, 0.5);
+        compare(create(7, 20, 0.05, 0.1, 1.0, 0.5), reused);
+    }
+
+    @Test
+    public void resetReusesDeceptionModelsWithSameAgentCount() {
+        final Transitive reused = create(1, 20, 0.05, 0.1, 1.0, 1.0);
+        run(reused);
+        final Object previous = reused.dms;
+
+        reused.reset(7, 20, 0.05, 0.1, 1.0, 0.5);
+        assertSame(previous, reused.dms);
+        compare(create(7, 20, 0.05, 0.1, 1.0, 0.5), reused);
+
+        // a second reset must also clear what the first one filled in
+        reused.reset(7, 20, 0.05, 0.1, 1.0, 0.5);
+        assertSame(previous, reused.dms);
+        compare(create(7, 20, 0.05, 0.1, 1.0, 0.5), reused);
+    }
+
+    private static Transitive create(int seed, Object... parameters) {
+        final Transitive scenario = new Transitive();
+        scenario.setRandomGenerator(new DefaultRandomGenerator(seed));
+        scenario.initialize(parameters);
+        return scenario;
+    }
+
+    private static void run(Transitive scenario) {
+        for (int tick = 0; tick < TICKS; tick++) {
+            scenario.setCurrentTime(tick);
+            scenario.generateOpinions();
+            scenario.generateExperiences();
+        }
+    }
+
+    private static void compare(Transitive expected, Transitive actual) {
+        assertEquals(expected.getAgents(), actual.getAgents());
+        assertEquals(expected.getServices(), actual.getServices());
+        assertEquals(expected.getCapabilities(0), actual.getCapabilities(0));
+        assertEquals(expected.dms.length, actual.dms.length);
+
+        for (int i = 0; i < expected.dms.length; i++)
+            for (int j = 0; j < expected.dms[i].length; j++)
+                assertEquals(String.format("dms[%d][%d]", i, j),
+                        expected.dms[i][j] == null ? null : expected.dms[i][j].getClass(),
+                        actual.dms[i][j] == null ? null : actual.dms[i][j].getClass());
+
+        for (int tick = 0; tick < TICKS; tick++) {
+            expected.setCurrentTime(tick);
+            actual.setCurrentTime(tick);
+
+            final List<Opinion> expectedOpinions = expected.generateOpinions();
+            final List<Opinion> actualOpinions = actual.generateOpinions();
+            assertEquals(expectedOpinions.size(), actualOpinions.size());
+
+            for (int i = 0; i < expectedOpinions.size(); i++) {
+                final Opinion e = expectedOpinions.get(i), a = actualOpinions.get(i);
+                assertEquals(e.agent1, a.agent1);
+                assertEquals(e.agent2, a.agent2);
+                assertEquals(e.service, a.service);
+                assertEquals(e.time, a.time);
+                assertEquals(e.internalTrustDegree, a.internalTrustDegree, 0);
+                assertEquals(e.uncertainty, a.uncertainty, 0);
+            }
+
+            final List<Experience> expectedExperiences = expected.generateExperiences();
+            final List<Experience> actualExperiences = actual.generateExperiences();
+            assertEquals(expectedExperiences.size(), actualExperiences.size());
+
+            for (int i = 0; i < expectedExperiences.size(); i++) {
+                final Experience e = expectedExperiences.get(i), a = actualExperiences.get(i);
+                assertEquals(e.agent, a.agent);
+                assertEquals(e.service, a.service);
+                assertEquals(e.time, a.time);
+                assertEquals(e.outcome, a.outcome, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.trustmodel;
+
+import atb.common.DefaultRandomGenerator;
+import atb.interfaces.Experience;
+import atb.interfaces.Opinion;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class EigenTrustConcurrencyTest {
+    private static final int AGENTS = 30;
+    private static final int TICKS = 40;
+    private static final int REPETITIONS = 4;
+
+    private static final Object[][] PARAMETERS = new Object[][]{
+            {0.5, 0.5, 10, 0.1},
+            {0.1, 0.7, 3, 0.3},
+            {0.9, 0.3, 20, 0.05},
+            {0.3, 0.5, 5, 0.2, 0.001, 500},
+            {0.3, 0.5, 5, 0.2, 0.001, 500, true},
+    };
+
+    @Test
+    public void concurrentRunsMatchSerialRuns() throws Exception {
+        final List<List<Map<Integer, Double>>> serial = new ArrayList<List<Map<Integer, Double>>>();
+
+        for (Object[] params : PARAMETERS)
+            serial.add(run(new EigenTrust(), params, null));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                PARAMETERS.length * REPETITIONS);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        try {
+            final List<Future<List<Map<Integer, Double>>>> futures = new ArrayList<Future<List<Map<Integer, Double>>>>();
+
+            for (int r = 0; r < REPETITIONS; r++) {
+                for (final Object[] params : PARAMETERS) {
+                    futures.add(executor.submit(new Callable<List<Map<Integer, Double>>>() {
+                        @Override
+                        public List<Map<Integer, Double>> call() throws Exception {
+                            return run(new EigenTrust(), params, start);
+                        }
+                    }));
+                }
+            }
+
+            start.countDown();
+
+            for (int i = 0; i < futures.size(); i++)
+                assertEquals(serial.get(i % PARAMETERS.length), futures.get(i).get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void selectingPartnersKeepsParameters() throws Exception {
+        final Object[] first = new Object[]{0.5, 0.5, 10, 0.1, false, 0.1};
+        final Object[] second = new Object[]{0.1, 0.7, 3, 0.3, 0.001, 500, true, 0.2};
+
+        final List<Map<Integer, Double>> serial = run(
+                new EigenTrustSelectingInteractionPartners(), first, null);
+
+        final EigenTrustSelectingInteractionPartners other = new EigenTrustSelectingInteractionPartners();
+        other.setRandomGenerator(new DefaultRandomGenerator(1));
+        other.initialize(second);
+
+        // initializing another instance must not affect the first one
+        assertEquals(serial, run(new EigenTrustSelectingInteractionPartners(), first, null));
+        assertEquals(0.1, other.config.weight, 0);
+        assertEquals(500, other.config.maxIterations);
+    }
+
+    /**
+     * Feeds the trust model with experiences and opinions that depend only on
+     * the tick and returns trust values computed at every tick.
+     */
+    private static List<Map<Integer, Double>> run(EigenTrust tm, Object[] params,
+                                                  CountDownLatch start) throws InterruptedException {
+        tm.setRandomGenerator(new DefaultRandomGenerator(0));
+        tm.initialize(params);
+
+        if (null != start)
+            start.await();
+
+        final Random random = new Random(1);
+        final List<Map<Integer, Double>> trust = new ArrayList<Map<Integer, Double>>();
+
+        for (int tick = 1; tick <= TICKS; tick++) {
+            final List<Experience> experiences = new ArrayList<Experience>();
+            final List<Opinion> opinions = new ArrayList<Opinion>();
+
+            experiences.add(new Experience(random.nextInt(AGENTS), 0, tick,
+                    random.nextDouble()));
+
+            for (int i = 0; i < AGENTS; i++)
+                opinions.add(new Opinion(random.nextInt(AGENTS),
+                        random.nextInt(AGENTS), 0, tick, random.nextDouble(),
+                        0.05));
+
+            tm.processExperiences(experiences);
+            tm.processOpinions(opinions);
+            tm.calculateTrust();
+            trust.add(tm.getTrust(0));
+        }
+
+        return trust;
+    }
+}
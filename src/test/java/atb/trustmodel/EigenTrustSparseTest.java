@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2018 David Jelenc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     David Jelenc - initial API and implementation
+ */
+package atb.trustmodel;
+
+import atb.common.DefaultRandomGenerator;
+import atb.interfaces.Experience;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class EigenTrustSparseTest {
+    private static final double WEIGHT = 0.3;
+    private static final double TOLERANCE = 1e-10;
+
+    @Test
+    public void smallOpinionSetsMatchDenseReference() {
+        for (int seed = 0; seed < 20; seed++)
+            compare(new Random(seed), 2 + seed, 0.3);
+    }
+
+    @Test
+    public void sparseOpinionSetsMatchDenseReference() {
+        compare(new Random(1), 150, 0.02);
+    }
+
+    @Test
+    public void largeOpinionSetsMatchDenseReference() {
+        // enough opinions for the product to be computed in parallel
+        compare(new Random(2), 400, 0.5);
+    }
+
+    /**
+     * Fills an EigenTrust instance and a dense matrix with the same random
+     * opinion counts over several rounds, some of which overwrite or remove
+     * counts, and compares trust values after every round.
+     */
+    private static void compare(Random random, int agents, double density) {
+        final EigenTrust tm = new EigenTrust();
+        tm.setRandomGenerator(new DefaultRandomGenerator(0));
+        tm.initialize(WEIGHT, 0.5, 10, 0.1, TOLERANCE, 10000);
+
+        final int[] experiences = new int[agents];
+        final int[][] opinions = new int[agents][agents];
+
+        for (int round = 0; round < 3; round++) {
+            final List<Experience> exps = new ArrayList<Experience>();
+
+            // the last agent is always known, so that all arrays are expanded
+            exps.add(new Experience(agents - 1, 0, round, 0));
+            experiences[agents - 1]--;
+
+            for (int i = 0; i < agents / 2; i++) {
+                final int agent = random.nextInt(agents);
+                final double outcome = random.nextDouble();
+                exps.add(new Experience(agent, 0, round, outcome));
+                experiences[agent] += outcome >= 0.5 ? 1 : -1;
+            }
+
+            tm.processExperiences(exps);
+
+            for (int row = 0; row < agents; row++) {
+                for (int col = 0; col < agents; col++) {
+                    if (random.nextDouble() < density) {
+                        final int count = random.nextBoolean() ? 0 : random.nextInt(10);
+                        tm.setOpinionCount(row, col, count);
+                        opinions[row][col] = count;
+                    }
+                }
+            }
+
+            for (int row = 0; row < agents; row++)
+                for (int col = 0; col < agents; col++)
+                    assertEquals(opinions[row][col], tm.getOpinionCount(row, col));
+
+            final double[] expected = denseTrust(experiences, opinions);
+            final Map<Integer, Double> actual = tm.getTrust(0);
+
+            assertEquals(agents, actual.size());
+
+            for (int i = 0; i < agents; i++)
+                assertEquals(expected[i], actual.get(i), 1e-8);
+        }
+    }
+
+    /**
+     * Computes trust values with the dense power iteration that materializes
+     * the normalized opinion matrix.
+     */
+    private static double[] denseTrust(int[] experiences, int[][] opinions) {
+        final int n = experiences.length;
+        final double[] p = new double[n];
+        int positive = 0;
+
+        for (int e : experiences)
+            positive += Math.max(e, 0);
+
+        for (int i = 0; i < n; i++)
+            p[i] = positive > 0 ? Math.max(experiences[i], 0) / (double) positive : 1d / n;
+
+        final double[][] c = new double[n][n];
+
+        for (int col = 0; col < n; col++) {
+            int sum = 0;
+
+            for (int row = 0; row < n; row++)
+                sum += opinions[row][col];
+
+            for (int row = 0; row < n; row++)
+                c[row][col] = sum > 0 ? opinions[row][col] / (double) sum : p[row];
+        }
+
+        double[] t = p.clone();
+        double distance;
+
+        do {
+            final double[] next = new double[n];
+
+            for (int row = 0; row < n; row++) {
+                double sum = 0;
+
+                for (int col = 0; col < n; col++)
+                    sum += c[row][col] * t[col];
+
+                next[row] = (1 - WEIGHT) * sum + WEIGHT * p[row];
+            }
+
+            distance = 0;
+
+            for (int i = 0; i < n; i++)
+                distance += (next[i] - t[i]) * (next[i] - t[i]);
+
+            t = next;
+        } while (Math.sqrt(distance) >= TOLERANCE);
+
+        return t;
+    }
+}
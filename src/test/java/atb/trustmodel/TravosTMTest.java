@@ -18,6 +18,7 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 
@@ -127,4 +128,34 @@ public class TravosTMTest {
 
         assertEquals(0.7419, tm.getTrust(0).get(6), 0.001);
     }
+
+    @Test
+    public void resetMatchesNewInstance() {
+        // a larger run leaves a larger opinion matrix behind
+        feed(tm, 30, new Random(1));
+        tm.reset(7, 0.5, 10, 0.1, 0.95, 0.2);
+        final Map<Integer, Double> reused = feed(tm, 10, new Random(2));
+
+        final Travos fresh = new Travos();
+        fresh.setRandomGenerator(new DefaultRandomGenerator(7));
+        fresh.initialize(0.5, 10, 0.1, 0.95, 0.2);
+
+        assertEquals(feed(fresh, 10, new Random(2)), reused);
+    }
+
+    private static Map<Integer, Double> feed(Travos travos, int agents, Random random) {
+        final ArrayList<Experience> experiences = new ArrayList<Experience>();
+        final ArrayList<Opinion> opinions = new ArrayList<Opinion>();
+
+        for (int i = 0; i < agents; i++) {
+            experiences.add(new Experience(random.nextInt(agents), 0, 0, random.nextDouble()));
+            opinions.add(new Opinion(random.nextInt(agents), random.nextInt(agents), 0, 0,
+                    random.nextDouble(), 0.05));
+        }
+
+        travos.processExperiences(experiences);
+        travos.processOpinions(opinions);
+        travos.calculateTrust();
+        return travos.getTrust(0);
+    }
 }
@@ -0,0 +1,120 @@
+package atb.infrastructure
+
+import atb.metric.KendallsTauA
+import com.google.gson.JsonParser
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Supplier
+
+class AdaptiveTest {
+    private val executor = Executors.newFixedThreadPool(4)
+    private val metric = KendallsTauA()
+    private val spec = RunSpec("Model", emptyList(), "Scenario", emptyList(), emptyMap(), 1, 10)
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun stopsOnceTargetIsReached() {
+        // all seeds agree, so the first wave reaches any target
+        val result = run(SequentialSeeds(spec, 0.01, minSeeds = 4, maxSeeds = 100, setup = setup { 0.5 }))
+
+        assertTrue(result.reached)
+        assertEquals(4, result.states.size)
+        assertEquals(listOf(Precision(metric.toString(), 0, 4, 0.5, 0.0)), result.precision)
+    }
+
+    @Test
+    fun runsSeedsUntilTargetIsReached() {
+        val result = run(SequentialSeeds(spec, 0.3, minSeeds = 4, maxSeeds = 100, setup = setup { it % 2.0 }))
+        val precision = result.precision.single()
+
+        assertTrue(result.reached)
+        assertTrue(precision.halfWidth <= 0.3)
+        assertEquals(result.states.size, precision.seeds)
+        assertTrue(result.states.size in 5..99)
+        assertEquals((1..result.states.size).toList(), result.states.map { (it as Completed).data.seed }.sorted())
+    }
+
+    @Test
+    fun stopsAtSeedCap() {
+        val result = run(SequentialSeeds(spec, 1e-6, minSeeds = 4, maxSeeds = 10, setup = setup { it % 2.0 }))
+
+        assertFalse(result.reached)
+        assertEquals(10, result.states.size)
+    }
+
+    @Test
+    fun wavesReportToMetricsAndAdmitByMemoryAndCost() {
+        val footprints = AtomicInteger()
+        val costs = AtomicInteger()
+        val metrics = BatchMetrics()
+        val seeds = SequentialSeeds(spec, 0.3, minSeeds = 4, maxSeeds = 100,
+                setup = setup(footprint = { footprints.incrementAndGet(); 1 }, cost = { costs.incrementAndGet(); 1.0 }) { it % 2.0 })
+
+        val done = CompletableFuture<SequentialResult>()
+        seeds.run({ done.complete(it) }, executor = executor, metrics = metrics, memory = MemoryBudget(1000),
+                longestFirst = true)
+        val result = done.get(10, TimeUnit.SECONDS)
+
+        assertEquals(result.states.size, metrics.finishedRuns)
+        assertEquals(result.states.size, footprints.get())
+        assertTrue(costs.get() >= result.states.size)
+    }
+
+    @Test
+    fun precisionIsWrittenWithResults() {
+        val precision = listOf(Precision("Accuracy", 0, 8, 0.5, 0.01), Precision("Utility", 1, 8, -2.0, 0.1))
+
+        val output = ByteArrayOutputStream()
+        JsonResultsWriter(output).close(precision)
+        val json = JsonParser().parse(output.toString("UTF-8")).asJsonObject
+        assertEquals(0, json["data"].asJsonArray.size())
+        assertEquals("Utility", json["precision"].asJsonArray[1].asJsonObject["metric"].asString)
+        assertEquals(0.1, json["precision"].asJsonArray[1].asJsonObject["halfWidth"].asDouble, 0.0)
+
+        val plain = ByteArrayOutputStream()
+        JsonResultsWriter(plain).close()
+        assertFalse(JsonParser().parse(plain.toString("UTF-8")).asJsonObject.has("precision"))
+
+        val binary = File.createTempFile("atb-", ".atbc")
+        val csv = File.createTempFile("atb-", ".precision.csv")
+        try {
+            ResultsWriter(binary).close(precision)
+            ResultsReader(binary).use { assertEquals(precision, it.precision) }
+
+            writePrecision(csv, precision)
+            assertEquals(listOf("\"Metric\",\"service\",\"seeds\",\"mean\",\"halfWidth\"",
+                    "\"Accuracy\",\"0\",\"8\",\"0.5\",\"0.01\"", "\"Utility\",\"1\",\"8\",\"-2.0\",\"0.1\""), csv.readLines())
+        } finally {
+            binary.delete()
+            csv.delete()
+        }
+    }
+
+    private fun run(seeds: SequentialSeeds): SequentialResult {
+        val done = CompletableFuture<SequentialResult>()
+        seeds.run({ done.complete(it) }, executor = executor)
+        return done.get(10, TimeUnit.SECONDS)
+    }
+
+    /** Returns a setup of runs that record [value] of their seed at every tick */
+    private fun setup(footprint: () -> Long = { 0 }, cost: () -> Double = { 0.0 },
+                      value: (Int) -> Double): (RunSpec, ResultSink) -> EvaluationTask = { run, sink ->
+        EvaluationTask(Supplier<EvaluationState> {
+            (1..run.duration).forEach { sink.write(Reading(it, metric, 0, value(run.seed))) }
+            sink.close()
+            Completed(EvaluationData(RunDescriptor("Model", "Scenario", "Model", emptyList(), "Scenario",
+                    emptyList(), run.seed, run.duration), setOf(metric), sink))
+        }, {}, estimateFootprint = footprint, cost = cost, seed = run.seed)
+    }
+}
@@ -0,0 +1,104 @@
+package atb.infrastructure
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class CheckpointTest {
+    private val directory = Files.createTempDirectory("atb-checkpoint-").toFile()
+    private val spec = RunSpec("atb.trustmodel.AbdulRahmanHailes", emptyList(), "atb.scenario.Transitive",
+            listOf(20, 0.05, 0.1, 1.0, 1.0), mapOf("atb.metric.KendallsTauA" to emptyList()), 1, 20)
+    private val hash = spec.hash()
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun completedRunsAreRestored() {
+        val checkpoint = BatchCheckpoint(directory, 5)
+        val evaluated = checkpoint.setup(spec)
+        val state = evaluated.supplier.get()
+
+        assertTrue(state is Completed)
+        assertEquals(spec.duration, evaluated.tick())
+        assertTrue(checkpoint.isCompleted(spec))
+        assertEquals(listOf("$hash.done"), directory.list()!!.toList())
+        assertEquals(readings(spec.setup().supplier.get()), readings(state))
+
+        // restored runs complete without evaluating a single tick
+        val restored = BatchCheckpoint(directory, 5).setup(spec)
+        val restoredState = restored.supplier.get()
+        assertTrue(restoredState is Completed)
+        assertEquals(0, restored.tick())
+        assertEquals(readings(state), readings(restoredState))
+        assertTrue(BatchCheckpoint(directory).unfinished(listOf(spec, spec.copy(seed = 2))).single().seed == 2)
+    }
+
+    @Test
+    fun checkpointsOnlyCompleteTicks() {
+        // a failure amid tick 10 records tick 5, since tick 10 may be incomplete
+        assertTrue(BatchCheckpoint(directory, 5).setup(spec, FailingSink(10)).supplier.get() is Faulted)
+        assertEquals("5", File(directory, "$hash.tick").readText())
+
+        // ticks up to 10 are complete once tick 11 starts
+        assertTrue(BatchCheckpoint(directory, 5).setup(spec, FailingSink(11)).supplier.get() is Faulted)
+        assertEquals("10", File(directory, "$hash.tick").readText())
+        assertFalse(File(directory, "$hash.done").exists())
+    }
+
+    @Test
+    fun resumesAfterCrash() {
+        // the log holds readings of ticks 11 to 13 that follow the last checkpoint
+        assertTrue(BatchCheckpoint(directory, 5).setup(spec, FailingSink(14)).supplier.get() is Faulted)
+        assertEquals("10", File(directory, "$hash.tick").readText())
+
+        val sink = ColumnarSink()
+        val state = BatchCheckpoint(directory, 5).setup(spec, sink).supplier.get()
+
+        assertTrue(state is Completed)
+        assertEquals(readings(spec.setup().supplier.get()), readings(state))
+        assertEquals(listOf("$hash.done"), directory.list()!!.toList())
+        assertEquals(readings(state), readings(BatchCheckpoint(directory, 5).setup(spec).supplier.get()))
+    }
+
+    @Test
+    fun resumesInterruptedRuns() {
+        val checkpoint = BatchCheckpoint(directory, 5)
+        val sink = InterruptingSink(13)
+        val task = checkpoint.setup(spec, sink)
+        sink.interrupter = task.interrupter
+        assertTrue(task.supplier.get() is Interrupted)
+        assertFalse(checkpoint.isCompleted(spec))
+
+        val state = checkpoint.setup(spec).supplier.get()
+        assertTrue(state is Completed)
+        assertEquals(readings(spec.setup().supplier.get()), readings(state))
+    }
+
+    private fun readings(state: EvaluationState): List<Triple<Int, Int, Double>> =
+            (state as Completed).data.readings.map { Triple(it.tick, it.service, it.value) }
+
+    /** Fails on the first reading of given [tick] */
+    private class FailingSink(private val tick: Int) : ResultSink by ColumnarSink() {
+        override fun write(reading: Reading) {
+            if (reading.tick == tick) {
+                throw IllegalStateException("Failed at tick $tick")
+            }
+        }
+    }
+
+    /** Invokes the [interrupter] of its run once it records given [tick] */
+    private class InterruptingSink(private val tick: Int) : ResultSink by ColumnarSink() {
+        lateinit var interrupter: () -> Unit
+
+        override fun write(reading: Reading) {
+            if (reading.tick == tick) {
+                interrupter()
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package atb.infrastructure
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.IOException
+import java.net.InetAddress
+import java.net.Socket
+import java.util.Collections
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+class DistributedTest {
+    private val coordinator = Coordinator(workerTimeout = 10_000)
+    private val specs = (1..10).map {
+        RunSpec("atb.trustmodel.AbdulRahmanHailes", emptyList(), "atb.scenario.Transitive",
+                listOf(20, 0.05, 0.1, 1.0, 1.0), mapOf("atb.metric.KendallsTauA" to emptyList()), it, 100)
+    }
+
+    @After
+    fun tearDown() {
+        coordinator.close()
+    }
+
+    @Test
+    fun everyRunCompletesOnceWhenWorkerIsKilled() {
+        val sockets = (1..2).map { connect() }
+        val workers = sockets.map { socket -> thread { work(socket) } }
+
+        val ended = Collections.synchronizedList(ArrayList<EvaluationState>())
+        val done = CompletableFuture<List<EvaluationState>>()
+        coordinator.run(specs, { done.complete(it) }, { state ->
+            ended.add(state)
+            if (ended.size == 2) {
+                // the first worker dies while both are busy
+                sockets[0].close()
+            }
+        })
+        val states = done.get(30, TimeUnit.SECONDS)
+
+        assertTrue(states.toString(), states.all { it is Completed })
+        assertEquals(specs.map { it.seed }, states.map { (it as Completed).data.seed })
+        assertEquals(specs.map { it.seed }, ended.map { (it as Completed).data.seed }.sorted())
+        states.forEach { assertEquals(100, (it as Completed).data.readings.count()) }
+
+        workers[0].join(5_000)
+        assertFalse(workers[0].isAlive)
+    }
+
+    @Test
+    fun workersServeConsecutiveBatchesUntilClosed() {
+        val worker = thread { work(connect()) }
+
+        for (batch in listOf(specs.take(3), specs.drop(3))) {
+            val done = CompletableFuture<List<EvaluationState>>()
+            coordinator.run(batch, { done.complete(it) })
+            assertEquals(batch.size, done.get(30, TimeUnit.SECONDS).count { it is Completed })
+            assertTrue(worker.isAlive)
+        }
+
+        coordinator.close()
+        worker.join(5_000)
+        assertFalse(worker.isAlive)
+    }
+
+    @Test
+    fun sinksAreCreatedOnceReadingsArrive() {
+        val created = AtomicInteger()
+        val done = CompletableFuture<List<EvaluationState>>()
+        coordinator.run(specs.take(3), { done.complete(it) }, sinks = { created.incrementAndGet(); ColumnarSink() })
+
+        // a worker that disconnects as soon as it is assigned a run
+        connect().use { it.getInputStream().read() }
+        val worker = thread { work(connect()) }
+
+        assertTrue(done.get(30, TimeUnit.SECONDS).all { it is Completed })
+        assertEquals(3, created.get())
+
+        coordinator.close()
+        worker.join(5_000)
+    }
+
+    private fun connect() = Socket(InetAddress.getLoopbackAddress(), coordinator.port)
+
+    private fun work(socket: Socket) {
+        try {
+            runWorker(socket)
+        } catch (e: IOException) {
+            // worker was killed
+        }
+    }
+}
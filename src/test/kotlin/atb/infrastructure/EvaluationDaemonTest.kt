@@ -0,0 +1,83 @@
+package atb.infrastructure
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.StringWriter
+
+class EvaluationDaemonTest {
+    private val daemon = EvaluationDaemon(0, 2).start()
+
+    @After
+    fun tearDown() {
+        daemon.close()
+    }
+
+    @Test
+    fun sendsReadingsOfEveryRun() {
+        val lines = submit(spec())
+
+        assertEquals(3, lines.count { it.startsWith("state\t") })
+        assertEquals(3 * 30, lines.count { it.startsWith("reading\t") })
+        assertEquals("end\t3\t3", lines.last())
+    }
+
+    @Test
+    fun reducesReadings() {
+        val lines = submit(spec(""""reduction": {"policy": "every", "k": 10}"""))
+        val ticks = lines.filter { it.startsWith("reading\t1\t") }.map { it.split('\t')[2].toInt() }
+
+        assertEquals(listOf(1, 11, 21, 30), ticks)
+        assertEquals("end\t3\t3", lines.last())
+    }
+
+    @Test
+    fun runsSeedsUntilPrecisionIsReached() {
+        // any two seeds are enough for such a wide interval
+        val output = StringWriter()
+        val succeeded = submitBatch(daemon.port, spec(""""precision": {"target": 10.0, "minSeeds": 2}""", seeds = 10), output)
+        val lines = output.toString().lines().filter { it.isNotEmpty() }
+
+        assertTrue(succeeded)
+        assertEquals(2, lines.count { it.startsWith("state\t") })
+        val precision = lines.single { it.startsWith("precision\t") }.split('\t')
+        assertEquals(listOf("precision", "Kendall's Tau-A", "0", "2"), precision.take(4))
+        assertEquals("end\t2\t2\ttrue", lines.last())
+    }
+
+    @Test
+    fun reportsUnreachedPrecision() {
+        val output = StringWriter()
+        val succeeded = submitBatch(daemon.port, spec(""""precision": {"target": 1e-9, "statistic": "area", "minSeeds": 2}"""), output)
+        val lines = output.toString().lines().filter { it.isNotEmpty() }
+
+        assertFalse(succeeded)
+        assertEquals(3, lines.count { it.startsWith("state\t") })
+        assertEquals("end\t3\t3\tfalse", lines.last())
+    }
+
+    @Test
+    fun rejectsInvalidReduction() {
+        val output = StringWriter()
+        val succeeded = submitBatch(daemon.port, spec(""""reduction": {"policy": "every", "k": 0}"""), output)
+
+        assertFalse(succeeded)
+        assertTrue(output.toString(), output.toString().startsWith("error\t"))
+    }
+
+    private fun submit(json: String): List<String> {
+        val output = StringWriter()
+        assertTrue(submitBatch(daemon.port, json, output))
+        return output.toString().lines().filter { it.isNotEmpty() }
+    }
+
+    private fun spec(extra: String? = null, seeds: Int = 3) = """{
+        "scenario": {"class": "atb.scenario.Transitive", "parameters": [20, 0.05, 0.1, 1.0, 1.0]},
+        "trustModel": {"class": "atb.trustmodel.AbdulRahmanHailes"},
+        "metrics": [{"class": "atb.metric.KendallsTauA"}],
+        "seeds": {"start": 1, "stop": $seeds},
+        "duration": 30,
+        ${extra?.let { "$it," } ?: ""}
+        "output": {"format": "json"}
+    }"""
+}
@@ -0,0 +1,66 @@
+package atb.infrastructure
+
+import atb.infrastructure.isolated.StaticTrustModel
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class IsolationTest {
+    private val executor = Executors.newFixedThreadPool(2)
+    private val loaders = Collections.newSetFromMap(ConcurrentHashMap<ClassLoader, Boolean>())
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun concurrentRunsDoNotShareStaticState() {
+        // both runs set their static values before either evaluates a tick
+        val barrier = CyclicBarrier(2)
+        val isolation = RunIsolation()
+        val states = run(listOf(spec(1, barrier), spec(2, barrier)).map { spec -> { isolation.setup(spec) } })
+
+        assertTrue(states.toString(), states.all { it is Completed })
+        assertEquals(2, loaders.size)
+        assertFalse(loaders.contains(StaticTrustModel::class.java.classLoader))
+    }
+
+    @Test
+    fun runsWithoutIsolationShareStaticState() {
+        val barrier = CyclicBarrier(2)
+        val states = run(listOf(spec(1, barrier), spec(2, barrier)).map { spec -> { spec.setup() } })
+
+        assertEquals(1, states.count { it is Faulted })
+        assertEquals(setOf(StaticTrustModel::class.java.classLoader), loaders)
+    }
+
+    @Test
+    fun loadersAreReusedOnceRunsEnd() {
+        val isolation = RunIsolation()
+        val barrier = CyclicBarrier(2)
+        assertTrue(run(listOf(spec(1, barrier), spec(2, barrier)).map { spec -> { isolation.setup(spec) } }).all { it is Completed })
+
+        // later runs reuse the loaders of ended runs rather than loading further copies
+        val single = CyclicBarrier(1)
+        assertTrue(run((3..6).map { value -> { isolation.setup(spec(value, single)) } }).all { it is Completed })
+        assertEquals(2, loaders.size)
+    }
+
+    private fun spec(value: Int, barrier: CyclicBarrier) = RunSpec(StaticTrustModel::class.java.name,
+            listOf(value, barrier, loaders), "atb.scenario.Transitive", listOf(20, 0.05, 0.1, 1.0, 1.0),
+            mapOf("atb.metric.KendallsTauA" to emptyList()), value, 10)
+
+    /** Sets up every task on the executor, as batches do, and returns the final states */
+    private fun run(setups: List<() -> EvaluationTask>): List<EvaluationState> {
+        val done = CompletableFuture<List<EvaluationState>>()
+        runBatch(setups.map { deferEvaluation(setup = it) }, { done.complete(it) }, executor = executor)
+        return done.get(30, TimeUnit.SECONDS)
+    }
+}
@@ -0,0 +1,189 @@
+package atb.infrastructure
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.File
+import java.util.Collections
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Supplier
+
+class SchedulingTest {
+    private val executor = Executors.newFixedThreadPool(4)
+    private val active = AtomicInteger()
+    private val started = Collections.synchronizedList(ArrayList<Int>())
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun footprintsAreEstimatedOutsideTheDispatcher() {
+        val memory = MemoryBudget(100)
+        lateinit var dispatcher: Dispatcher
+        val locked = AtomicInteger()
+
+        val tasks = (0 until 6).map { index ->
+            task(index, footprint = {
+                if (Thread.holdsLock(dispatcher) || Thread.holdsLock(memory)) {
+                    locked.incrementAndGet()
+                }
+                40
+            })
+        }
+
+        dispatcher = Dispatcher(tasks, 4, memory, false) { CompletableFuture.supplyAsync(it.supplier, executor) }
+        await(dispatcher.dispatch())
+
+        assertEquals(0, locked.get())
+        assertEquals(6, started.size)
+    }
+
+    @Test
+    fun oversizedTasksRunAlone() {
+        val concurrent = Collections.synchronizedList(ArrayList<Int>())
+        val tasks = listOf(50L, 500L, 50L, 50L).mapIndexed { index, footprint ->
+            task(index, footprint = { footprint }, onStart = { if (index == 1) concurrent.add(it) })
+        }
+
+        val states = runBatch(tasks, memory = MemoryBudget(100))
+
+        assertTrue(states.all { it is Completed })
+        assertEquals(listOf(1), concurrent)
+    }
+
+    @Test
+    fun oversizedTasksStartWhileBudgetIsSharedWithOtherBatches() {
+        val memory = MemoryBudget(100)
+
+        // another batch holds part of the budget for longer than this one takes
+        assertTrue(memory.tryAdmit(10))
+
+        try {
+            val states = runBatch(listOf(task(0, footprint = { 500 })), memory = memory)
+            assertTrue(states.single() is Completed)
+        } finally {
+            memory.release(10)
+        }
+    }
+
+    @Test
+    fun longestTasksStartFirst() {
+        val single = Executors.newSingleThreadExecutor()
+
+        try {
+            val tasks = listOf(1.0, 5.0, 3.0, 4.0, 2.0).mapIndexed { index, cost -> task(index, cost = { cost }) }
+            val states = runBatch(tasks, executor = single, longestFirst = true)
+
+            assertTrue(states.all { it is Completed })
+            assertEquals(listOf(1, 3, 2, 4, 0), started)
+        } finally {
+            single.shutdown()
+        }
+    }
+
+    @Test
+    fun costsAreComputedOncePerDispatchOutsideTheDispatcher() {
+        lateinit var dispatcher: Dispatcher
+        val locked = AtomicInteger()
+        val calls = AtomicInteger()
+
+        val tasks = (0 until 8).map { index ->
+            task(index, cost = {
+                calls.incrementAndGet()
+                if (Thread.holdsLock(dispatcher)) {
+                    locked.incrementAndGet()
+                }
+                index.toDouble()
+            })
+        }
+
+        dispatcher = Dispatcher(tasks, 1, null, true) { CompletableFuture.supplyAsync(it.supplier, executor) }
+        await(dispatcher.dispatch())
+
+        assertEquals(0, locked.get())
+        assertEquals((7 downTo 0).toList(), started)
+        // every dispatch computes the costs of queued tasks once: 8 + 7 + ... + 1
+        assertEquals(36, calls.get())
+    }
+
+    @Test
+    fun costModelFitsCoefficientAndExponent() {
+        val history = File.createTempFile("atb-", ".tsv")
+
+        try {
+            // ticks of model A take 1e-6 · agents^1.5 · services seconds; model B is known at one size
+            history.printWriter().use { writer ->
+                listOf(10, 20, 40).forEach { agents ->
+                    listOf(1, 2).forEach { services ->
+                        writer.println("A	$agents	$services	${1e-6 * Math.pow(agents.toDouble(), 1.5) * services}")
+                    }
+                }
+                writer.println("B	10	1	0.01")
+            }
+
+            val model = CostModel(history)
+            assertEquals(1e-6 * Math.pow(80.0, 1.5) * 3, model.secondsPerTick("A", 80, 3), 1e-9)
+
+            // with a single size, the exponent is assumed
+            assertEquals(0.01 * Math.pow(2.0, CostModel.DEFAULT_EXPONENT), model.secondsPerTick("B", 20, 1), 1e-9)
+
+            // an unknown model is estimated from the others with the assumed exponent
+            val unknown = model.secondsPerTick("C", 10, 1)
+            assertTrue(unknown > model.secondsPerTick("A", 10, 1))
+            assertTrue(unknown < model.secondsPerTick("B", 10, 1))
+
+            // saved observations give equal estimates
+            model.save()
+            assertEquals(model.secondsPerTick("A", 80, 3), CostModel(history).secondsPerTick("A", 80, 3), 1e-12)
+        } finally {
+            history.delete()
+        }
+    }
+
+    @Test
+    fun costModelLearnsFromTrackedRuns() {
+        val model = CostModel()
+        val fast = RunSpec("atb.trustmodel.AbdulRahmanHailes", emptyList(), "atb.scenario.Transitive",
+                listOf(20, 0.05, 0.1, 1.0, 1.0), mapOf("atb.metric.KendallsTauA" to emptyList()), 1, 50)
+        val unknown = model.estimate(fast)
+
+        val task = model.track(fast, fast.setup())
+        assertEquals(unknown, task.cost(), 0.0)
+        assertTrue(task.supplier.get() is Completed)
+
+        // the estimate now follows the observed rate rather than the default coefficient
+        assertNotEquals(unknown, model.estimate(fast), 0.0)
+        assertEquals(model.estimate(fast) * 2, model.estimate(fast.copy(duration = 100)), 1e-12)
+    }
+
+    private fun runBatch(tasks: List<EvaluationTask>, memory: MemoryBudget? = null,
+                         executor: Executor = this.executor, longestFirst: Boolean = false): List<EvaluationState> {
+        val done = CompletableFuture<List<EvaluationState>>()
+        runBatch(tasks, { done.complete(it) }, executor = executor, memory = memory, longestFirst = longestFirst)
+        return done.get(10, TimeUnit.SECONDS)
+    }
+
+    private fun await(futures: List<CompletableFuture<EvaluationState>>): List<EvaluationState> =
+            futures.map { it.get(10, TimeUnit.SECONDS) }
+
+    /** Returns a short task that records its start and passes [onStart] the number of tasks running with it */
+    private fun task(index: Int, footprint: () -> Long = { 0 }, cost: () -> Double = { 0.0 },
+                     onStart: (Int) -> Unit = {}): EvaluationTask =
+            EvaluationTask(Supplier<EvaluationState> {
+                onStart(active.incrementAndGet())
+                started.add(index)
+                try {
+                    Thread.sleep(20)
+                    Completed(EvaluationData(RunDescriptor("Model", "Scenario", "Model", emptyList(), "Scenario",
+                            emptyList(), index, 1), emptySet(), ColumnarSink()))
+                } finally {
+                    active.decrementAndGet()
+                }
+            }, {}, estimateFootprint = footprint, cost = cost, seed = index)
+}
@@ -0,0 +1,118 @@
+package atb.infrastructure
+
+import atb.interfaces.Metric
+import atb.metric.KendallsTauA
+import atb.scenario.Transitive
+import atb.trustmodel.AbdulRahmanHailes
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class SweepTest {
+    private val metrics: Map<Class<out Metric>, ParameterSpace> = mapOf(KendallsTauA::class.java to ParameterSpace.EMPTY)
+
+    @Test
+    fun expandsCartesianProducts() {
+        val space = ParameterSpace(listOf(100, 200), listOf(0.05), listOf("a", "b"))
+
+        assertEquals(listOf(listOf(100, 0.05, "a"), listOf(100, 0.05, "b"), listOf(200, 0.05, "a"),
+                listOf(200, 0.05, "b")), space.expand())
+        assertEquals(listOf(listOf(1, 2.0)), ParameterSpace.of(1, 2.0).expand())
+        assertEquals(listOf(emptyList<Any>()), ParameterSpace.EMPTY.expand())
+    }
+
+    @Test
+    fun deduplicatesRuns() {
+        val sweep = Sweep(AbdulRahmanHailes::class.java, ParameterSpace.EMPTY, Transitive::class.java,
+                ParameterSpace(listOf(20, 20, 30), listOf(0.05), listOf(0.1), listOf(1.0), listOf(1.0)),
+                metrics, listOf(1, 2, 1), 10, cost = { 1.0 })
+        val jobs = sweep.jobs()
+
+        assertEquals(4, jobs.size)
+        assertEquals(setOf(20 to 1, 20 to 2, 30 to 1, 30 to 2), jobs.map { it.scenarioParams[0] to it.seed }.toSet())
+    }
+
+    @Test
+    fun ordersRunsByCostModel() {
+        val sweep = Sweep(AbdulRahmanHailes::class.java, ParameterSpace.EMPTY, Transitive::class.java,
+                ParameterSpace(listOf(20, 40, 30), listOf(0.05), listOf(0.1), listOf(1.0), listOf(1.0)),
+                metrics, 1..2, 10)
+
+        assertEquals(listOf(40, 40, 30, 30, 20, 20), sweep.jobs().map { it.scenarioParams[0] })
+    }
+
+    @Test
+    fun ordersRunsByObservedTrustModels() {
+        val history = File.createTempFile("atb-", ".tsv")
+
+        try {
+            // the trust model's ticks were observed not to depend on the number of agents
+            history.writeText(listOf(20, 40, 80).joinToString("") { "${AbdulRahmanHailes::class.java.name}\t$it\t1\t0.001\n" })
+            val sweep = Sweep(AbdulRahmanHailes::class.java, ParameterSpace.EMPTY, Transitive::class.java,
+                    ParameterSpace(listOf(20, 40), listOf(0.05), listOf(0.1), listOf(1.0), listOf(1.0)),
+                    metrics, listOf(1), 10, costModel = CostModel(history))
+            val jobs = sweep.jobs()
+
+            assertEquals(sweep.costModel.estimate(jobs[0]), sweep.costModel.estimate(jobs[1]), 1e-12)
+            assertEquals(10 * 0.001, sweep.costModel.estimate(jobs[0]), 1e-9)
+        } finally {
+            history.delete()
+        }
+    }
+
+    @Test
+    fun ordersRunsByCostFunction() {
+        val sweep = Sweep(AbdulRahmanHailes::class.java, ParameterSpace.EMPTY, Transitive::class.java,
+                ParameterSpace(listOf(20, 40, 30), listOf(0.05), listOf(0.1), listOf(1.0), listOf(1.0)),
+                metrics, listOf(1), 10, cost = { -(it.scenarioParams[0] as Int).toDouble() })
+
+        assertEquals(listOf(20, 30, 40), sweep.jobs().map { it.scenarioParams[0] })
+    }
+
+    @Test
+    fun specificationsDescribeSweeps() {
+        val spec = BatchSpec.fromJson("""{
+            "scenario": {"class": "atb.scenario.Transitive", "sweep": [[20, 30], 0.05, 0.1, 1.0, [0.5, 1.0]]},
+            "trustModel": {"class": "atb.trustmodel.AbdulRahmanHailes"},
+            "metrics": [{"class": "atb.metric.KendallsTauA"}],
+            "seeds": [1, 2],
+            "duration": 5
+        }""")
+
+        assertTrue(spec.isSweep)
+        assertEquals(8, spec.runs.size)
+        assertEquals(spec.runs.map { it.canonical() }.toSet(), spec.sweep().jobs().map { it.canonical() }.toSet())
+        assertEquals(listOf(20, 0.05, 0.1, 1.0, 0.5), spec.runs.first().scenarioParams)
+
+        val directory = Files.createTempDirectory("atb-sweep-").toFile()
+        val executor = Executors.newFixedThreadPool(2)
+        val done = CompletableFuture<List<EvaluationState>>()
+
+        try {
+            spec.sweep().run(directory.path, "sweep.csv", { done.complete(it) }, executor = executor)
+            assertTrue(done.get(30, TimeUnit.SECONDS).all { it is Completed })
+
+            val lines = File(directory, "sweep.csv").readLines()
+            assertTrue(lines[0], lines[0].startsWith("\"scenario[0]\",\"scenario[1]\""))
+            // every configuration has a row per tick
+            assertEquals(4 * 5, lines.size - 1)
+        } finally {
+            executor.shutdown()
+            directory.deleteRecursively()
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun sweepsCannotBeCheckpointed() {
+        BatchSpec.fromJson("""{
+            "scenario": {"class": "atb.scenario.Transitive", "sweep": [[20, 30], 0.05, 0.1, 1.0, 1.0]},
+            "trustModel": {"class": "atb.trustmodel.AbdulRahmanHailes"},
+            "metrics": [{"class": "atb.metric.KendallsTauA"}],
+            "seeds": [1], "duration": 5, "checkpoint": "checkpoints"
+        }""")
+    }
+}
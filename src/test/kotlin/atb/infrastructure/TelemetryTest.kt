@@ -0,0 +1,119 @@
+package atb.infrastructure
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.IOException
+import java.lang.management.ManagementFactory
+import java.net.URL
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+
+class TelemetryTest {
+    private val server = ManagementFactory.getPlatformMBeanServer()
+
+    @Test
+    fun countsRunsOverJmxAndHttp() {
+        val metrics = BatchMetrics("telemetry-test").register()
+        val port = metrics.serve()
+        val executor = Executors.newFixedThreadPool(2)
+        val release = CountDownLatch(1)
+        val done = CompletableFuture<List<EvaluationState>>()
+
+        try {
+            val tasks = (1..3).map { seed ->
+                EvaluationTask(Supplier<EvaluationState> {
+                    release.await()
+                    Faulted(0, IllegalStateException(), seed)
+                }, {}, seed = seed)
+            }
+
+            runBatch(tasks, { done.complete(it) }, executor = executor, metrics = metrics)
+            awaitActive(metrics, 2)
+
+            val name = metrics.objectName!!
+            assertEquals(3, server.getAttribute(name, "TotalRuns"))
+            assertEquals(1, server.getAttribute(name, "QueuedRuns"))
+            assertEquals(2, server.getAttribute(name, "ActiveRuns"))
+            assertEquals(0, server.getAttribute(name, "FinishedRuns"))
+
+            val text = URL("http://127.0.0.1:$port/metrics").readText()
+            assertTrue(text, text.lines().contains("atb_runs_total 3"))
+            assertTrue(text, text.lines().contains("atb_runs_queued 1"))
+            assertTrue(text, text.lines().contains("atb_runs_active 2"))
+            assertTrue(text, text.lines().contains("atb_seconds_to_completion NaN"))
+
+            release.countDown()
+            assertEquals(3, done.get(10, TimeUnit.SECONDS).size)
+            assertEquals(3, server.getAttribute(name, "FinishedRuns"))
+            assertEquals(0, server.getAttribute(name, "ActiveRuns"))
+            assertTrue(URL("http://127.0.0.1:$port/metrics").readText().lines().contains("atb_runs_finished 3"))
+        } finally {
+            release.countDown()
+            executor.shutdown()
+            metrics.close()
+        }
+    }
+
+    @Test
+    fun registrationsWithEqualNamesAreDistinct() {
+        val first = BatchMetrics("telemetry-test").register()
+        val second = BatchMetrics("telemetry-test").register()
+
+        try {
+            assertNotEquals(first.objectName, second.objectName)
+            assertTrue(server.isRegistered(first.objectName))
+            assertTrue(server.isRegistered(second.objectName))
+        } finally {
+            first.close()
+            second.close()
+        }
+    }
+
+    @Test
+    fun closeUnregistersAndStopsServing() {
+        val metrics = BatchMetrics("telemetry-test").register()
+        val name = metrics.objectName!!
+        val port = metrics.serve()
+
+        assertTrue(URL("http://127.0.0.1:$port/metrics").readText().contains("atb_runs_total 0"))
+        metrics.close()
+
+        assertFalse(server.isRegistered(name))
+        assertNull(metrics.objectName)
+
+        try {
+            URL("http://127.0.0.1:$port/metrics").readText()
+            fail("Endpoint is still served")
+        } catch (e: IOException) {
+            // expected
+        }
+    }
+
+    @Test
+    fun measuresPhasesOfRuns() {
+        val metrics = BatchMetrics()
+        val done = CompletableFuture<List<EvaluationState>>()
+        val spec = RunSpec("atb.trustmodel.AbdulRahmanHailes", emptyList(), "atb.scenario.Transitive",
+                listOf(20, 0.05, 0.1, 1.0, 1.0), mapOf("atb.metric.KendallsTauA" to emptyList()), 1, 20)
+
+        runBatch(listOf(deferEvaluation { spec.setup() }), { done.complete(it) }, metrics = metrics)
+
+        assertTrue(done.get(30, TimeUnit.SECONDS).single() is Completed)
+        assertEquals(1, metrics.finishedRuns)
+        assertEquals(1.0, metrics.phaseShares.values.sum(), 1e-9)
+        assertTrue(metrics.phaseShares.getValue(Phase.STEP.name) > 0)
+        assertEquals(0.0, metrics.secondsToCompletion, 0.0)
+    }
+
+    private fun awaitActive(metrics: BatchMetrics, runs: Int) {
+        val deadline = System.currentTimeMillis() + 10000
+
+        while (metrics.activeRuns < runs) {
+            assertTrue("Runs did not start", System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package atb.infrastructure
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Supplier
+
+class WatchdogTest {
+    private val executor = Executors.newFixedThreadPool(2)
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun wallClockBudgetEndsSlowRuns() {
+        // every tick is fast, but the run never ends
+        val ended = AtomicBoolean()
+        val task = ticking(ended, millisPerTick = 1)
+        val state = Watchdog.supply(task, Budget(wallClock = 200), executor).get(10, TimeUnit.SECONDS)
+
+        assertTrue(state is TimedOut)
+        assertTrue((state as TimedOut).reason, state.reason.startsWith("Run exceeded"))
+        assertEquals(7, state.seed)
+        assertTrue(state.tick > 0)
+        awaitEnded(ended)
+    }
+
+    @Test
+    fun tickBudgetEndsStalledRuns() {
+        val release = CountDownLatch(1)
+        val ended = AtomicBoolean()
+        val task = ticking(ended, millisPerTick = 1, stallAt = 5, release = release)
+
+        try {
+            val state = Watchdog.supply(task, Budget(tick = 200), executor).get(10, TimeUnit.SECONDS)
+
+            assertTrue(state is TimedOut)
+            assertTrue((state as TimedOut).reason, state.reason.startsWith("Tick 5 exceeded"))
+            assertEquals(5, state.tick)
+        } finally {
+            release.countDown()
+        }
+
+        awaitEnded(ended)
+    }
+
+    @Test
+    fun runsWithinBudgetComplete() {
+        val spec = spec("atb.trustmodel.AbdulRahmanHailes", emptyList())
+        val state = Watchdog.supply(spec.setup(), Budget(10000, 5000), executor).get(30, TimeUnit.SECONDS)
+
+        assertTrue(state is Completed)
+    }
+
+    @Test
+    fun iterationLimitsTimeRunsOut() {
+        // a single iteration cannot reach the tolerance
+        val spec = spec("atb.trustmodel.EigenTrust", listOf(0.1, 0.5, 10, 0.1, 1e-15, 1))
+        val state = spec.setup().supplier.get()
+
+        assertTrue(state is TimedOut)
+        assertEquals(1, (state as TimedOut).tick)
+        assertEquals(1, state.seed)
+    }
+
+    @Test
+    fun timedOutRunsReleaseSlotsAndMemory() {
+        val release = CountDownLatch(1)
+        val ended = AtomicBoolean()
+        val stuck = ticking(ended, millisPerTick = 1, stallAt = 1, release = release, footprint = 1000)
+        val next = ticking(AtomicBoolean(), millisPerTick = 1, duration = 3, footprint = 1000)
+        val done = CompletableFuture<List<EvaluationState>>()
+
+        try {
+            // only one of the runs fits the memory budget, so the second one starts only after the first
+            runBatch(listOf(stuck, next), { done.complete(it) }, executor = executor,
+                    budget = Budget(tick = 200), memory = MemoryBudget(1000))
+
+            // the stuck tick is still running when the batch ends
+            val states = done.get(10, TimeUnit.SECONDS)
+            assertTrue(states[0] is TimedOut)
+            assertTrue(states[1] is Completed)
+            assertFalse(ended.get())
+        } finally {
+            release.countDown()
+        }
+
+        awaitEnded(ended)
+    }
+
+    private fun spec(model: String, params: List<Any>) = RunSpec(model, params, "atb.scenario.Transitive",
+            listOf(20, 0.05, 0.1, 1.0, 1.0), mapOf("atb.metric.KendallsTauA" to emptyList()), 1, 20)
+
+    /**
+     * Returns a task whose ticks take [millisPerTick]; tick [stallAt] waits for [release] regardless of
+     * interruption. Once the task returns, it sets [ended].
+     */
+    private fun ticking(ended: AtomicBoolean, millisPerTick: Long, stallAt: Int = -1, release: CountDownLatch? = null,
+                        duration: Int = Int.MAX_VALUE, footprint: Long = 0): EvaluationTask {
+        val tick = AtomicInteger()
+        val interrupted = AtomicBoolean()
+
+        val supplier = Supplier<EvaluationState> {
+            try {
+                while (tick.get() < duration) {
+                    if (interrupted.get()) {
+                        return@Supplier Faulted(tick.get(), InterruptedException(), 7)
+                    }
+
+                    val current = tick.incrementAndGet()
+                    if (current == stallAt) {
+                        while (release!!.count > 0) {
+                            try {
+                                release.await()
+                            } catch (e: InterruptedException) {
+                                // ignored, as by ticks that do not check for interruption
+                            }
+                        }
+                    }
+                    Thread.sleep(millisPerTick)
+                }
+
+                Completed(EvaluationData(RunDescriptor("Model", "Scenario", "Model", emptyList(), "Scenario",
+                        emptyList(), 7, duration), emptySet(), ColumnarSink()))
+            } finally {
+                ended.set(true)
+            }
+        }
+
+        return EvaluationTask(supplier, { interrupted.set(true) }, { tick.get() }, { footprint }, seed = 7)
+    }
+
+    private fun awaitEnded(ended: AtomicBoolean) {
+        val deadline = System.currentTimeMillis() + 10000
+
+        while (!ended.get()) {
+            assertTrue("Run did not end after its interruption", System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        }
+    }
+}
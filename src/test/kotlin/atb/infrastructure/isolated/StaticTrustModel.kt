@@ -0,0 +1,32 @@
+package atb.infrastructure.isolated
+
+import atb.trustmodel.OnlyExperiences
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps its parameter in a static field, as some plugins do, and fails once the field no longer holds
+ * it. Parameters are the value, a barrier that is awaited once the value is set, and a set to which
+ * the model adds its class loader.
+ */
+class StaticTrustModel : OnlyExperiences() {
+    private var value = 0
+
+    override fun initialize(vararg params: Any?) {
+        super.initialize(*params)
+        value = params[0] as Int
+        shared = value
+
+        @Suppress("UNCHECKED_CAST")
+        (params[2] as MutableSet<ClassLoader>).add(javaClass.classLoader)
+        (params[1] as CyclicBarrier).await(10, TimeUnit.SECONDS)
+    }
+
+    override fun calculateTrust() {
+        check(shared == value) { "Static value $shared differs from $value" }
+    }
+
+    companion object {
+        private var shared = 0
+    }
+}